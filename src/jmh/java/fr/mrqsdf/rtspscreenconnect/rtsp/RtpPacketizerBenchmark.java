@@ -0,0 +1,49 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.source.SyntheticFrameSource;
+import fr.mrqsdf.rtspscreenconnect.utils.BenchmarkFrames;
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Découpage RTP d'une frame encodée réelle : les IDR, plus grosses que le MTU, passent par FU-A,
+ * les P-frames d'un contenu peu animé tiennent souvent en quelques paquets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RtpPacketizerBenchmark {
+
+    @Param({"1280x720", "1920x1080", "3840x2160"})
+    public String size;
+
+    @Param({"true", "false"})
+    public boolean keyFrame;
+
+    private final RtpPacketizer packetizer = new RtpPacketizer(1400, true);
+    private EncodedFrame frame;
+    // Somme des tailles de paquets, rendue par le benchmark pour que rien ne soit éliminé
+    private long bytesSent;
+    // Sink créé une fois pour ne pas compter une allocation de lambda par frame
+    private final RtpPacketizer.PacketSink sink = packet -> {
+        bytesSent += packet.remaining() + packet.get(packet.limit() - 1);
+        packetizer.getPool().release(packet);
+    };
+
+    @Setup
+    public void setup() {
+        EncodedFrame[] sample = BenchmarkFrames.encodeSample(size, SyntheticFrameSource.Motion.SCROLLING_TEXT);
+        frame = keyFrame ? sample[0] : sample[1];
+    }
+
+    @Benchmark
+    public long packetizeFrame() throws Exception {
+        packetizer.packetizeFrame(frame, sink);
+        return bytesSent;
+    }
+}
@@ -0,0 +1,85 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.source.SyntheticFrameSource;
+import fr.mrqsdf.rtspscreenconnect.utils.BenchmarkFrames;
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chemin d'envoi TCP interleaved, sans le socket : TcpRtpSender construit l'unité d'accès (packetisation,
+ * copie de chaque paquet derrière son en-tête '$', Sender Report s'il est dû), puis l'écriture groupée
+ * de RtspConnection la vide dans un canal qui consomme tout.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TcpInterleavedBenchmark {
+
+    @Param({"1280x720", "1920x1080", "3840x2160"})
+    public String size;
+
+    // Jamais démarré ni relié à une connexion : seule la construction de l'unité d'accès sert
+    private final TcpRtpSender sender = new TcpRtpSender(null, 0, 1, () -> { });
+    // File d'écriture et tableau de l'écriture groupée, comme ceux d'une RtspConnection
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[RtspConnection.MAX_GATHER];
+    private EncodedFrame frame;
+    // Octets "envoyés", rendus par le benchmark pour que rien ne soit éliminé
+    private long bytesWritten;
+
+    // Socket idéal : accepte tous les octets, comme un client qui lit assez vite
+    private final GatheringByteChannel sink = new GatheringByteChannel() {
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            if (written > 0) {
+                bytesWritten += written + src.get(src.limit() - 1);
+                src.position(src.limit());
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        frame = BenchmarkFrames.encodeSample(size, SyntheticFrameSource.Motion.SCROLLING_TEXT)[0];
+    }
+
+    @Benchmark
+    public long sendInterleaved() throws Exception {
+        pendingWrites.add(sender.buildAccessUnit(frame));
+        RtspConnection.flush(pendingWrites, gather, sink);
+        return bytesWritten;
+    }
+}
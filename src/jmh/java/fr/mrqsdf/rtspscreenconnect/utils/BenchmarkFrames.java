@@ -0,0 +1,44 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import fr.mrqsdf.rtspscreenconnect.source.SyntheticFrameSource;
+
+/**
+ * Paramètres communs des benchmarks : tailles d'image et sources synthétiques reproductibles.
+ */
+public final class BenchmarkFrames {
+
+    private BenchmarkFrames() {
+    }
+
+    /**
+     * Lit une taille "LxH" (ex. "1920x1080").
+     */
+    public static int[] parseSize(String size) {
+        String[] wh = size.split("x");
+        return new int[]{Integer.parseInt(wh[0]), Integer.parseInt(wh[1])};
+    }
+
+    public static SyntheticFrameSource source(String size, SyntheticFrameSource.Motion motion) {
+        int[] wh = parseSize(size);
+        return new SyntheticFrameSource(wh[0], wh[1], motion);
+    }
+
+    /**
+     * Encode quelques frames d'une source et garde une copie de la première (IDR) et de la dernière (P).
+     * @return {IDR, P}
+     */
+    public static EncodedFrame[] encodeSample(String size, SyntheticFrameSource.Motion motion) {
+        SyntheticFrameSource source = source(size, motion);
+        H264FrameEncoder encoder = new H264FrameEncoder(30);
+        EncodedFrame[] sample = new EncodedFrame[2];
+        for (int i = 0; i < 3; i++) {
+            EncodedFrame frame = encoder.encodeFrame(source.nextFrame(), System.nanoTime());
+            byte[] copy = new byte[frame.getLength()];
+            System.arraycopy(frame.getData(), frame.getOffset(), copy, 0, copy.length);
+            EncodedFrame kept = EncodedFrame.wrap(copy, copy.length, frame.isKeyFrame(), frame.getCaptureTimeNanos());
+            sample[i == 0 ? 0 : 1] = kept;
+            frame.release();
+        }
+        return sample;
+    }
+}
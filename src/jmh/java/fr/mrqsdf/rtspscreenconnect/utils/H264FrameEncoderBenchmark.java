@@ -0,0 +1,92 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import fr.mrqsdf.rtspscreenconnect.pipeline.ParallelPool;
+import fr.mrqsdf.rtspscreenconnect.source.SyntheticFrameSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodage complet d'une frame (conversion YUV comprise), sur un GOP en cours : surtout des P-frames,
+ * une IDR toutes les 30 frames. Le contenu statique mesure le coût plancher d'un écran immobile,
+ * le bruit le pire cas ; le texte qui défile est proche d'un usage bureautique.
+ *
+ * Chaque sous-classe fixe le nombre de cœurs vus par la JVM (-XX:ActiveProcessorCount) et encode
+ * autant de bandes en parallèle (voir SliceParallelEncoder) : comparer Cores1 à Cores8 donne le gain
+ * réel du découpage en slices selon la machine, pools de la JVM dimensionnés en conséquence.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public abstract class H264FrameEncoderBenchmark {
+
+    @Param({"1280x720", "1920x1080", "3840x2160"})
+    public String size;
+
+    @Param({"STATIC", "SCROLLING_TEXT", "NOISE"})
+    public SyntheticFrameSource.Motion motion;
+
+    private SyntheticFrameSource source;
+    private H264FrameEncoder encoder;
+    private ParallelPool parallelPool;
+
+    /**
+     * Bandes encodées en parallèle : une par cœur disponible.
+     */
+    protected abstract int slices();
+
+    @Setup
+    public void setup() {
+        source = BenchmarkFrames.source(size, motion);
+        // Dimensionné comme le pipeline sur une machine de slices() cœurs
+        parallelPool = new ParallelPool(slices());
+        encoder = new H264FrameEncoder(30, slices(), parallelPool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        parallelPool.shutdown();
+    }
+
+    @Benchmark
+    public int encodeFrame() {
+        EncodedFrame frame = encoder.encodeFrame(source.nextFrame(), System.nanoTime());
+        int length = frame.getLength();
+        frame.release();
+        return length;
+    }
+
+    @Fork(value = 1, jvmArgsAppend = "-XX:ActiveProcessorCount=1")
+    public static class Cores1 extends H264FrameEncoderBenchmark {
+        @Override
+        protected int slices() {
+            return 1;
+        }
+    }
+
+    @Fork(value = 1, jvmArgsAppend = "-XX:ActiveProcessorCount=2")
+    public static class Cores2 extends H264FrameEncoderBenchmark {
+        @Override
+        protected int slices() {
+            return 2;
+        }
+    }
+
+    @Fork(value = 1, jvmArgsAppend = "-XX:ActiveProcessorCount=4")
+    public static class Cores4 extends H264FrameEncoderBenchmark {
+        @Override
+        protected int slices() {
+            return 4;
+        }
+    }
+
+    @Fork(value = 1, jvmArgsAppend = "-XX:ActiveProcessorCount=8")
+    public static class Cores8 extends H264FrameEncoderBenchmark {
+        @Override
+        protected int slices() {
+            return 8;
+        }
+    }
+}
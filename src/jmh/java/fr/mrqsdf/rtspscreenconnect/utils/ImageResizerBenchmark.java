@@ -0,0 +1,52 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import fr.mrqsdf.rtspscreenconnect.pipeline.ParallelPool;
+import fr.mrqsdf.rtspscreenconnect.source.SyntheticFrameSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Réduction d'une capture vers la taille d'une rendition.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageResizerBenchmark {
+
+    @Param({"1920x1080", "2560x1440", "3840x2160"})
+    public String source;
+
+    @Param({"640x360", "1280x720"})
+    public String target;
+
+    // Bandes réparties sur tous les cœurs, comme dans le pipeline
+    private final ParallelPool parallelPool = new ParallelPool(Runtime.getRuntime().availableProcessors());
+    private final ImageResizer resizer = new ImageResizer(parallelPool);
+    private BufferedImage capture;
+    private int targetWidth;
+    private int targetHeight;
+
+    @Setup
+    public void setup() {
+        int[] size = BenchmarkFrames.parseSize(source);
+        capture = new SyntheticFrameSource(size[0], size[1], SyntheticFrameSource.Motion.SCROLLING_TEXT).nextFrame();
+        int[] targetSize = BenchmarkFrames.parseSize(target);
+        targetWidth = targetSize[0];
+        targetHeight = targetSize[1];
+    }
+
+    @TearDown
+    public void tearDown() {
+        parallelPool.shutdown();
+    }
+
+    @Benchmark
+    public BufferedImage resize() {
+        return resizer.resize(capture, targetWidth, targetHeight);
+    }
+}
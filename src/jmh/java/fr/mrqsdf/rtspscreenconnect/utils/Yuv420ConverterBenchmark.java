@@ -0,0 +1,44 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import fr.mrqsdf.rtspscreenconnect.pipeline.ParallelPool;
+import fr.mrqsdf.rtspscreenconnect.source.SyntheticFrameSource;
+import org.jcodec.common.model.Picture;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion BufferedImage RGB vers YUV 4:2:0, faite par H264FrameEncoder avant chaque encodage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Yuv420ConverterBenchmark {
+
+    @Param({"1280x720", "1920x1080", "2560x1440", "3840x2160"})
+    public String size;
+
+    // Bandes réparties sur tous les cœurs, comme dans le pipeline
+    private final ParallelPool parallelPool = new ParallelPool(Runtime.getRuntime().availableProcessors());
+    private final Yuv420Converter converter = new Yuv420Converter(parallelPool);
+    private BufferedImage capture;
+
+    @Setup
+    public void setup() {
+        capture = BenchmarkFrames.source(size, SyntheticFrameSource.Motion.NOISE).nextFrame();
+    }
+
+    @TearDown
+    public void tearDown() {
+        parallelPool.shutdown();
+    }
+
+    @Benchmark
+    public Picture convert() {
+        return converter.convert(capture);
+    }
+}
@@ -1,7 +1,15 @@
 package fr.mrqsdf.rtspscreenconnect;
 
+import fr.mrqsdf.rtspscreenconnect.metrics.MetricsHttpServer;
+import fr.mrqsdf.rtspscreenconnect.metrics.MetricsRegistry;
+import fr.mrqsdf.rtspscreenconnect.pipeline.PipelineExecutor;
 import fr.mrqsdf.rtspscreenconnect.resource.Data;
+import fr.mrqsdf.rtspscreenconnect.resource.StreamConfig;
 import fr.mrqsdf.rtspscreenconnect.rtsp.RTSPServer;
+import fr.mrqsdf.rtspscreenconnect.rtsp.RtspEventLoop;
+import fr.mrqsdf.rtspscreenconnect.rtsp.UdpSendEngine;
+import fr.mrqsdf.rtspscreenconnect.source.FrameSource;
+import fr.mrqsdf.rtspscreenconnect.source.FrameSources;
 import fr.mrqsdf.rtspscreenconnect.utils.*;
 
 import java.awt.*;
@@ -11,10 +19,61 @@ import java.util.List;
 public class ScreenStreamer {
 
     private static RTSPServer[] servers;
+    // Workers d'encodage partagés par tous les écrans
+    private static PipelineExecutor pipeline;
+    // Un seul thread pour les requêtes RTSP de tous les écrans
+    private static RtspEventLoop eventLoop;
+    // Endpoint /metrics, null si désactivé
+    private static MetricsHttpServer metricsServer;
 
     private static List<String> rtsps = new ArrayList<>();
 
     public static void main(String[] args) {
+        // -Drtsp.simulatedLoss=0.05 -Drtsp.simulatedBandwidth=2000 : lien UDP dégradé, pour éprouver l'adaptatif
+        try {
+            Data.simulatedLoss = Double.parseDouble(System.getProperty("rtsp.simulatedLoss", "0"));
+            Data.simulatedBandwidth = Integer.parseInt(System.getProperty("rtsp.simulatedBandwidth", "0"));
+        } catch (NumberFormatException e) {
+            System.out.println("Lien simulé invalide : " + e.getMessage());
+        }
+        // -Drtsp.record=/chemin : enregistrement MP4 de chaque écran diffusé
+        String recordDirectory = System.getProperty("rtsp.record");
+        if (recordDirectory != null && !recordDirectory.isBlank()) {
+            Data.recordDirectory = recordDirectory;
+        }
+        // -Drtsp.timeshift=120 : secondes de différé gardées en mémoire par écran, 0 pour désactiver
+        try {
+            Data.timeShiftSeconds = Integer.parseInt(System.getProperty("rtsp.timeshift",
+                    String.valueOf(Data.timeShiftSeconds)));
+        } catch (NumberFormatException e) {
+            System.out.println("Différé invalide : " + e.getMessage());
+        }
+        // -Drtsp.multicastTtl=4 -Drtsp.multicastInterface=eth0 : portée et interface des groupes multicast
+        try {
+            Data.multicastTtl = Integer.parseInt(System.getProperty("rtsp.multicastTtl",
+                    String.valueOf(Data.multicastTtl)));
+        } catch (NumberFormatException e) {
+            System.out.println("TTL multicast invalide : " + e.getMessage());
+        }
+        String multicastInterface = System.getProperty("rtsp.multicastInterface");
+        if (multicastInterface != null && !multicastInterface.isBlank()) {
+            Data.multicastInterface = multicastInterface;
+        }
+        String multicastAddress = System.getProperty("rtsp.multicastAddress");
+        if (multicastAddress != null && !multicastAddress.isBlank()) {
+            Data.multicastAddress = multicastAddress;
+        }
+        // -Drtsp.metricsAddress=0.0.0.0 : exposer /metrics sur le réseau (boucle locale par défaut)
+        String metricsAddress = System.getProperty("rtsp.metricsAddress");
+        if (metricsAddress != null && !metricsAddress.isBlank()) {
+            Data.metricsAddress = metricsAddress;
+        }
+        // -Drtsp.source=synthetic:1920x1080:scroll : flux sans écran (benchmarks, machines headless)
+        String sourceSpec = System.getProperty("rtsp.source");
+        if (sourceSpec != null && !sourceSpec.isBlank()) {
+            startHeadless(sourceSpec);
+            return;
+        }
         // Récupérer le premier écran disponible
         GraphicsDevice[] screens = Data.screens;
         if(screens.length == 0){
@@ -24,6 +83,9 @@ public class ScreenStreamer {
         String localIP = LocalIP.getHostAddress();
         System.out.println("Adresse IP locale : " + localIP);
         servers = new RTSPServer[screens.length];
+        if (!startPipeline()) {
+            return;
+        }
         for(int i = 0; i < screens.length; i++){
             if (!Data.selectedScreens.isEmpty() && !Data.selectedScreens.contains(screens[i])) {
                 continue;
@@ -34,7 +96,7 @@ public class ScreenStreamer {
             System.out.println("Écran " + i + " -> " + rtsp);
             try {
                 ScreenCutter cutter = new ScreenCutter(screens[i]);
-                RTSPServer server = new RTSPServer(rtspPort, i, cutter);
+                RTSPServer server = new RTSPServer(rtspPort, i, cutter, createConfig(cutter), pipeline, eventLoop);
                 servers[i] = server;
                 server.start();
             } catch(Exception e){
@@ -45,6 +107,76 @@ public class ScreenStreamer {
         Data.data.addAll(rtsps);
     }
 
+    /**
+     * Diffuse une source synthétique ou un fichier à la place des écrans, sur le premier port.
+     */
+    private static void startHeadless(String sourceSpec) {
+        FrameSource source;
+        try {
+            source = FrameSources.fromSpec(sourceSpec);
+        } catch (Exception e) {
+            System.out.println("Source invalide : " + sourceSpec);
+            e.printStackTrace();
+            return;
+        }
+        String localIP = LocalIP.getHostAddress();
+        servers = new RTSPServer[1];
+        if (!startPipeline()) {
+            source.close();
+            return;
+        }
+        int rtspPort = 5004;
+        String rtsp = "rtsp://" + localIP + ":" + rtspPort + "/0";
+        rtsps.add(rtsp);
+        System.out.println("Source " + sourceSpec + " (" + source.getWidth() + "x" + source.getHeight() + ") -> " + rtsp);
+        try {
+            RTSPServer server = new RTSPServer(rtspPort, 0, source, createConfig(source), pipeline, eventLoop);
+            servers[0] = server;
+            server.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        // Sans l'interface JavaFX, la liste affichée n'existe pas
+        if (Data.data != null) {
+            Data.data.clear();
+            Data.data.addAll(rtsps);
+        }
+    }
+
+    private static boolean startPipeline() {
+        pipeline = new PipelineExecutor();
+        pipeline.start();
+        System.out.println("Pipeline : " + pipeline.getWorkers() + " workers d'encodage");
+        try {
+            eventLoop = new RtspEventLoop();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        eventLoop.start();
+        if (Data.metricsPort > 0) {
+            try {
+                metricsServer = new MetricsHttpServer(Data.metricsAddress, Data.metricsPort, MetricsRegistry.get());
+                metricsServer.start();
+            } catch (Exception e) {
+                // Les flux fonctionnent sans métriques
+                System.out.println("Adresse des métriques " + (Data.metricsAddress != null ? Data.metricsAddress : "locale")
+                        + ":" + Data.metricsPort + " indisponible");
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    private static StreamConfig createConfig(FrameSource source) {
+        StreamConfig config = new StreamConfig();
+        if (config.slices <= 0) {
+            // Une slice par tranche de 720 lignes : seuls les grands écrans encodent en parallèle
+            config.slices = Math.min(pipeline.getWorkers(), Math.max(1, source.getHeight() / 720));
+        }
+        return config;
+    }
+
     public static void stop() {
         System.out.println("Arrêt des serveurs RTSP");
         if (servers == null) {
@@ -52,11 +184,26 @@ public class ScreenStreamer {
         }
         for (RTSPServer server : servers) {
             if (server != null) {
-                server.interrupt();
+                server.stop();
             }
         }
+        if (eventLoop != null) {
+            eventLoop.shutdown();
+            eventLoop = null;
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
+        UdpSendEngine.shutdownAll();
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+        }
         rtsps.clear();
-        Data.data.clear();
+        if (Data.data != null) {
+            Data.data.clear();
+        }
 
     }
 
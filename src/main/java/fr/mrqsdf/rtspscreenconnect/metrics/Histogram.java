@@ -0,0 +1,100 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogramme à seaux fixes en puissances de 2 : le seau i compte les valeurs jusqu'à {@code firstBound << i},
+ * le dernier compte tout le reste (+Inf). L'enregistrement ne fait ni allocation ni verrou :
+ * un calcul d'index par décalage et trois incréments atomiques.
+ */
+public class Histogram {
+
+    private final int shift;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * @param firstBound Borne du premier seau, arrondie à la puissance de 2 supérieure.
+     * @param bucketCount Nombre de seaux, +Inf compris.
+     */
+    public Histogram(long firstBound, int bucketCount) {
+        this.shift = 64 - Long.numberOfLeadingZeros(Math.max(1, firstBound) - 1);
+        this.buckets = new AtomicLongArray(Math.max(2, bucketCount));
+    }
+
+    /**
+     * Histogramme de durées en nanosecondes, de 16 µs à 17 s.
+     */
+    public static Histogram latency() {
+        return new Histogram(16_384, 22);
+    }
+
+    /**
+     * Histogramme de tailles en octets, de 256 o à 32 Mo.
+     */
+    public static Histogram size() {
+        return new Histogram(256, 19);
+    }
+
+    public void record(long value) {
+        int index = value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros((value - 1) >>> shift);
+        buckets.incrementAndGet(Math.min(index, buckets.length() - 1));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public int getBucketCount() {
+        return buckets.length();
+    }
+
+    /**
+     * Nombre de valeurs du seau (non cumulé).
+     */
+    public long getBucket(int index) {
+        return buckets.get(index);
+    }
+
+    /**
+     * Borne haute du seau, ou Long.MAX_VALUE pour le dernier (+Inf).
+     */
+    public long getUpperBound(int index) {
+        return index >= buckets.length() - 1 ? Long.MAX_VALUE : 1L << (shift + index);
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Estimation d'un quantile : borne haute du seau qui le contient (précision d'un facteur 2).
+     * @param quantile Entre 0 et 1 (ex. 0.99).
+     */
+    public long getQuantile(double quantile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        int last = buckets.length() - 1;
+        for (int i = 0; i < last; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return getUpperBound(i);
+            }
+        }
+        // Au-delà de la dernière borne finie
+        return getUpperBound(last - 1);
+    }
+}
@@ -0,0 +1,67 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Petit serveur HTTP intégré qui sert {@code GET /metrics} au format texte Prometheus.
+ * Les métriques ne sont calculées qu'à la requête : le serveur ne coûte rien entre deux collectes.
+ * Par défaut il n'écoute que sur la boucle locale : les métriques (clients, débits) ne sortent pas de la machine
+ * sans le demander.
+ */
+public class MetricsHttpServer {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    /**
+     * @param address Adresse d'écoute (nom ou adresse IP, 0.0.0.0 pour toutes les interfaces),
+     *                null pour la boucle locale.
+     */
+    public MetricsHttpServer(String address, int port, MetricsRegistry registry) throws IOException {
+        InetAddress bindAddress = address != null ? InetAddress.getByName(address) : InetAddress.getLoopbackAddress();
+        server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        server.createContext("/metrics", exchange -> handle(exchange, registry));
+    }
+
+    public void start() {
+        server.start();
+        InetSocketAddress address = server.getAddress();
+        String host = address.getAddress().isAnyLocalAddress() ? "<ip>" : address.getAddress().getHostAddress();
+        System.out.println("Métriques Prometheus sur http://" + host + ":" + address.getPort() + "/metrics");
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static void handle(HttpExchange exchange, MetricsRegistry registry) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registre des métriques de tous les écrans. Publie chaque écran, rendition et session comme MBean
+ * (domaine {@value #DOMAIN}) et produit le texte Prometheus servi par {@link MetricsHttpServer}.
+ */
+public class MetricsRegistry {
+
+    public static final String DOMAIN = "fr.mrqsdf.rtspscreenconnect";
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private final List<StreamMetrics> streams = new CopyOnWriteArrayList<>();
+    private final AtomicLong sessionIds = new AtomicLong();
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    public static MetricsRegistry get() {
+        return INSTANCE;
+    }
+
+    public void register(StreamMetrics stream) {
+        streams.add(stream);
+        registerMBean(stream, streamName(stream));
+        for (RenditionMetrics rendition : stream.renditions) {
+            registerMBean(rendition, renditionName(stream, rendition));
+        }
+    }
+
+    public void unregister(StreamMetrics stream) {
+        streams.remove(stream);
+        for (SessionMetrics session : stream.sessions) {
+            unregisterSession(stream, session);
+        }
+        for (RenditionMetrics rendition : stream.renditions) {
+            unregisterMBean(renditionName(stream, rendition));
+        }
+        unregisterMBean(streamName(stream));
+    }
+
+    /**
+     * Publie les métriques d'une nouvelle session sur une rendition.
+     * @param client Adresse du client.
+     * @param transport "tcp", "udp" ou "multicast".
+     */
+    public void registerSession(RenditionMetrics rendition, SessionMetrics session, String client, String transport) {
+        StreamMetrics stream = rendition.getStream();
+        session.attach(rendition, String.valueOf(sessionIds.incrementAndGet()), client, transport);
+        stream.sessions.add(session);
+        registerMBean(session, sessionName(stream, session));
+    }
+
+    public void unregisterSession(StreamMetrics stream, SessionMetrics session) {
+        if (stream.sessions.remove(session)) {
+            unregisterMBean(sessionName(stream, session));
+        }
+    }
+
+    /**
+     * Toutes les métriques au format texte Prometheus (version 0.0.4).
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(16384);
+
+        family(out, "rtsp_capture_seconds", "histogram", "Durée de capture d'une image de l'écran");
+        for (StreamMetrics stream : streams) {
+            histogram(out, "rtsp_capture_seconds", stream.labels, stream.getCaptureHistogram(), 1e-9);
+        }
+        family(out, "rtsp_capture_fps", "gauge", "Captures par seconde sur la dernière seconde");
+        for (StreamMetrics stream : streams) {
+            sample(out, "rtsp_capture_fps", stream.labels, stream.getCaptureFps());
+        }
+        family(out, "rtsp_scheduled_fps", "gauge", "Cadence accordée par le pipeline");
+        for (StreamMetrics stream : streams) {
+            sample(out, "rtsp_scheduled_fps", stream.labels, stream.getScheduledFps());
+        }
+        family(out, "rtsp_missed_deadlines_total", "counter", "Échéances de capture sautées (pipeline en retard)");
+        for (StreamMetrics stream : streams) {
+            sample(out, "rtsp_missed_deadlines_total", stream.labels, stream.getMissedDeadlines());
+        }
+
+        family(out, "rtsp_resize_seconds", "histogram", "Durée de réduction de la capture à la taille de la rendition");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                histogram(out, "rtsp_resize_seconds", rendition.labels, rendition.getResizeHistogram(), 1e-9);
+            }
+        }
+        family(out, "rtsp_convert_seconds", "histogram", "Durée de conversion RGB vers YUV 4:2:0");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                histogram(out, "rtsp_convert_seconds", rendition.labels, rendition.getConvertHistogram(), 1e-9);
+            }
+        }
+        family(out, "rtsp_encode_seconds", "histogram", "Durée d'encodage H.264 d'une frame");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                histogram(out, "rtsp_encode_seconds", rendition.labels, rendition.getEncodeHistogram(), 1e-9);
+            }
+        }
+        family(out, "rtsp_frame_size_bytes", "histogram", "Taille des frames encodées");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                histogram(out, "rtsp_frame_size_bytes", rendition.labels, rendition.getFrameSizeHistogram(), 1);
+            }
+        }
+        family(out, "rtsp_keyframes_total", "counter", "Frames IDR encodées");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_keyframes_total", rendition.labels, rendition.getKeyFrames());
+            }
+        }
+        family(out, "rtsp_unchanged_frames_total", "counter", "Captures inchangées, non encodées");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_unchanged_frames_total", rendition.labels, rendition.getUnchangedFrames());
+            }
+        }
+        family(out, "rtsp_encoded_fps", "gauge", "Frames encodées par seconde sur la dernière seconde");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_encoded_fps", rendition.labels, rendition.getFps());
+            }
+        }
+        family(out, "rtsp_bitrate_bits_per_second", "gauge", "Débit encodé sur la dernière seconde");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_bitrate_bits_per_second", rendition.labels, rendition.getBitrate());
+            }
+        }
+        family(out, "rtsp_subscribers", "gauge", "Clients en lecture sur la rendition");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_subscribers", rendition.labels, rendition.getSubscribers());
+            }
+        }
+
+        family(out, "rtsp_adaptive_level", "gauge", "Niveau du contrôle adaptatif, 0 = pleine qualité");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_adaptive_level", rendition.labels, rendition.getAdaptiveLevel());
+            }
+        }
+        family(out, "rtsp_adaptive_qp_offset", "gauge", "Crans de QP ajoutés par le contrôle adaptatif");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_adaptive_qp_offset", rendition.labels, rendition.getQpOffset());
+            }
+        }
+        family(out, "rtsp_adaptive_target_fps", "gauge", "Cadence d'encodage visée par le contrôle adaptatif");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_adaptive_target_fps", rendition.labels, rendition.getTargetFps());
+            }
+        }
+        family(out, "rtsp_adaptive_scale_ratio", "gauge", "Échelle de la résolution encodée par rapport à la rendition");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_adaptive_scale_ratio", rendition.labels, rendition.getScalePercent() / 100.0);
+            }
+        }
+        family(out, "rtsp_adaptations_total", "counter", "Changements de niveau du contrôle adaptatif");
+        for (StreamMetrics stream : streams) {
+            for (RenditionMetrics rendition : stream.renditions) {
+                sample(out, "rtsp_adaptations_total", rendition.labels + ",direction=\"down\"", rendition.getAdaptationsDown());
+                sample(out, "rtsp_adaptations_total", rendition.labels + ",direction=\"up\"", rendition.getAdaptationsUp());
+            }
+        }
+
+        family(out, "rtsp_session_queue_wait_seconds", "histogram", "Attente d'une frame dans la file d'envoi de la session");
+        for (StreamMetrics stream : streams) {
+            for (SessionMetrics session : stream.sessions) {
+                histogram(out, "rtsp_session_queue_wait_seconds", session.labels, session.getQueueWaitHistogram(), 1e-9);
+            }
+        }
+        family(out, "rtsp_session_send_seconds", "histogram", "Durée de packetisation et d'envoi d'une frame");
+        for (StreamMetrics stream : streams) {
+            for (SessionMetrics session : stream.sessions) {
+                histogram(out, "rtsp_session_send_seconds", session.labels, session.getSendHistogram(), 1e-9);
+            }
+        }
+        family(out, "rtsp_session_sent_bytes_total", "counter", "Octets de frames envoyés à la session");
+        for (StreamMetrics stream : streams) {
+            for (SessionMetrics session : stream.sessions) {
+                sample(out, "rtsp_session_sent_bytes_total", session.labels, session.getBytesSent());
+            }
+        }
+        family(out, "rtsp_session_dropped_frames_total", "counter", "Frames abandonnées pour la session (client trop lent)");
+        for (StreamMetrics stream : streams) {
+            for (SessionMetrics session : stream.sessions) {
+                sample(out, "rtsp_session_dropped_frames_total", session.labels, session.getDroppedFrames());
+            }
+        }
+        family(out, "rtsp_session_queue_depth", "gauge", "Frames en attente d'envoi");
+        for (StreamMetrics stream : streams) {
+            for (SessionMetrics session : stream.sessions) {
+                sample(out, "rtsp_session_queue_depth", session.labels, session.getQueueDepth());
+            }
+        }
+        family(out, "rtsp_session_fraction_lost", "gauge", "Part des paquets perdus selon le dernier rapport RTCP du client");
+        for (StreamMetrics stream : streams) {
+            for (SessionMetrics session : stream.sessions) {
+                sample(out, "rtsp_session_fraction_lost", session.labels, session.getFractionLost());
+            }
+        }
+        family(out, "rtsp_session_packets_lost", "gauge", "Paquets perdus cumulés selon le client (RTCP)");
+        for (StreamMetrics stream : streams) {
+            for (SessionMetrics session : stream.sessions) {
+                sample(out, "rtsp_session_packets_lost", session.labels, session.getPacketsLost());
+            }
+        }
+        family(out, "rtsp_session_jitter_seconds", "gauge", "Gigue d'arrivée estimée par le client (RTCP)");
+        for (StreamMetrics stream : streams) {
+            for (SessionMetrics session : stream.sessions) {
+                sample(out, "rtsp_session_jitter_seconds", session.labels, session.getJitterMillis() / 1000);
+            }
+        }
+        family(out, "rtsp_session_rtt_seconds", "gauge", "Temps d'aller-retour mesuré par RTCP, -1 si inconnu");
+        for (StreamMetrics stream : streams) {
+            for (SessionMetrics session : stream.sessions) {
+                double rtt = session.getRttMillis();
+                sample(out, "rtsp_session_rtt_seconds", session.labels, rtt < 0 ? -1 : rtt / 1000);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Échappe une valeur d'étiquette Prometheus.
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append('{').append(labels).append("} ").append(format(value)).append('\n');
+    }
+
+    /**
+     * Seaux cumulés, somme et nombre, les bornes converties dans l'unité de base par {@code scale}.
+     */
+    private static void histogram(StringBuilder out, String name, String labels, Histogram histogram, double scale) {
+        long cumulative = 0;
+        int last = histogram.getBucketCount() - 1;
+        for (int i = 0; i < last; i++) {
+            cumulative += histogram.getBucket(i);
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(format(histogram.getUpperBound(i) * scale)).append("\"} ").append(cumulative).append('\n');
+        }
+        // Le nombre total est relu à part : +Inf et _count restent cohérents avec des seaux mis à jour entre-temps
+        long count = Math.max(histogram.getCount(), cumulative + histogram.getBucket(last));
+        out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ").append(format(histogram.getSum() * scale)).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%.9g", value);
+    }
+
+    private static String streamName(StreamMetrics stream) {
+        return DOMAIN + ":type=Stream,screen=" + stream.getScreen();
+    }
+
+    private static String renditionName(StreamMetrics stream, RenditionMetrics rendition) {
+        return DOMAIN + ":type=Rendition,screen=" + stream.getScreen() + ",rendition=" + rendition.getRendition();
+    }
+
+    private static String sessionName(StreamMetrics stream, SessionMetrics session) {
+        return DOMAIN + ":type=Session,screen=" + stream.getScreen() + ",session=" + session.getSession();
+    }
+
+    private void registerMBean(Object mBean, String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(mBean, objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void unregisterMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+/**
+ * Débit de deux compteurs (frames et octets) sur la dernière seconde écoulée.
+ * Calculé à la lecture (JMX, /metrics) à partir des compteurs : rien n'est fait sur le chemin des frames.
+ */
+class RateWindow {
+
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private long lastTime = System.nanoTime();
+    private long lastFrames;
+    private long lastBytes;
+    private double framesPerSecond;
+    private double bytesPerSecond;
+
+    synchronized void update(long frames, long bytes) {
+        long now = System.nanoTime();
+        long elapsed = now - lastTime;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+        framesPerSecond = (frames - lastFrames) * 1e9 / elapsed;
+        bytesPerSecond = (bytes - lastBytes) * 1e9 / elapsed;
+        lastTime = now;
+        lastFrames = frames;
+        lastBytes = bytes;
+    }
+
+    synchronized double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,222 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Métriques d'une rendition : réduction, conversion YUV, encodage, tailles des frames et débit produit.
+ */
+public class RenditionMetrics implements RenditionMetricsMBean {
+
+    private final String rendition;
+    private final IntSupplier subscribers;
+    private final Histogram resize = Histogram.latency();
+    private final Histogram convert = Histogram.latency();
+    private final Histogram encode = Histogram.latency();
+    private final Histogram frameSize = Histogram.size();
+    private final AtomicLong keyFrames = new AtomicLong();
+    private final AtomicLong unchangedFrames = new AtomicLong();
+    private final RateWindow rate = new RateWindow();
+    // État du contrôle adaptatif
+    private volatile int adaptiveLevel;
+    private volatile int qpOffset;
+    private volatile double targetFps;
+    private volatile int scalePercent = 100;
+    private final AtomicLong adaptationsDown = new AtomicLong();
+    private final AtomicLong adaptationsUp = new AtomicLong();
+    private volatile String lastAdaptation = "";
+    private StreamMetrics stream;
+    String labels;
+
+    public RenditionMetrics(String rendition, IntSupplier subscribers) {
+        this.rendition = rendition;
+        this.subscribers = subscribers;
+        this.labels = "rendition=\"" + rendition + "\"";
+    }
+
+    void attach(StreamMetrics stream) {
+        this.stream = stream;
+        this.labels = stream.labels + ",rendition=\"" + rendition + "\"";
+    }
+
+    StreamMetrics getStream() {
+        return stream;
+    }
+
+    /**
+     * Capture inchangée, ni encodée ni envoyée.
+     */
+    public void recordUnchanged() {
+        unchangedFrames.incrementAndGet();
+    }
+
+    public void recordResize(long nanos) {
+        resize.record(nanos);
+    }
+
+    /**
+     * Frame encodée.
+     * @param convertNanos Durée de la conversion RGB vers YUV.
+     * @param encodeNanos Durée de l'encodage H.264.
+     */
+    public void recordFrame(long convertNanos, long encodeNanos, int size, boolean keyFrame) {
+        convert.record(convertNanos);
+        encode.record(encodeNanos);
+        frameSize.record(size);
+        if (keyFrame) {
+            keyFrames.incrementAndGet();
+        }
+    }
+
+    /**
+     * Réglages courants du contrôle adaptatif, publiés à chaque évaluation.
+     */
+    public void recordAdaptiveState(int level, int qpOffset, double targetFps, int scalePercent) {
+        this.adaptiveLevel = level;
+        this.qpOffset = qpOffset;
+        this.targetFps = targetFps;
+        this.scalePercent = scalePercent;
+    }
+
+    /**
+     * Changement de niveau décidé par le contrôle adaptatif.
+     * @param down Vrai si la qualité est réduite.
+     * @param reason Signal qui a motivé la décision.
+     */
+    public void recordAdaptation(boolean down, String reason) {
+        (down ? adaptationsDown : adaptationsUp).incrementAndGet();
+        lastAdaptation = (down ? "baisse : " : "hausse : ") + reason;
+    }
+
+    Histogram getResizeHistogram() {
+        return resize;
+    }
+
+    Histogram getConvertHistogram() {
+        return convert;
+    }
+
+    Histogram getEncodeHistogram() {
+        return encode;
+    }
+
+    Histogram getFrameSizeHistogram() {
+        return frameSize;
+    }
+
+    @Override
+    public String getRendition() {
+        return rendition;
+    }
+
+    @Override
+    public int getSubscribers() {
+        return subscribers.getAsInt();
+    }
+
+    @Override
+    public long getFramesEncoded() {
+        return frameSize.getCount();
+    }
+
+    @Override
+    public long getKeyFrames() {
+        return keyFrames.get();
+    }
+
+    @Override
+    public double getKeyFrameRatio() {
+        long frames = frameSize.getCount();
+        return frames == 0 ? 0 : (double) keyFrames.get() / frames;
+    }
+
+    @Override
+    public long getUnchangedFrames() {
+        return unchangedFrames.get();
+    }
+
+    @Override
+    public long getBytesEncoded() {
+        return frameSize.getSum();
+    }
+
+    @Override
+    public double getFps() {
+        rate.update(frameSize.getCount(), frameSize.getSum());
+        return rate.getFramesPerSecond();
+    }
+
+    /**
+     * Débit encodé sur la dernière seconde, en bits par seconde.
+     */
+    @Override
+    public double getBitrate() {
+        rate.update(frameSize.getCount(), frameSize.getSum());
+        return rate.getBytesPerSecond() * 8;
+    }
+
+    @Override
+    public double getAverageFrameSize() {
+        return frameSize.getMean();
+    }
+
+    @Override
+    public double getResizeMeanMillis() {
+        return resize.getMean() / 1e6;
+    }
+
+    @Override
+    public double getConvertMeanMillis() {
+        return convert.getMean() / 1e6;
+    }
+
+    @Override
+    public double getConvertP99Millis() {
+        return convert.getQuantile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getEncodeMeanMillis() {
+        return encode.getMean() / 1e6;
+    }
+
+    @Override
+    public double getEncodeP99Millis() {
+        return encode.getQuantile(0.99) / 1e6;
+    }
+
+    @Override
+    public int getAdaptiveLevel() {
+        return adaptiveLevel;
+    }
+
+    @Override
+    public int getQpOffset() {
+        return qpOffset;
+    }
+
+    @Override
+    public double getTargetFps() {
+        return targetFps;
+    }
+
+    @Override
+    public int getScalePercent() {
+        return scalePercent;
+    }
+
+    @Override
+    public long getAdaptationsDown() {
+        return adaptationsDown.get();
+    }
+
+    @Override
+    public long getAdaptationsUp() {
+        return adaptationsUp.get();
+    }
+
+    @Override
+    public String getLastAdaptation() {
+        return lastAdaptation;
+    }
+}
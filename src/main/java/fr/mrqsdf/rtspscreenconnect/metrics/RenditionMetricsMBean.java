@@ -0,0 +1,53 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+/**
+ * Vue JMX des métriques d'encodage d'une rendition.
+ */
+public interface RenditionMetricsMBean {
+
+    String getRendition();
+
+    int getSubscribers();
+
+    long getFramesEncoded();
+
+    long getKeyFrames();
+
+    double getKeyFrameRatio();
+
+    long getUnchangedFrames();
+
+    long getBytesEncoded();
+
+    double getFps();
+
+    double getBitrate();
+
+    double getAverageFrameSize();
+
+    double getResizeMeanMillis();
+
+    double getConvertMeanMillis();
+
+    double getConvertP99Millis();
+
+    double getEncodeMeanMillis();
+
+    double getEncodeP99Millis();
+
+    // Contrôle adaptatif : niveau courant (0 = pleine qualité) et réglages qui en découlent
+
+    int getAdaptiveLevel();
+
+    int getQpOffset();
+
+    double getTargetFps();
+
+    int getScalePercent();
+
+    long getAdaptationsDown();
+
+    long getAdaptationsUp();
+
+    String getLastAdaptation();
+}
@@ -0,0 +1,161 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Métriques d'une session : attente en file, durée d'envoi, volume envoyé et frames perdues.
+ * Créées par le sender, qui fournit sa profondeur de file et son compteur de pertes,
+ * puis étiquetées et publiées par {@link MetricsRegistry#registerSession}.
+ */
+public class SessionMetrics implements SessionMetricsMBean {
+
+    private final Histogram queueWait = Histogram.latency();
+    private final Histogram send = Histogram.latency();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final IntSupplier queueDepth;
+    private final LongSupplier droppedFrames;
+    // Dernier Receiver Report RTCP du client
+    private volatile double fractionLost;
+    private volatile long packetsLost;
+    private volatile double jitterMillis;
+    private volatile double rttMillis = -1;
+    private String session = "";
+    private String client = "";
+    private String transport = "";
+    private String rendition = "";
+    String labels = "";
+
+    public SessionMetrics(IntSupplier queueDepth, LongSupplier droppedFrames) {
+        this.queueDepth = queueDepth;
+        this.droppedFrames = droppedFrames;
+    }
+
+    void attach(RenditionMetrics rendition, String session, String client, String transport) {
+        this.session = session;
+        this.client = client;
+        this.transport = transport;
+        this.rendition = rendition.getRendition();
+        this.labels = rendition.labels + ",session=\"" + session + "\",client=\"" + MetricsRegistry.escape(client)
+                + "\",transport=\"" + transport + "\"";
+    }
+
+    /**
+     * Frame envoyée (thread d'envoi de la session).
+     * @param waitNanos Temps passé en file avant l'envoi.
+     * @param sendNanos Durée de la packetisation et de l'envoi.
+     */
+    public void recordSend(long waitNanos, long sendNanos, int size) {
+        queueWait.record(waitNanos);
+        send.record(sendNanos);
+        sentBytes.addAndGet(size);
+    }
+
+    /**
+     * Receiver Report reçu du client (quelques secondes d'intervalle, hors du chemin des frames).
+     * @param rttMillis Temps d'aller-retour, -1 s'il est inconnu.
+     */
+    public void recordReceiverReport(double fractionLost, long packetsLost, double jitterMillis, double rttMillis) {
+        this.fractionLost = fractionLost;
+        this.packetsLost = packetsLost;
+        this.jitterMillis = jitterMillis;
+        this.rttMillis = rttMillis;
+    }
+
+    /**
+     * Temps total passé à packetiser et envoyer, en nanosecondes : sa variation sur un intervalle donne
+     * la part du temps où la session est occupée à envoyer.
+     */
+    public long getSendNanos() {
+        return send.getSum();
+    }
+
+    Histogram getQueueWaitHistogram() {
+        return queueWait;
+    }
+
+    Histogram getSendHistogram() {
+        return send;
+    }
+
+    @Override
+    public String getSession() {
+        return session;
+    }
+
+    @Override
+    public String getClient() {
+        return client;
+    }
+
+    @Override
+    public String getTransport() {
+        return transport;
+    }
+
+    @Override
+    public String getRendition() {
+        return rendition;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames.getAsLong();
+    }
+
+    @Override
+    public long getFramesSent() {
+        return send.getCount();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return sentBytes.get();
+    }
+
+    @Override
+    public double getFractionLost() {
+        return fractionLost;
+    }
+
+    @Override
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    @Override
+    public double getJitterMillis() {
+        return jitterMillis;
+    }
+
+    @Override
+    public double getRttMillis() {
+        return rttMillis;
+    }
+
+    @Override
+    public double getQueueWaitMeanMillis() {
+        return queueWait.getMean() / 1e6;
+    }
+
+    @Override
+    public double getQueueWaitP99Millis() {
+        return queueWait.getQuantile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getSendMeanMillis() {
+        return send.getMean() / 1e6;
+    }
+
+    @Override
+    public double getSendP99Millis() {
+        return send.getQuantile(0.99) / 1e6;
+    }
+}
@@ -0,0 +1,39 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+/**
+ * Vue JMX des métriques d'envoi d'une session client.
+ */
+public interface SessionMetricsMBean {
+
+    String getSession();
+
+    String getClient();
+
+    String getTransport();
+
+    String getRendition();
+
+    int getQueueDepth();
+
+    long getDroppedFrames();
+
+    long getFramesSent();
+
+    long getBytesSent();
+
+    double getFractionLost();
+
+    long getPacketsLost();
+
+    double getJitterMillis();
+
+    double getRttMillis();
+
+    double getQueueWaitMeanMillis();
+
+    double getQueueWaitP99Millis();
+
+    double getSendMeanMillis();
+
+    double getSendP99Millis();
+}
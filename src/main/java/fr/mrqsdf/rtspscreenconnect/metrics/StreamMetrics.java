@@ -0,0 +1,83 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Métriques d'un écran : durée de capture et cadence, plus les métriques de ses renditions et sessions.
+ */
+public class StreamMetrics implements StreamMetricsMBean {
+
+    private final int screen;
+    final String labels;
+    private final Histogram capture = Histogram.latency();
+    private final RateWindow rate = new RateWindow();
+    // Cadence accordée par le pipeline et échéances sautées, lues à la demande
+    private final DoubleSupplier scheduledFps;
+    private final LongSupplier missedDeadlines;
+    final List<RenditionMetrics> renditions = new CopyOnWriteArrayList<>();
+    final List<SessionMetrics> sessions = new CopyOnWriteArrayList<>();
+
+    public StreamMetrics(int screen, DoubleSupplier scheduledFps, LongSupplier missedDeadlines) {
+        this.screen = screen;
+        this.labels = "screen=\"" + screen + "\"";
+        this.scheduledFps = scheduledFps;
+        this.missedDeadlines = missedDeadlines;
+    }
+
+    public void addRendition(RenditionMetrics rendition) {
+        rendition.attach(this);
+        renditions.add(rendition);
+    }
+
+    public void recordCapture(long nanos) {
+        capture.record(nanos);
+    }
+
+    Histogram getCaptureHistogram() {
+        return capture;
+    }
+
+    @Override
+    public int getScreen() {
+        return screen;
+    }
+
+    @Override
+    public long getCaptures() {
+        return capture.getCount();
+    }
+
+    @Override
+    public double getCaptureFps() {
+        rate.update(capture.getCount(), 0);
+        return rate.getFramesPerSecond();
+    }
+
+    @Override
+    public double getScheduledFps() {
+        return scheduledFps.getAsDouble();
+    }
+
+    @Override
+    public long getMissedDeadlines() {
+        return missedDeadlines.getAsLong();
+    }
+
+    @Override
+    public double getCaptureMeanMillis() {
+        return capture.getMean() / 1e6;
+    }
+
+    @Override
+    public double getCaptureP99Millis() {
+        return capture.getQuantile(0.99) / 1e6;
+    }
+
+    @Override
+    public int getSessions() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,23 @@
+package fr.mrqsdf.rtspscreenconnect.metrics;
+
+/**
+ * Vue JMX des métriques de capture d'un écran.
+ */
+public interface StreamMetricsMBean {
+
+    int getScreen();
+
+    long getCaptures();
+
+    double getCaptureFps();
+
+    double getScheduledFps();
+
+    long getMissedDeadlines();
+
+    double getCaptureMeanMillis();
+
+    double getCaptureP99Millis();
+
+    int getSessions();
+}
@@ -0,0 +1,159 @@
+package fr.mrqsdf.rtspscreenconnect.pipeline;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * Threads d'appoint des traitements découpés en morceaux au sein d'une frame (bandes de conversion YUV,
+ * de réduction, slices parallèles). Possédé et dimensionné par le {@link PipelineExecutor} : la frame
+ * ne déborde pas sur le pool commun de la JVM, et le temps CPU passé par les threads d'appoint est compté
+ * dans le coût de la frame, donc dans la répartition de la capacité entre les flux.
+ *
+ * Le thread appelant prend part au travail ; il n'attend en fin d'appel que les threads d'appoint déjà
+ * lancés, jamais ceux restés en file derrière les frames d'autres flux.
+ */
+public class ParallelPool {
+
+    /**
+     * Tout sur le thread appelant, sans thread d'appoint (benchmarks, outils hors pipeline).
+     */
+    public static final ParallelPool SEQUENTIAL = new ParallelPool(1);
+
+    // Temps CPU des threads d'appoint pour le compte du thread appelant, moins son temps d'attente
+    private static final ThreadLocal<long[]> extraNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final int parallelism;
+    // null sans thread d'appoint
+    private final ExecutorService helpers;
+
+    /**
+     * @param parallelism Nombre de morceaux traités en même temps par un appel, thread appelant compris.
+     */
+    public ParallelPool(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        if (this.parallelism > 1) {
+            AtomicInteger index = new AtomicInteger();
+            this.helpers = Executors.newFixedThreadPool(this.parallelism - 1, runnable -> {
+                Thread thread = new Thread(runnable, "ParallelWorker-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.helpers = null;
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Appelle {@code task} pour chaque index de [0, count[, en parallèle, et revient quand tous sont traités.
+     * Une exception levée par un morceau est relancée dans le thread appelant.
+     */
+    public void forEach(int count, IntConsumer task) {
+        int helperCount = Math.min(count, parallelism) - 1;
+        if (helperCount <= 0) {
+            for (int i = 0; i < count; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        Call call = new Call(count, task, Thread.currentThread());
+        for (int i = 0; i < helperCount; i++) {
+            try {
+                helpers.execute(call::help);
+            } catch (RejectedExecutionException e) {
+                // Pool arrêté : le thread appelant fait le reste
+                break;
+            }
+        }
+        call.work();
+        long waitStart = System.nanoTime();
+        boolean interrupted = false;
+        while (call.active.get() > 0) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        long wait = System.nanoTime() - waitStart;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        extraNanos.get()[0] += call.helperNanos.get() - wait;
+        Throwable failure = call.failure.get();
+        if (failure instanceof RuntimeException runtime) {
+            throw runtime;
+        }
+        if (failure instanceof Error error) {
+            throw error;
+        }
+    }
+
+    /**
+     * Temps CPU consommé par les threads d'appoint pour le thread courant depuis l'appel précédent,
+     * moins le temps qu'il a passé à les attendre : à ajouter à sa durée mesurée pour obtenir le coût réel.
+     */
+    static long takeExtraNanos() {
+        long[] extra = extraNanos.get();
+        long value = extra[0];
+        extra[0] = 0;
+        return value;
+    }
+
+    public void shutdown() {
+        if (helpers != null) {
+            helpers.shutdownNow();
+        }
+    }
+
+    /**
+     * Un appel de forEach : les morceaux sont distribués à la demande entre l'appelant et les threads d'appoint.
+     */
+    private static class Call {
+        final int count;
+        final IntConsumer task;
+        final Thread caller;
+        final AtomicInteger next = new AtomicInteger();
+        // Threads d'appoint en train de traiter des morceaux de cet appel
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicLong helperNanos = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Call(int count, IntConsumer task, Thread caller) {
+            this.count = count;
+            this.task = task;
+            this.caller = caller;
+        }
+
+        void work() {
+            int i;
+            while (failure.get() == null && (i = next.getAndIncrement()) < count) {
+                try {
+                    task.accept(i);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        }
+
+        void help() {
+            active.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                // Arrivé après la fin : plus aucun index à prendre, rien n'est touché
+                work();
+            } finally {
+                helperNanos.addAndGet(System.nanoTime() - start);
+                if (active.decrementAndGet() == 0) {
+                    LockSupport.unpark(caller);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package fr.mrqsdf.rtspscreenconnect.pipeline;
+
+import fr.mrqsdf.rtspscreenconnect.utils.FrameClock;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ordonnanceur central des pipelines de tous les écrans.
+ * Un thread planifie les échéances de chaque flux et confie les frames à un nombre borné de workers,
+ * dimensionné sur les cœurs disponibles. Les frames prêtes sont servies dans l'ordre d'arrivée
+ * (rotation équitable) et un flux n'a jamais plus d'une frame en cours.
+ *
+ * Les traitements découpés en morceaux d'une frame tournent sur son {@link ParallelPool}, dimensionné comme
+ * les workers ; le temps de ses threads est compté dans le coût de la frame.
+ *
+ * Chaque seconde, le coût mesuré d'une frame de chaque flux sert à répartir la capacité CPU :
+ * partage max-min, chaque flux obtient au plus sa part équitable et les parts inutilisées sont redistribuées.
+ * Quand la demande dépasse la capacité, la cadence des flux les plus coûteux baisse, aucun n'est affamé.
+ */
+public class PipelineExecutor extends Thread {
+
+    // Part de la capacité des workers réellement planifiée, le reste absorbe les variations
+    private static final double CPU_UTILIZATION = 0.9;
+    private static final long REBALANCE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Attente maximale de l'ordonnanceur quand aucun flux n'est actif
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Lissage du coût mesuré d'une frame
+    private static final double COST_SMOOTHING = 0.2;
+
+    private final int workers;
+    private final ExecutorService pool;
+    private final ParallelPool parallelPool;
+    private final List<StreamState> streams = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    private static class StreamState {
+        final PipelineStream stream;
+        final FrameClock clock;
+        final AtomicBoolean inFlight = new AtomicBoolean(false);
+        // Échéances consommées pendant que la frame précédente était encore en cours (écrit par l'ordonnanceur)
+        volatile long busySkips = 0;
+        // Temps CPU moyen d'une frame, en nanosecondes
+        volatile double frameCostNanos = 0;
+        volatile double effectiveFps;
+
+        StreamState(PipelineStream stream) {
+            this.stream = stream;
+            this.effectiveFps = stream.getTargetFps();
+            this.clock = new FrameClock(stream.getTargetFps());
+        }
+    }
+
+    public PipelineExecutor() {
+        this(defaultWorkers());
+    }
+
+    public PipelineExecutor(int workers) {
+        super("PipelineExecutor");
+        setDaemon(true);
+        this.workers = Math.max(1, workers);
+        AtomicInteger index = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.workers, runnable -> {
+            Thread thread = new Thread(runnable, "PipelineWorker-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.parallelPool = new ParallelPool(this.workers);
+    }
+
+    /**
+     * Un cœur est laissé aux threads réseau, les autres encodent.
+     */
+    public static int defaultWorkers() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Pool des traitements parallèles au sein d'une frame (conversion, réduction, slices).
+     */
+    public ParallelPool getParallelPool() {
+        return parallelPool;
+    }
+
+    public void register(PipelineStream stream) {
+        streams.add(new StreamState(stream));
+        wakeUp();
+    }
+
+    public void unregister(PipelineStream stream) {
+        streams.removeIf(state -> state.stream == stream);
+    }
+
+    /**
+     * Réveille l'ordonnanceur, par exemple quand un flux devient actif (PLAY).
+     */
+    public void wakeUp() {
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Cadence effectivement accordée au flux après répartition de la capacité.
+     */
+    public double getEffectiveFps(PipelineStream stream) {
+        for (StreamState state : streams) {
+            if (state.stream == stream) {
+                return state.effectiveFps;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Nombre d'échéances sautées pour ce flux (pipeline en retard ou frame précédente pas terminée).
+     */
+    public long getDroppedFrames(PipelineStream stream) {
+        for (StreamState state : streams) {
+            if (state.stream == stream) {
+                return state.clock.getDroppedFrames() + state.busySkips;
+            }
+        }
+        return 0;
+    }
+
+    public void shutdown() {
+        running = false;
+        interrupt();
+        pool.shutdownNow();
+        parallelPool.shutdown();
+    }
+
+    @Override
+    public void run() {
+        long lastRebalance = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            if (now - lastRebalance >= REBALANCE_NANOS) {
+                rebalance();
+                lastRebalance = now;
+            }
+            long wakeUp = now + IDLE_NANOS;
+            for (StreamState state : streams) {
+                if (!state.stream.isActive()) {
+                    state.clock.reset();
+                    continue;
+                }
+                state.clock.setFrameRate(state.effectiveFps);
+                long deadline = state.clock.getNextDeadline(now);
+                if (deadline <= now) {
+                    // Échéance consommée même si la frame précédente n'est pas finie : elle est alors sautée
+                    state.clock.advance(now);
+                    if (state.inFlight.compareAndSet(false, true)) {
+                        pool.execute(() -> runFrame(state));
+                    } else {
+                        state.busySkips++;
+                    }
+                    deadline = state.clock.getNextDeadline(now);
+                }
+                wakeUp = Math.min(wakeUp, deadline);
+            }
+            long wait = wakeUp - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    private void runFrame(StreamState state) {
+        long start = System.nanoTime();
+        ParallelPool.takeExtraNanos();
+        try {
+            state.stream.processFrame();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // Durée de la frame plus le temps des threads d'appoint qui l'ont aidée
+            double cost = System.nanoTime() - start + ParallelPool.takeExtraNanos();
+            state.frameCostNanos = state.frameCostNanos == 0 ? cost
+                    : state.frameCostNanos + COST_SMOOTHING * (cost - state.frameCostNanos);
+            state.inFlight.set(false);
+        }
+    }
+
+    /**
+     * Répartit la capacité des workers entre les flux actifs (partage max-min).
+     */
+    private void rebalance() {
+        List<StreamState> active = new ArrayList<>();
+        for (StreamState state : streams) {
+            if (state.stream.isActive()) {
+                active.add(state);
+            } else {
+                state.effectiveFps = state.stream.getTargetFps();
+            }
+        }
+        // Demande de chaque flux en nanosecondes de CPU par seconde, de la plus faible à la plus forte
+        active.sort(Comparator.comparingDouble(state -> state.frameCostNanos * state.stream.getTargetFps()));
+        double remaining = workers * CPU_UTILIZATION * REBALANCE_NANOS;
+        for (int i = 0; i < active.size(); i++) {
+            StreamState state = active.get(i);
+            int target = state.stream.getTargetFps();
+            double demand = state.frameCostNanos * target;
+            double share = remaining / (active.size() - i);
+            double granted = Math.min(demand, share);
+            remaining -= granted;
+            double fps = state.frameCostNanos > 0 ? Math.min(target, granted / state.frameCostNanos) : target;
+            // Au moins une image par seconde, quelle que soit la charge
+            state.effectiveFps = Math.max(1, fps);
+        }
+    }
+}
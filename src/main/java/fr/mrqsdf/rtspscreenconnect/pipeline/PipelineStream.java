@@ -0,0 +1,24 @@
+package fr.mrqsdf.rtspscreenconnect.pipeline;
+
+/**
+ * Un flux dont les frames (capture, conversion, encodage, diffusion) sont ordonnancées
+ * par le {@link PipelineExecutor}.
+ */
+public interface PipelineStream {
+
+    /**
+     * Vrai si le flux doit produire des frames (au moins un client en PLAY).
+     */
+    boolean isActive();
+
+    /**
+     * Cadence demandée pour ce flux, en images par seconde.
+     */
+    int getTargetFps();
+
+    /**
+     * Produit une frame. Jamais appelé en parallèle pour un même flux.
+     */
+    void processFrame() throws Exception;
+
+}
@@ -0,0 +1,213 @@
+package fr.mrqsdf.rtspscreenconnect.record;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Écriture des boîtes d'un MP4 fragmenté (ISO BMFF) à une piste vidéo H.264.
+ *
+ * Un segment commence par un en-tête d'initialisation (ftyp + moov sans échantillons, avec le SPS/PPS
+ * dans avcC et un mvex qui annonce des fragments), suivi de fragments moof + mdat. Chaque fragment est lisible
+ * dès qu'il est écrit : un enregistrement interrompu reste exploitable jusqu'au dernier fragment complet.
+ * Les boîtes sont écrites à la main : le MP4Muxer de jcodec ne produit que des fichiers non fragmentés,
+ * avec le moov écrit à la fin.
+ */
+public class FragmentedMp4Writer {
+
+    // Horloge de la piste : celle du RTP H.264
+    public static final int TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int TRACK_ID = 1;
+    // Drapeaux d'échantillon : IDR sans dépendance, ou P-frame dépendante et non synchronisable
+    private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+    private static final int NON_SYNC_SAMPLE_FLAGS = 0x01010000;
+    // trun : data_offset, puis durée, taille et drapeaux pour chaque échantillon
+    private static final int TRUN_FLAGS = 0x000701;
+    // tfhd : les offsets sont relatifs au début du moof
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int[] UNITY_MATRIX = {0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000};
+
+    private FragmentedMp4Writer() {
+    }
+
+    /**
+     * Taille maximale de l'en-tête d'initialisation pour des paramètres de cette taille.
+     */
+    public static int initSegmentSize(int spsLength, int ppsLength) {
+        return 1024 + spsLength + ppsLength;
+    }
+
+    /**
+     * Taille du moof et de l'en-tête mdat d'un fragment de {@code samples} échantillons.
+     */
+    public static int fragmentHeaderSize(int samples) {
+        return 8 + 16 + 8 + 16 + 20 + 20 + 12 * samples + 8;
+    }
+
+    /**
+     * Écrit ftyp et moov pour une piste de la taille donnée.
+     * @param sps Le SPS, NAL complète sans code de début.
+     * @param pps Le PPS, NAL complète sans code de début.
+     */
+    public static void writeInitSegment(ByteBuffer out, int width, int height, byte[] sps, byte[] pps) {
+        int ftyp = begin(out, "ftyp");
+        out.put(ascii("isom")).putInt(0x200);
+        out.put(ascii("isom")).put(ascii("iso6")).put(ascii("avc1")).put(ascii("mp41"));
+        end(out, ftyp);
+
+        int moov = begin(out, "moov");
+        int mvhd = beginFull(out, "mvhd", 0, 0);
+        out.putInt(0).putInt(0).putInt(MOVIE_TIMESCALE).putInt(0);
+        out.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putLong(0);
+        putMatrix(out);
+        for (int i = 0; i < 6; i++) {
+            out.putInt(0);
+        }
+        out.putInt(TRACK_ID + 1);
+        end(out, mvhd);
+
+        int trak = begin(out, "trak");
+        // Piste active, présente dans le film
+        int tkhd = beginFull(out, "tkhd", 0, 3);
+        out.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0);
+        out.putLong(0).putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        putMatrix(out);
+        out.putInt(width << 16).putInt(height << 16);
+        end(out, tkhd);
+
+        int mdia = begin(out, "mdia");
+        int mdhd = beginFull(out, "mdhd", 0, 0);
+        // Langue "und" en ISO-639-2/T compacté
+        out.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putShort((short) 0x55C4).putShort((short) 0);
+        end(out, mdhd);
+        int hdlr = beginFull(out, "hdlr", 0, 0);
+        out.putInt(0).put(ascii("vide")).putInt(0).putInt(0).putInt(0);
+        out.put(ascii("VideoHandler")).put((byte) 0);
+        end(out, hdlr);
+
+        int minf = begin(out, "minf");
+        int vmhd = beginFull(out, "vmhd", 0, 1);
+        out.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        end(out, vmhd);
+        int dinf = begin(out, "dinf");
+        int dref = beginFull(out, "dref", 0, 0);
+        out.putInt(1);
+        // Données dans le même fichier
+        end(out, beginFull(out, "url ", 0, 1));
+        end(out, dref);
+        end(out, dinf);
+
+        int stbl = begin(out, "stbl");
+        int stsd = beginFull(out, "stsd", 0, 0);
+        out.putInt(1);
+        writeAvc1(out, width, height, sps, pps);
+        end(out, stsd);
+        // Tables vides : les échantillons sont dans les fragments
+        int stts = beginFull(out, "stts", 0, 0);
+        out.putInt(0);
+        end(out, stts);
+        int stsc = beginFull(out, "stsc", 0, 0);
+        out.putInt(0);
+        end(out, stsc);
+        int stsz = beginFull(out, "stsz", 0, 0);
+        out.putInt(0).putInt(0);
+        end(out, stsz);
+        int stco = beginFull(out, "stco", 0, 0);
+        out.putInt(0);
+        end(out, stco);
+        end(out, stbl);
+        end(out, minf);
+        end(out, mdia);
+        end(out, trak);
+
+        int mvex = begin(out, "mvex");
+        int trex = beginFull(out, "trex", 0, 0);
+        out.putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0);
+        end(out, trex);
+        end(out, mvex);
+        end(out, moov);
+    }
+
+    private static void writeAvc1(ByteBuffer out, int width, int height, byte[] sps, byte[] pps) {
+        int avc1 = begin(out, "avc1");
+        out.put(new byte[6]).putShort((short) 1);
+        out.putShort((short) 0).putShort((short) 0).putInt(0).putInt(0).putInt(0);
+        out.putShort((short) width).putShort((short) height);
+        // 72 dpi, une image par échantillon, nom de compresseur vide, 24 bits, pas de table de couleurs
+        out.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1);
+        out.put(new byte[32]);
+        out.putShort((short) 0x0018).putShort((short) -1);
+
+        int avcC = begin(out, "avcC");
+        // Version, profil, compatibilité et niveau repris du SPS, longueurs de NAL sur 4 octets
+        out.put((byte) 1).put(sps[1]).put(sps[2]).put(sps[3]).put((byte) 0xFF);
+        out.put((byte) 0xE1).putShort((short) sps.length).put(sps);
+        out.put((byte) 1).putShort((short) pps.length).put(pps);
+        end(out, avcC);
+        end(out, avc1);
+    }
+
+    /**
+     * Écrit le moof d'un fragment et l'en-tête de son mdat ; les données des échantillons
+     * (NAL préfixées par leur longueur sur 4 octets) suivent directement dans le fichier.
+     * @param sequence Numéro du fragment dans le segment, à partir de 1.
+     * @param baseDecodeTime Instant de décodage du premier échantillon, en {@link #TIMESCALE}.
+     * @param durations Durée de chaque échantillon, en {@link #TIMESCALE}.
+     * @param dataSize Taille totale des données des échantillons.
+     */
+    public static void writeFragmentHeader(ByteBuffer out, int sequence, long baseDecodeTime, int count,
+                                           int[] durations, int[] sizes, boolean[] keyFrames, int dataSize) {
+        int moof = begin(out, "moof");
+        int mfhd = beginFull(out, "mfhd", 0, 0);
+        out.putInt(sequence);
+        end(out, mfhd);
+
+        int traf = begin(out, "traf");
+        int tfhd = beginFull(out, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+        out.putInt(TRACK_ID);
+        end(out, tfhd);
+        int tfdt = beginFull(out, "tfdt", 1, 0);
+        out.putLong(baseDecodeTime);
+        end(out, tfdt);
+        int trun = beginFull(out, "trun", 0, TRUN_FLAGS);
+        out.putInt(count);
+        int dataOffsetPosition = out.position();
+        out.putInt(0);
+        for (int i = 0; i < count; i++) {
+            out.putInt(durations[i]).putInt(sizes[i]).putInt(keyFrames[i] ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS);
+        }
+        end(out, trun);
+        end(out, traf);
+        end(out, moof);
+        // Les données commencent juste après l'en-tête du mdat
+        out.putInt(dataOffsetPosition, out.position() - moof + 8);
+
+        out.putInt(8 + dataSize).put(ascii("mdat"));
+    }
+
+    private static int begin(ByteBuffer out, String type) {
+        int start = out.position();
+        out.putInt(0).put(ascii(type));
+        return start;
+    }
+
+    private static int beginFull(ByteBuffer out, String type, int version, int flags) {
+        int start = begin(out, type);
+        out.putInt(version << 24 | flags);
+        return start;
+    }
+
+    private static void end(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start);
+    }
+
+    private static void putMatrix(ByteBuffer out) {
+        for (int value : UNITY_MATRIX) {
+            out.putInt(value);
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,395 @@
+package fr.mrqsdf.rtspscreenconnect.record;
+
+import fr.mrqsdf.rtspscreenconnect.rtsp.FrameQueue;
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+import fr.mrqsdf.rtspscreenconnect.utils.NalUnitScanner;
+import org.jcodec.codecs.h264.H264Utils;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.common.model.Size;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Enregistre les frames déjà encodées d'un flux dans des segments MP4 fragmentés, sans second encodage.
+ *
+ * Le thread de capture ne fait que déposer chaque frame dans une {@link FrameQueue} : le multiplexage et les
+ * écritures sur disque se font sur le thread de l'enregistreur. Si le disque ralentit, la file se remplit et
+ * les frames suivantes sont abandonnées jusqu'à la prochaine IDR : le flux RTP n'attend jamais le disque.
+ *
+ * Un fragment couvre un GOP (au plus {@link #MAX_FRAGMENT_NANOS}) et part en une seule écriture groupée.
+ * Un segment est fermé, et le suivant ouvert sur une IDR, quand il atteint sa taille ou sa durée maximale,
+ * ou quand le SPS change (nouvelle résolution).
+ */
+public class StreamRecorder extends Thread {
+
+    // Frames en attente d'écriture avant d'appliquer la politique de perte
+    private static final int QUEUE_CAPACITY = 64;
+    // Durée maximale d'un fragment : au-delà, il est écrit même sans nouvelle IDR
+    private static final long MAX_FRAGMENT_NANOS = 2_000_000_000L;
+    private static final int INITIAL_FRAGMENT_BUFFER = 4 << 20;
+    // Attente maximale d'une frame avant de revérifier l'arrêt
+    private static final long POLL_NANOS = 200_000_000L;
+    // Attente de l'écriture du dernier fragment à l'arrêt, bornée pour un disque bloqué
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+    private static final DateTimeFormatter FILE_DATE = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final Path directory;
+    private final String baseName;
+    private final long maxSegmentBytes;
+    private final long maxSegmentNanos;
+    private final Runnable keyFrameRequester;
+    private final FrameQueue frameQueue;
+    private final NalUnitScanner scanner = new NalUnitScanner();
+    private volatile boolean running = true;
+
+    // Segment en cours (thread de l'enregistreur uniquement)
+    private FileChannel channel;
+    private Path segmentPath;
+    private byte[] sps;
+    private byte[] pps;
+    private long segmentStartNanos;
+    private long segmentBytes;
+    private int fragmentSequence;
+    private boolean rotationRequested;
+    // Instant de décodage, en 90 kHz depuis le début du segment, du premier échantillon du fragment en cours
+    private long fragmentDecodeTime;
+
+    // Fragment en cours : échantillons au format longueur + NAL, et leurs caractéristiques
+    private ByteBuffer fragmentData = ByteBuffer.allocateDirect(INITIAL_FRAGMENT_BUFFER);
+    private ByteBuffer headerBuffer = ByteBuffer.allocateDirect(FragmentedMp4Writer.fragmentHeaderSize(64));
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[2];
+    private int sampleCount;
+    private long[] sampleTimes = new long[64];
+    private int[] sampleSizes = new int[64];
+    private int[] sampleDurations = new int[64];
+    private boolean[] sampleKeyFrames = new boolean[64];
+    private long lastSampleDuration;
+
+    private volatile long framesWritten;
+    private volatile long bytesWritten;
+    private volatile int segments;
+
+    /**
+     * @param directory Dossier des segments, créé au besoin.
+     * @param baseName Début du nom des fichiers, suivi de la date et l'heure d'ouverture du segment.
+     * @param maxSegmentBytes Taille à partir de laquelle un nouveau segment est ouvert.
+     * @param maxSegmentNanos Durée à partir de laquelle un nouveau segment est ouvert.
+     * @param keyFrameRequester Demande une IDR à l'encodeur quand un segment doit être fermé.
+     */
+    public StreamRecorder(Path directory, String baseName, long maxSegmentBytes, long maxSegmentNanos,
+                          Runnable keyFrameRequester) {
+        super("StreamRecorder-" + baseName);
+        setDaemon(true);
+        this.directory = directory;
+        this.baseName = baseName;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentNanos = maxSegmentNanos;
+        this.keyFrameRequester = keyFrameRequester;
+        // Pas de demande d'IDR sur perte : le flux en direct n'a pas à payer pour un disque lent
+        this.frameQueue = new FrameQueue(QUEUE_CAPACITY, null);
+    }
+
+    /**
+     * Met une frame en file d'écriture (thread de capture, sans attente).
+     * L'enregistreur prend possession de la référence.
+     */
+    public void queueFrame(EncodedFrame encodedFrame) {
+        if (!running) {
+            encodedFrame.release();
+            return;
+        }
+        frameQueue.offer(encodedFrame);
+    }
+
+    /**
+     * Arrête l'enregistrement : le fragment en cours est écrit et le segment fermé.
+     * Le thread n'est pas interrompu, ce qui fermerait le FileChannel au milieu d'une écriture.
+     */
+    public void close() {
+        running = false;
+        try {
+            join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Path getSegmentPath() {
+        return segmentPath;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Frames abandonnées : disque trop lent, ou en attente de la première IDR.
+     */
+    public long getDroppedFrames() {
+        return frameQueue.getDroppedFrames();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            System.out.println("Dossier d'enregistrement inaccessible : " + directory);
+            e.printStackTrace();
+        }
+        while (running) {
+            EncodedFrame frame = frameQueue.poll(POLL_NANOS);
+            if (frame == null) {
+                continue;
+            }
+            try {
+                writeFrame(frame);
+            } catch (IOException e) {
+                // Disque plein ou retiré : on réessaiera sur un nouveau segment à la prochaine IDR
+                e.printStackTrace();
+                abortSegment();
+            } finally {
+                frame.release();
+            }
+        }
+        try {
+            closeSegment(-1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            abortSegment();
+        }
+        frameQueue.clear();
+    }
+
+    private void writeFrame(EncodedFrame frame) throws IOException {
+        long time = frame.getCaptureTimeNanos();
+        if (frame.isKeyFrame()) {
+            byte[][] parameterSets = findParameterSets(frame);
+            boolean changed = parameterSets[0] != null && sps != null
+                    && (!Arrays.equals(parameterSets[0], sps) || !Arrays.equals(parameterSets[1], pps));
+            if (channel != null && (changed || segmentBytes >= maxSegmentBytes
+                    || time - segmentStartNanos >= maxSegmentNanos)) {
+                closeSegment(time);
+            }
+            if (channel == null) {
+                if (parameterSets[0] == null || parameterSets[1] == null) {
+                    return;
+                }
+                openSegment(parameterSets[0], parameterSets[1], time);
+            } else if (sampleCount > 0) {
+                flushFragment(time);
+            }
+        } else {
+            if (channel == null) {
+                // Segment perdu sur une erreur : attendre une IDR
+                return;
+            }
+            if (sampleCount > 0 && time - sampleTimes[0] >= MAX_FRAGMENT_NANOS) {
+                flushFragment(time);
+            }
+            if (!rotationRequested && (segmentBytes >= maxSegmentBytes || time - segmentStartNanos >= maxSegmentNanos)) {
+                // Une seule IDR demandée pour fermer le segment sans attendre la fin du GOP
+                rotationRequested = true;
+                if (keyFrameRequester != null) {
+                    keyFrameRequester.run();
+                }
+            }
+        }
+        appendSample(frame);
+    }
+
+    /**
+     * Recopie les NAL de slice de la frame dans le fragment, préfixées par leur longueur.
+     * Le SPS et le PPS sont dans l'en-tête du segment, pas dans les échantillons.
+     */
+    private void appendSample(EncodedFrame frame) {
+        int start = fragmentData.position();
+        ensureFragmentCapacity(frame.getLength() + 64);
+        scanner.reset(frame.getData(), frame.getOffset(), frame.getLength());
+        while (scanner.next()) {
+            int type = scanner.getNalType();
+            if (type == 7 || type == 8) {
+                continue;
+            }
+            ensureFragmentCapacity(4 + scanner.getNalLength());
+            fragmentData.putInt(scanner.getNalLength());
+            fragmentData.put(frame.getData(), scanner.getNalOffset(), scanner.getNalLength());
+        }
+        if (sampleCount == sampleTimes.length) {
+            int capacity = sampleCount * 2;
+            sampleTimes = Arrays.copyOf(sampleTimes, capacity);
+            sampleSizes = Arrays.copyOf(sampleSizes, capacity);
+            sampleDurations = Arrays.copyOf(sampleDurations, capacity);
+            sampleKeyFrames = Arrays.copyOf(sampleKeyFrames, capacity);
+        }
+        sampleTimes[sampleCount] = frame.getCaptureTimeNanos();
+        sampleSizes[sampleCount] = fragmentData.position() - start;
+        sampleKeyFrames[sampleCount] = frame.isKeyFrame();
+        sampleCount++;
+        framesWritten++;
+    }
+
+    private void ensureFragmentCapacity(int bytes) {
+        if (fragmentData.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(fragmentData.capacity() * 2, fragmentData.position() + bytes));
+        fragmentData.flip();
+        larger.put(fragmentData);
+        fragmentData = larger;
+    }
+
+    /**
+     * Écrit le fragment en cours : moof, en-tête mdat et données en une seule écriture groupée.
+     * @param nextTime Instant de capture de la frame suivante, pour la durée du dernier échantillon (-1 si inconnu).
+     */
+    private void flushFragment(long nextTime) throws IOException {
+        if (sampleCount == 0) {
+            return;
+        }
+        long decodeTime = fragmentDecodeTime;
+        for (int i = 0; i < sampleCount; i++) {
+            long end;
+            if (i + 1 < sampleCount) {
+                end = sampleTimes[i + 1];
+            } else if (nextTime >= 0) {
+                end = nextTime;
+            } else {
+                // Fin d'enregistrement : même durée que l'échantillon précédent
+                end = sampleTimes[i] + lastSampleDuration;
+            }
+            long endDecodeTime = toTimescale(end - segmentStartNanos);
+            sampleDurations[i] = (int) Math.max(1, endDecodeTime - decodeTime);
+            lastSampleDuration = Math.max(1, end - sampleTimes[i]);
+            decodeTime += sampleDurations[i];
+        }
+
+        int headerSize = FragmentedMp4Writer.fragmentHeaderSize(sampleCount);
+        if (headerBuffer.capacity() < headerSize) {
+            headerBuffer = ByteBuffer.allocateDirect(headerSize * 2);
+        }
+        headerBuffer.clear();
+        fragmentData.flip();
+        FragmentedMp4Writer.writeFragmentHeader(headerBuffer, ++fragmentSequence, fragmentDecodeTime, sampleCount,
+                sampleDurations, sampleSizes, sampleKeyFrames, fragmentData.remaining());
+        headerBuffer.flip();
+        writeBuffers[0] = headerBuffer;
+        writeBuffers[1] = fragmentData;
+        writeFully(writeBuffers);
+
+        fragmentDecodeTime = decodeTime;
+        fragmentData.clear();
+        sampleCount = 0;
+    }
+
+    private void openSegment(byte[] sps, byte[] pps, long time) throws IOException {
+        SeqParameterSet parsed = H264Utils.readSPS(ByteBuffer.wrap(sps, 1, sps.length - 1));
+        Size size = H264Utils.getPicSize(parsed);
+        Path path = nextSegmentPath();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentPath = path;
+        this.sps = sps;
+        this.pps = pps;
+        segmentStartNanos = time;
+        segmentBytes = 0;
+        fragmentSequence = 0;
+        fragmentDecodeTime = 0;
+        rotationRequested = false;
+        segments++;
+
+        ByteBuffer init = ByteBuffer.allocate(FragmentedMp4Writer.initSegmentSize(sps.length, pps.length));
+        FragmentedMp4Writer.writeInitSegment(init, size.getWidth(), size.getHeight(), sps, pps);
+        init.flip();
+        writeFully(new ByteBuffer[]{init});
+        System.out.println("Enregistrement : " + path + " (" + size.getWidth() + "x" + size.getHeight() + ")");
+    }
+
+    /**
+     * Écrit le dernier fragment et ferme le segment.
+     * @param nextTime Instant de capture de la frame qui ouvre le segment suivant, -1 en fin d'enregistrement.
+     */
+    private void closeSegment(long nextTime) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        flushFragment(nextTime);
+        channel.close();
+        channel = null;
+    }
+
+    /**
+     * Abandonne le segment après une erreur d'écriture ; les fragments déjà écrits restent lisibles.
+     */
+    private void abortSegment() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Déjà en erreur
+            }
+            channel = null;
+        }
+        fragmentData.clear();
+        sampleCount = 0;
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        long written = 0;
+        while (written < total) {
+            written += channel.write(buffers);
+        }
+        segmentBytes += total;
+        bytesWritten += total;
+    }
+
+    private Path nextSegmentPath() {
+        String name = baseName + "-" + LocalDateTime.now().format(FILE_DATE);
+        Path path = directory.resolve(name + ".mp4");
+        for (int i = 1; Files.exists(path); i++) {
+            path = directory.resolve(name + "-" + i + ".mp4");
+        }
+        return path;
+    }
+
+    /**
+     * SPS et PPS de la frame (NAL sans code de début), null s'ils sont absents.
+     */
+    private byte[][] findParameterSets(EncodedFrame frame) {
+        byte[][] sets = new byte[2][];
+        scanner.reset(frame.getData(), frame.getOffset(), frame.getLength());
+        while (scanner.next()) {
+            int type = scanner.getNalType();
+            if (type == 7 || type == 8) {
+                sets[type - 7] = Arrays.copyOfRange(frame.getData(), scanner.getNalOffset(),
+                        scanner.getNalOffset() + scanner.getNalLength());
+            } else if (type == 1 || type == 5) {
+                break;
+            }
+        }
+        return sets;
+    }
+
+    private static long toTimescale(long nanos) {
+        return nanos * FragmentedMp4Writer.TIMESCALE / 1_000_000_000L;
+    }
+}
@@ -13,6 +13,34 @@ public class Data {
 
     public volatile static int fps = 15;
     public volatile static int port = 8554;
+    // Slices encodées en parallèle par frame, 0 = selon la hauteur de l'écran
+    public volatile static int slices = 0;
+    // Renditions par défaut de chaque écran ("native" ou hauteur en "p")
+    public volatile static String[] renditions = {"1080p", "360p"};
+    // Contrôle adaptatif de la qualité, de la cadence et de la résolution selon l'état des clients
+    public volatile static boolean adaptive = true;
+    // Lien UDP dégradé simulé (part de paquets perdus, débit max en kbit/s, 0 = illimité) pour éprouver l'adaptatif
+    public volatile static double simulatedLoss = 0;
+    public volatile static int simulatedBandwidth = 0;
+    // Dossier d'enregistrement MP4 des flux (null = pas d'enregistrement), taille et durée max d'un segment
+    public volatile static String recordDirectory = null;
+    public volatile static int recordSegmentMegabytes = 512;
+    public volatile static int recordSegmentMinutes = 15;
+    // Différé gardé en mémoire pour chaque écran (secondes, 0 = désactivé) et mémoire maximale qu'il occupe
+    public volatile static int timeShiftSeconds = 120;
+    public volatile static int timeShiftMegabytes = 64;
+    // Délai d'expiration annoncé des sessions RTSP sans requête ni rapport RTCP (secondes)
+    public volatile static int sessionTimeoutSeconds = 60;
+    // Multicast (Transport RTP/AVP;multicast) : premier groupe attribué, port RTP commun aux groupes,
+    // TTL des paquets et interface d'émission (nom ou adresse, null = celle de la connexion RTSP)
+    public volatile static String multicastAddress = "239.255.42.1";
+    public volatile static int multicastPort = 5004;
+    public volatile static int multicastTtl = 1;
+    public volatile static String multicastInterface = null;
+    // Port HTTP des métriques Prometheus (/metrics), 0 pour désactiver
+    public volatile static int metricsPort = 9404;
+    // Adresse d'écoute des métriques, null = boucle locale uniquement
+    public volatile static String metricsAddress = null;
     public volatile static Scene scene;
     public volatile static BorderPane root;
     public volatile static ObservableList<String> data;
@@ -0,0 +1,84 @@
+package fr.mrqsdf.rtspscreenconnect.resource;
+
+/**
+ * Variante de résolution d'un flux, choisie par le client au SETUP ("native", "1080p", "360p"...).
+ * La hauteur cible conserve le rapport d'aspect de l'écran ; 0 signifie la résolution native.
+ */
+public class Rendition {
+
+    public static final String NATIVE = "native";
+
+    private final String name;
+    private final int height;
+
+    public Rendition(String name, int height) {
+        this.name = name;
+        this.height = Math.max(0, height);
+    }
+
+    /**
+     * Lit une rendition depuis son nom : "native", ou une hauteur suivie de "p" (ex. "720p").
+     * @return La rendition, ou null si le nom n'est pas reconnu.
+     */
+    public static Rendition parse(String name) {
+        if (name == null) {
+            return null;
+        }
+        String lower = name.trim().toLowerCase();
+        if (NATIVE.equals(lower)) {
+            return new Rendition(NATIVE, 0);
+        }
+        if (lower.length() > 1 && lower.endsWith("p")) {
+            try {
+                int height = Integer.parseInt(lower.substring(0, lower.length() - 1));
+                if (height > 0) {
+                    return new Rendition(lower, height);
+                }
+            } catch (NumberFormatException ignored) {
+                // Pas une hauteur
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Vrai si la rendition n'est pas plus petite que la source : la capture est alors encodée telle quelle.
+     */
+    public boolean isNative(int sourceHeight) {
+        return height == 0 || height >= sourceHeight;
+    }
+
+    /**
+     * Largeur cible pour une source donnée, paire, rapport d'aspect conservé.
+     */
+    public int getWidth(int sourceWidth, int sourceHeight) {
+        if (isNative(sourceHeight)) {
+            return sourceWidth;
+        }
+        int width = (int) Math.round((double) sourceWidth * height / sourceHeight);
+        return Math.max(2, width & ~1);
+    }
+
+    /**
+     * Hauteur cible pour une source donnée, paire.
+     */
+    public int getHeight(int sourceHeight) {
+        if (isNative(sourceHeight)) {
+            return sourceHeight;
+        }
+        return Math.max(2, height & ~1);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
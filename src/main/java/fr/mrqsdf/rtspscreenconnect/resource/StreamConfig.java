@@ -0,0 +1,33 @@
+package fr.mrqsdf.rtspscreenconnect.resource;
+
+/**
+ * Réglages propres à un flux (un écran). Les valeurs par défaut sont reprises de {@link Data}
+ * au moment de la création, chaque flux peut ensuite être ajusté indépendamment.
+ */
+public class StreamConfig {
+
+    public volatile int fps = Data.fps;
+    // Longueur du GOP en frames : une I-frame (IDR) puis gopSize - 1 P-frames
+    public volatile int gopSize = Data.fps * 2;
+    // Slices encodées en parallèle par frame (1 = un seul thread par frame, 0 = automatique)
+    public volatile int slices = Data.slices;
+    // Renditions proposées en plus de la résolution native, choisies par le client au SETUP
+    public volatile String[] renditions = Data.renditions.clone();
+    // Qualité, cadence et résolution de chaque rendition ajustées selon ses clients
+    public volatile boolean adaptive = Data.adaptive;
+    // Enregistrement de la résolution native en MP4 fragmenté, null pour ne pas enregistrer
+    public volatile String recordDirectory = Data.recordDirectory;
+    public volatile long recordSegmentBytes = Data.recordSegmentMegabytes * 1024L * 1024L;
+    public volatile long recordSegmentNanos = Data.recordSegmentMinutes * 60_000_000_000L;
+    // Différé en mémoire, relu par PLAY avec Range : durée (0 = désactivé) et mémoire maximale de l'écran
+    public volatile int timeShiftSeconds = Data.timeShiftSeconds;
+    public volatile long timeShiftBytes = Data.timeShiftMegabytes * 1024L * 1024L;
+    // Session RTSP libérée après ce délai sans requête ni rapport RTCP du client
+    public volatile int sessionTimeoutSeconds = Data.sessionTimeoutSeconds;
+    // Diffusion multicast : un groupe par rendition, pris à partir de multicastAddress
+    public volatile String multicastAddress = Data.multicastAddress;
+    public volatile int multicastPort = Data.multicastPort;
+    public volatile int multicastTtl = Data.multicastTtl;
+    public volatile String multicastInterface = Data.multicastInterface;
+
+}
@@ -0,0 +1,324 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.metrics.RenditionMetrics;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Contrôle adaptatif en boucle fermée d'une rendition : qualité (QP), cadence et, en dernier recours,
+ * résolution, ajustées selon l'état des clients qui la regardent.
+ *
+ * Chaque seconde, les signaux de chaque session sont relevés : frames abandonnées par la file, profondeur de file,
+ * part du temps passée à envoyer (contre-pression du socket), et, quand le client envoie des rapports RTCP,
+ * perte, gigue et hausse du RTT. Une seule frame encodée est partagée par tous les clients de la rendition :
+ * c'est le client le plus en difficulté qui décide.
+ *
+ * Les réglages suivent une échelle de niveaux ; une congestion fait descendre aussitôt (de deux niveaux si des
+ * frames sont perdues), puis il faut {@link #INITIAL_UPGRADE_DELAY_NANOS} sans alerte pour remonter d'un niveau.
+ * Une remontée suivie de près par une congestion double ce délai, pour ne pas osciller autour de la limite du lien.
+ */
+public class AdaptiveController {
+
+    /**
+     * État d'un lien pendant un intervalle de mesure, du meilleur au pire.
+     */
+    public enum Congestion {
+        // Aucun signal : une remontée est possible
+        CLEAR,
+        // Signal faible : on reste au niveau courant
+        HOLD,
+        // On descend d'un niveau
+        CONGESTED,
+        // Frames perdues ou pertes fortes : on descend de deux niveaux
+        SEVERE
+    }
+
+    /**
+     * Réglages d'un niveau : décalage de QP, une capture encodée sur {@code frameInterval}, échelle en pourcents.
+     */
+    public record Level(int qpOffset, int frameInterval, int scalePercent) {
+    }
+
+    private static final Level[] LEVELS = {
+            new Level(0, 1, 100),
+            new Level(4, 1, 100),
+            new Level(8, 1, 100),
+            new Level(8, 2, 100),
+            new Level(10, 2, 75),
+            new Level(12, 3, 50),
+            new Level(14, 4, 50)
+    };
+
+    private static final long EVALUATION_INTERVAL_NANOS = 1_000_000_000L;
+    // Après une descente, laisser la file se vider avant de juger le nouveau niveau
+    private static final long DOWN_HOLDOFF_NANOS = 2_000_000_000L;
+    private static final long INITIAL_UPGRADE_DELAY_NANOS = 5_000_000_000L;
+    private static final long MAX_UPGRADE_DELAY_NANOS = 60_000_000_000L;
+    // Une congestion moins de 10 s après une remontée : la remontée était de trop
+    private static final long PROBE_WINDOW_NANOS = 10_000_000_000L;
+    // 30 s sans congestion : le délai de remontée revient à sa valeur initiale
+    private static final long STABLE_NANOS = 30_000_000_000L;
+    // Plus petite hauteur produite par la réduction d'échelle
+    private static final int MIN_SCALED_HEIGHT = 120;
+
+    // Seuils des signaux
+    private static final double LOSS_SEVERE = 0.10;
+    private static final double LOSS_CONGESTED = 0.03;
+    private static final double LOSS_HOLD = 0.005;
+    private static final int QUEUE_CONGESTED = 8;
+    private static final int QUEUE_HOLD = 3;
+    private static final double SEND_BUSY_CONGESTED = 0.8;
+    private static final double SEND_BUSY_HOLD = 0.5;
+    private static final double RTT_RISE_CONGESTED_MILLIS = 250;
+    private static final double RTT_RISE_HOLD_MILLIS = 100;
+    private static final double JITTER_HOLD_MILLIS = 50;
+
+    /**
+     * Signaux d'une session au dernier relevé, pour n'en garder que la variation.
+     */
+    private static class SenderState {
+        long droppedFrames;
+        long sendNanos;
+        long receiverReports;
+        double minRttMillis = Double.MAX_VALUE;
+    }
+
+    private final String name;
+    private final RenditionMetrics metrics;
+    // Thread de capture uniquement
+    private final Map<RtspSender, SenderState> senders = new IdentityHashMap<>();
+    private volatile int level = 0;
+    private long lastEvaluation = 0;
+    private long lastDown = Long.MIN_VALUE / 2;
+    private long lastUp = Long.MIN_VALUE / 2;
+    private long clearSince = 0;
+    private long upgradeDelay = INITIAL_UPGRADE_DELAY_NANOS;
+    private boolean started = false;
+
+    public AdaptiveController(String name, RenditionMetrics metrics) {
+        this.name = name;
+        this.metrics = metrics;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public Level getSettings() {
+        return LEVELS[level];
+    }
+
+    public int getQpOffset() {
+        return LEVELS[level].qpOffset();
+    }
+
+    public int getFrameInterval() {
+        return LEVELS[level].frameInterval();
+    }
+
+    /**
+     * Dimension réduite selon l'échelle du niveau, paire, sans descendre sous {@link #MIN_SCALED_HEIGHT}
+     * (ni agrandir une image déjà plus petite).
+     */
+    public int scaleWidth(int width, int height) {
+        int scaledHeight = scaleHeight(height);
+        if (scaledHeight == height) {
+            return width;
+        }
+        return Math.max(2, (int) Math.round((double) width * scaledHeight / height) & ~1);
+    }
+
+    public int scaleHeight(int height) {
+        int percent = LEVELS[level].scalePercent();
+        if (percent >= 100) {
+            return height;
+        }
+        int scaled = Math.max(MIN_SCALED_HEIGHT, height * percent / 100) & ~1;
+        return Math.min(height, scaled);
+    }
+
+    /**
+     * Plus aucun client : la prochaine session repart de la meilleure qualité.
+     */
+    public void reset() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        senders.clear();
+        level = 0;
+        upgradeDelay = INITIAL_UPGRADE_DELAY_NANOS;
+        lastDown = Long.MIN_VALUE / 2;
+        lastUp = Long.MIN_VALUE / 2;
+    }
+
+    /**
+     * Relève les signaux des sessions et ajuste le niveau, au plus une fois par seconde (thread de capture).
+     * @param fps Cadence du flux, pour publier la cadence cible.
+     */
+    public void update(long now, List<RtspSender> subscribers, int fps) {
+        if (!started) {
+            started = true;
+            lastEvaluation = now;
+            clearSince = now;
+            metrics.recordAdaptiveState(level, getQpOffset(), (double) fps / getFrameInterval(), LEVELS[level].scalePercent());
+            return;
+        }
+        long elapsed = now - lastEvaluation;
+        if (elapsed < EVALUATION_INTERVAL_NANOS) {
+            return;
+        }
+        lastEvaluation = now;
+
+        Congestion worst = Congestion.CLEAR;
+        String reason = "stable";
+        senders.keySet().retainAll(subscribers);
+        for (RtspSender sender : subscribers) {
+            SenderState state = senders.get(sender);
+            if (state == null) {
+                // Premier relevé de la session : seulement une référence
+                state = new SenderState();
+                senders.put(sender, state);
+                capture(sender, state);
+                continue;
+            }
+            String[] senderReason = new String[1];
+            Congestion congestion = evaluate(sender, state, elapsed, senderReason);
+            if (congestion.ordinal() > worst.ordinal()) {
+                worst = congestion;
+                reason = senderReason[0];
+            }
+        }
+        decide(now, worst, reason);
+        metrics.recordAdaptiveState(level, getQpOffset(), (double) fps / getFrameInterval(), LEVELS[level].scalePercent());
+    }
+
+    /**
+     * Applique l'état du lien mesuré sur le dernier intervalle. Séparé du relevé des sessions pour pouvoir
+     * être piloté par un lien simulé.
+     * @return Vrai si le niveau a changé.
+     */
+    public boolean decide(long now, Congestion congestion, String reason) {
+        switch (congestion) {
+            case SEVERE -> {
+                return stepDown(now, 2, reason);
+            }
+            case CONGESTED -> {
+                return stepDown(now, 1, reason);
+            }
+            case HOLD -> clearSince = now;
+            default -> {
+                if (now - lastDown >= STABLE_NANOS) {
+                    upgradeDelay = INITIAL_UPGRADE_DELAY_NANOS;
+                }
+                if (level > 0 && now - clearSince >= upgradeDelay) {
+                    int previous = level;
+                    level--;
+                    lastUp = now;
+                    clearSince = now;
+                    report(previous, false, reason);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean stepDown(long now, int steps, String reason) {
+        clearSince = now;
+        if (now - lastDown < DOWN_HOLDOFF_NANOS || level == LEVELS.length - 1) {
+            // Le niveau précédent n'a pas encore fait effet, ou rien de plus à réduire
+            return false;
+        }
+        if (now - lastUp < PROBE_WINDOW_NANOS) {
+            upgradeDelay = Math.min(MAX_UPGRADE_DELAY_NANOS, upgradeDelay * 2);
+        }
+        int previous = level;
+        level = Math.min(LEVELS.length - 1, level + steps);
+        lastDown = now;
+        report(previous, true, reason);
+        return true;
+    }
+
+    private void report(int previous, boolean down, String reason) {
+        Level settings = LEVELS[level];
+        System.out.println("Rendition " + name + " : niveau " + previous + " -> " + level + " (" + reason + ") : QP +"
+                + settings.qpOffset() + ", 1 frame sur " + settings.frameInterval() + ", échelle "
+                + settings.scalePercent() + " %");
+        metrics.recordAdaptation(down, reason);
+    }
+
+    /**
+     * Compare les compteurs de la session à son dernier relevé.
+     */
+    private static Congestion evaluate(RtspSender sender, SenderState state, long elapsed, String[] reason) {
+        long dropped = sender.getDroppedFrames() - state.droppedFrames;
+        double sendBusy = (double) (sender.getMetrics().getSendNanos() - state.sendNanos) / elapsed;
+        RtcpSession rtcp = sender.getRtcp();
+        boolean newReport = rtcp.getReceiverReports() != state.receiverReports;
+        capture(sender, state);
+
+        if (dropped > 0) {
+            reason[0] = dropped + " frames perdues";
+            return Congestion.SEVERE;
+        }
+        Congestion congestion = Congestion.CLEAR;
+        if (newReport) {
+            double loss = rtcp.getFractionLost();
+            if (loss >= LOSS_SEVERE) {
+                reason[0] = "pertes " + Math.round(loss * 100) + " %";
+                return Congestion.SEVERE;
+            }
+            if (loss >= LOSS_CONGESTED) {
+                reason[0] = "pertes " + Math.round(loss * 100) + " %";
+                congestion = Congestion.CONGESTED;
+            } else if (loss > LOSS_HOLD) {
+                reason[0] = "pertes " + String.format("%.1f", loss * 100) + " %";
+                congestion = Congestion.HOLD;
+            }
+            double rtt = rtcp.getRttMillis();
+            if (rtt >= 0) {
+                state.minRttMillis = Math.min(state.minRttMillis, rtt);
+                double rise = rtt - state.minRttMillis;
+                if (rise >= RTT_RISE_CONGESTED_MILLIS && congestion.ordinal() < Congestion.CONGESTED.ordinal()) {
+                    reason[0] = "RTT +" + Math.round(rise) + " ms";
+                    congestion = Congestion.CONGESTED;
+                } else if (rise >= RTT_RISE_HOLD_MILLIS && congestion == Congestion.CLEAR) {
+                    reason[0] = "RTT +" + Math.round(rise) + " ms";
+                    congestion = Congestion.HOLD;
+                }
+            }
+            if (rtcp.getJitterMillis() >= JITTER_HOLD_MILLIS && congestion == Congestion.CLEAR) {
+                reason[0] = "gigue " + Math.round(rtcp.getJitterMillis()) + " ms";
+                congestion = Congestion.HOLD;
+            }
+        }
+        int depth = sender.getQueueDepth();
+        if (depth >= QUEUE_CONGESTED && congestion.ordinal() < Congestion.CONGESTED.ordinal()) {
+            reason[0] = "file " + depth + " frames";
+            congestion = Congestion.CONGESTED;
+        } else if (depth >= QUEUE_HOLD && congestion == Congestion.CLEAR) {
+            reason[0] = "file " + depth + " frames";
+            congestion = Congestion.HOLD;
+        }
+        if (sendBusy >= SEND_BUSY_CONGESTED && congestion.ordinal() < Congestion.CONGESTED.ordinal()) {
+            reason[0] = "envoi occupé " + Math.round(sendBusy * 100) + " %";
+            congestion = Congestion.CONGESTED;
+        } else if (sendBusy >= SEND_BUSY_HOLD && congestion == Congestion.CLEAR) {
+            reason[0] = "envoi occupé " + Math.round(sendBusy * 100) + " %";
+            congestion = Congestion.HOLD;
+        }
+        if (congestion == Congestion.CLEAR) {
+            reason[0] = "stable";
+        }
+        return congestion;
+    }
+
+    private static void capture(RtspSender sender, SenderState state) {
+        state.droppedFrames = sender.getDroppedFrames();
+        state.sendNanos = sender.getMetrics().getSendNanos();
+        state.receiverReports = sender.getRtcp().getReceiverReports();
+    }
+}
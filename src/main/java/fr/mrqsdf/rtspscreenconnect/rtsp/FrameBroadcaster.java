@@ -0,0 +1,188 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Diffuse chaque frame encodée d'un écran vers tous les senders abonnés.
+ * Le même buffer est partagé par tous les abonnés (aucune copie par client) :
+ * un sender ne doit donc jamais modifier la frame reçue.
+ * La diffusion ne fait que déposer la frame dans la file de chaque sender,
+ * un client lent ne bloque donc pas les autres.
+ * Chaque frame diffusée est aussi gardée dans le différé de la rendition, s'il est activé.
+ *
+ * La dernière IDR diffusée est gardée en copie : un client qui rejoint le direct la reçoit aussitôt,
+ * sans attendre la prochaine frame encodée. Ses P-frames sont ensuite sautées jusqu'à l'IDR suivante,
+ * demandée à l'encodeur, car elles dépendent de frames qu'il n'a pas reçues.
+ */
+public class FrameBroadcaster {
+
+    private final CopyOnWriteArrayList<RtspSender> subscribers = new CopyOnWriteArrayList<>();
+    // Destinataires hors session (enregistrement) : ils reçoivent chaque frame sans compter comme clients
+    private final CopyOnWriteArrayList<Consumer<EncodedFrame>> taps = new CopyOnWriteArrayList<>();
+    // Clients en lecture différée : la rendition reste encodée pour qu'ils puissent rejoindre le direct
+    private final CopyOnWriteArrayList<TimeShiftPlayer> players = new CopyOnWriteArrayList<>();
+    // Différé de la rendition, null s'il est désactivé
+    private final TimeShiftBuffer timeShift;
+
+    // Copie de la dernière IDR et instant de capture de la dernière frame diffusée (sous le verrou)
+    private EncodedFrame lastKeyFrame;
+    private long lastBroadcastTime;
+    private boolean framesSinceKeyFrame;
+    // Clients partis de l'IDR en cache, qui attendent la prochaine IDR (sous le verrou)
+    private final List<RtspSender> joining = new ArrayList<>();
+
+    public FrameBroadcaster(TimeShiftBuffer timeShift) {
+        this.timeShift = timeShift;
+    }
+
+    public TimeShiftBuffer getTimeShift() {
+        return timeShift;
+    }
+
+    public void subscribe(RtspSender sender) {
+        subscribers.addIfAbsent(sender);
+    }
+
+    public synchronized void unsubscribe(RtspSender sender) {
+        subscribers.remove(sender);
+        joining.remove(sender);
+    }
+
+    /**
+     * Abonne le sender au direct en lui envoyant d'abord la dernière IDR diffusée, si elle n'a pas plus
+     * de {@code maxAgeNanos} : sur une rendition en cours d'encodage, la première image part sans attendre.
+     * @return Vrai si le client peut décoder les frames suivantes ; sinon il lui faut une nouvelle IDR.
+     */
+    public synchronized boolean subscribeFromKeyFrame(RtspSender sender, long nowNanos, long maxAgeNanos) {
+        if (subscribers.contains(sender)) {
+            return true;
+        }
+        boolean synced = false;
+        if (lastKeyFrame != null && nowNanos - lastBroadcastTime <= maxAgeNanos) {
+            // Recalée sur la dernière frame diffusée : les timestamps RTP du client restent croissants
+            sender.queueFrame(EncodedFrame.wrap(lastKeyFrame.getData(), lastKeyFrame.getLength(), true,
+                    lastBroadcastTime));
+            // Rien n'a suivi l'IDR : le client est à jour
+            synced = !framesSinceKeyFrame;
+            if (!synced) {
+                joining.add(sender);
+            }
+        }
+        subscribers.addIfAbsent(sender);
+        return synced;
+    }
+
+    /**
+     * Désabonne le sender en notant où il s'arrête dans le différé.
+     * @return Le numéro de la première frame du différé que le sender ne recevra pas (0 sans différé),
+     * ou -1 s'il n'était pas abonné.
+     */
+    public synchronized long detach(RtspSender sender) {
+        joining.remove(sender);
+        if (!subscribers.remove(sender)) {
+            return -1;
+        }
+        return timeShift != null ? timeShift.getNextIndex() : 0;
+    }
+
+    /**
+     * Abonne le sender seulement si la condition est vraie, sans qu'aucune frame ne puisse être diffusée
+     * entre le test et l'abonnement : une lecture différée rejoint ainsi le direct sans perte ni doublon.
+     */
+    public synchronized boolean subscribeIf(BooleanSupplier condition, RtspSender sender) {
+        if (!condition.getAsBoolean()) {
+            return false;
+        }
+        subscribers.addIfAbsent(sender);
+        return true;
+    }
+
+    void addPlayer(TimeShiftPlayer player) {
+        players.addIfAbsent(player);
+    }
+
+    void removePlayer(TimeShiftPlayer player) {
+        players.remove(player);
+    }
+
+    /**
+     * Ajoute un destinataire qui prend possession d'une référence sur chaque frame.
+     */
+    public void addTap(Consumer<EncodedFrame> tap) {
+        taps.addIfAbsent(tap);
+    }
+
+    public void removeTap(Consumer<EncodedFrame> tap) {
+        taps.remove(tap);
+    }
+
+    /**
+     * Vrai si des frames doivent être produites : un client en lecture, directe ou différée, ou un enregistrement.
+     */
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty() || !taps.isEmpty() || !players.isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public List<RtspSender> getSubscribers() {
+        return subscribers;
+    }
+
+    /**
+     * Envoie la frame encodée à tous les abonnés, chacun recevant sa propre référence.
+     * La référence de l'appelant n'est pas consommée.
+     * @param encodedFrame La frame encodée, partagée en lecture seule.
+     */
+    public synchronized void broadcast(EncodedFrame encodedFrame) {
+        if (timeShift != null) {
+            timeShift.append(encodedFrame);
+        }
+        boolean keyFrame = encodedFrame.isKeyFrame();
+        lastBroadcastTime = encodedFrame.getCaptureTimeNanos();
+        if (keyFrame) {
+            // Copie : le buffer de l'encodeur est réutilisé dès que tous les senders l'ont rendu
+            byte[] copy = Arrays.copyOfRange(encodedFrame.getData(), encodedFrame.getOffset(),
+                    encodedFrame.getOffset() + encodedFrame.getLength());
+            lastKeyFrame = EncodedFrame.wrap(copy, copy.length, true, lastBroadcastTime);
+        }
+        framesSinceKeyFrame = !keyFrame;
+        for (RtspSender sender : subscribers) {
+            if (!joining.isEmpty() && joining.contains(sender)) {
+                if (!keyFrame) {
+                    continue;
+                }
+                joining.remove(sender);
+            }
+            sender.queueFrame(encodedFrame.retain());
+        }
+        for (Consumer<EncodedFrame> tap : taps) {
+            tap.accept(encodedFrame.retain());
+        }
+    }
+
+    /**
+     * Retire tous les abonnés et arrête leurs threads d'envoi.
+     */
+    public void closeAll() {
+        for (TimeShiftPlayer player : players) {
+            player.close();
+        }
+        synchronized (this) {
+            joining.clear();
+        }
+        for (RtspSender sender : subscribers) {
+            subscribers.remove(sender);
+            sender.close();
+        }
+    }
+}
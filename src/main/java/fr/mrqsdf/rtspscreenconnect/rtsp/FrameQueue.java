@@ -0,0 +1,216 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * File de frames bornée, sans verrou, à un seul producteur (le thread de capture)
+ * et un seul consommateur (le thread d'envoi de la session).
+ *
+ * Politique de perte tenant compte du GOP :
+ * - file pleine : la frame entrante est abandonnée, ainsi que toutes les P-frames suivantes
+ *   (elles seraient indécodables) jusqu'à la prochaine IDR, qui est demandée à l'encodeur ;
+ * - consommateur trop en retard (plus de la moitié de la file) : il saute directement
+ *   à la dernière IDR en file, les frames plus anciennes sont abandonnées.
+ * Les frames abandonnées sont rendues (release) immédiatement.
+ */
+public class FrameQueue {
+
+    private final EncodedFrame[] ring;
+    // Instant de mise en file de chaque frame (System.nanoTime), pour mesurer l'attente
+    private final long[] enqueueTimes;
+    private final int mask;
+    // Prochain index à lire (écrit par le consommateur) et à écrire (écrit par le producteur)
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final Runnable keyFrameRequester;
+    // Producteur uniquement : vrai tant qu'on attend une IDR (après une perte, ou avant la première frame
+    // pour qu'un nouveau client ne reçoive pas de P-frames qu'il ne peut pas décoder)
+    private boolean awaitingKeyFrame = true;
+    private volatile Thread waitingConsumer;
+    // Demande de réveil du consommateur (arrêt de la session), consommée par take()
+    private volatile boolean wakeUpRequested;
+    // Consommateur uniquement : instant de mise en file de la dernière frame retirée
+    private long lastEnqueueTime;
+
+    /**
+     * @param capacity Nombre maximal de frames en file (arrondi à la puissance de 2 supérieure).
+     * @param keyFrameRequester Appelé pour demander une IDR à l'encodeur après une perte, peut être null.
+     */
+    public FrameQueue(int capacity, Runnable keyFrameRequester) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new EncodedFrame[size];
+        this.enqueueTimes = new long[size];
+        this.mask = size - 1;
+        this.keyFrameRequester = keyFrameRequester;
+    }
+
+    /**
+     * Ajoute une frame (producteur). La file prend possession de la référence, même si la frame est abandonnée.
+     */
+    public void offer(EncodedFrame frame) {
+        if (awaitingKeyFrame && !frame.isKeyFrame()) {
+            drop(frame);
+            return;
+        }
+        long t = tail.get();
+        if (t - head.get() >= ring.length) {
+            // File pleine : les P-frames suivantes dépendraient de celle-ci, on attend la prochaine IDR
+            drop(frame);
+            if (!awaitingKeyFrame || frame.isKeyFrame()) {
+                requestKeyFrame();
+            }
+            awaitingKeyFrame = true;
+            return;
+        }
+        awaitingKeyFrame = false;
+        ring[(int) t & mask] = frame;
+        enqueueTimes[(int) t & mask] = System.nanoTime();
+        tail.set(t + 1);
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Retire la prochaine frame à envoyer (consommateur), ou null si la file est vide.
+     */
+    public EncodedFrame poll() {
+        long h = head.get();
+        long t = tail.get();
+        if (h == t) {
+            return null;
+        }
+        if (t - h > ring.length / 2) {
+            // Trop de retard : reprendre à la dernière IDR en file
+            for (long i = t - 1; i > h; i--) {
+                if (ring[(int) i & mask].isKeyFrame()) {
+                    for (long j = h; j < i; j++) {
+                        drop(ring[(int) j & mask]);
+                        ring[(int) j & mask] = null;
+                    }
+                    h = i;
+                    break;
+                }
+            }
+        }
+        EncodedFrame frame = ring[(int) h & mask];
+        ring[(int) h & mask] = null;
+        lastEnqueueTime = enqueueTimes[(int) h & mask];
+        head.set(h + 1);
+        return frame;
+    }
+
+    /**
+     * Attend et retire la prochaine frame (consommateur). L'attente ne réagit pas aux interruptions :
+     * un thread qui écrit sur un canal ne doit pas être interrompu, il le fermerait.
+     * @return La frame, ou null si {@link #wakeUp()} a été appelé.
+     */
+    public EncodedFrame take() {
+        EncodedFrame frame;
+        while ((frame = poll()) == null) {
+            if (wakeUpRequested) {
+                wakeUpRequested = false;
+                return null;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (isEmpty() && !wakeUpRequested) {
+                LockSupport.park(this);
+            }
+            waitingConsumer = null;
+        }
+        return frame;
+    }
+
+    /**
+     * Fait revenir le consommateur de {@link #take()}, même si la file est vide.
+     */
+    public void wakeUp() {
+        wakeUpRequested = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Attend au plus {@code timeoutNanos} la prochaine frame (consommateur), sans réagir aux interruptions.
+     * @return La frame, ou null si aucune n'est arrivée à temps.
+     */
+    public EncodedFrame poll(long timeoutNanos) {
+        EncodedFrame frame = poll();
+        if (frame != null) {
+            return frame;
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        while ((frame = poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            waitingConsumer = null;
+        }
+        return frame;
+    }
+
+    /**
+     * Vide la file en rendant toutes les frames (consommateur).
+     */
+    public void clear() {
+        long h = head.get();
+        long t = tail.get();
+        for (; h < t; h++) {
+            ring[(int) h & mask].release();
+            ring[(int) h & mask] = null;
+        }
+        head.set(t);
+    }
+
+    /**
+     * Instant (System.nanoTime) où la dernière frame retirée a été mise en file (consommateur).
+     */
+    public long getLastEnqueueTime() {
+        return lastEnqueueTime;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Nombre de frames actuellement en file.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * Nombre total de frames abandonnées par la politique de perte.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    private void drop(EncodedFrame frame) {
+        droppedFrames.incrementAndGet();
+        frame.release();
+    }
+
+    private void requestKeyFrame() {
+        if (keyFrameRequester != null) {
+            keyFrameRequester.run();
+        }
+    }
+}
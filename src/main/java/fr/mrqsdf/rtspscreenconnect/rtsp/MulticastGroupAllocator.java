@@ -0,0 +1,58 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Attribue un groupe multicast distinct à chaque rendition diffusée en multicast, sur tous les écrans,
+ * à partir d'une adresse de base (IPv4, plage administrative 239.0.0.0/8 conseillée).
+ * Tous les groupes partagent la même paire de ports : ce sont les adresses qui les séparent.
+ */
+public class MulticastGroupAllocator {
+
+    // Groupes attribués dans la plage de la base
+    private static final int MAX_GROUPS = 1024;
+    private static final Set<InetAddress> allocated = new HashSet<>();
+
+    private MulticastGroupAllocator() {
+    }
+
+    /**
+     * Réserve le premier groupe libre à partir de {@code baseAddress} (incluse).
+     * @return L'adresse du groupe, ou null si la base n'est pas une adresse multicast IPv4 ou si la plage est pleine.
+     */
+    public static synchronized InetAddress allocate(String baseAddress) {
+        try {
+            InetAddress base = InetAddress.getByName(baseAddress);
+            if (!(base instanceof Inet4Address) || !base.isMulticastAddress()) {
+                System.out.println("Adresse multicast de base invalide : " + baseAddress);
+                return null;
+            }
+            byte[] bytes = base.getAddress();
+            int first = (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+            for (int i = 0; i < MAX_GROUPS; i++) {
+                int value = first + i;
+                InetAddress candidate = InetAddress.getByAddress(new byte[]{
+                        (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+                if (!candidate.isMulticastAddress()) {
+                    break;
+                }
+                if (allocated.add(candidate)) {
+                    return candidate;
+                }
+            }
+            System.out.println("Plus de groupe multicast libre à partir de " + baseAddress);
+            return null;
+        } catch (UnknownHostException e) {
+            System.out.println("Adresse multicast de base invalide : " + baseAddress);
+            return null;
+        }
+    }
+
+    public static synchronized void release(InetAddress group) {
+        allocated.remove(group);
+    }
+}
@@ -1,66 +1,280 @@
 package fr.mrqsdf.rtspscreenconnect.rtsp;
 
+import fr.mrqsdf.rtspscreenconnect.metrics.SessionMetrics;
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+
+import java.io.IOException;
 import java.net.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Flux RTP multicast d'une rendition : chaque frame est packetisée (STAP-A / unique / FU-A) et envoyée
+ * une seule fois au groupe, quel que soit le nombre de clients qui le reçoivent.
+ *
+ * Les sessions RTSP qui ont choisi ce transport s'y joignent au PLAY ; le serveur n'abonne le sender
+ * à la rendition que tant qu'au moins une session regarde. Les Sender Reports partent sur le port RTCP
+ * du groupe (port RTP + 1), où le sender écoute aussi les rapports et les PLI des récepteurs ; l'arrivée
+ * des Receiver Reports est notée par adresse de récepteur pour maintenir les sessions en vie.
+ */
+public class MulticastRtpSender extends Thread implements RtspSender {
+    // Taille maximale du payload UDP (en octets), sous le MTU Ethernet
+    private static final int MAX_PAYLOAD = 1400;
+    private static final int QUEUE_CAPACITY = 32;
+    // Attente maximale d'une frame avant de relever les rapports RTCP reçus
+    private static final long POLL_NANOS = 100_000_000L;
 
-public class MulticastRtpSender extends Thread {
-    private DatagramSocket socket;
-    private InetAddress multicastGroup;
-    private int rtpPort; // port pour RTP (par exemple 5004, 5006, etc.)
-    private int sequenceNumber = 0;
-    private long timestamp = 0;
-    private BlockingQueue<byte[]> frameQueue = new LinkedBlockingQueue<>();
+    private final InetSocketAddress group; // groupe et port RTP (pair)
+    private final InetSocketAddress rtcpGroup;
+    private final int ttl;
+    private final DatagramChannel channel;
+    // Canal abonné au groupe sur le port RTCP, null si l'abonnement a échoué
+    private final DatagramChannel rtcpChannel;
+    private final FrameQueue frameQueue;
+    private final RtpPacketizer packetizer = new RtpPacketizer(MAX_PAYLOAD, true);
+    private final RtpPacketizer.PacketSink sink = this::sendPacket;
+    private final SessionMetrics metrics = new SessionMetrics(this::getQueueDepth, this::getDroppedFrames);
+    private final RtcpSession rtcp;
+    // Tampons RTCP, utilisés par le thread du sender uniquement
+    private final ByteBuffer reportBuffer = ByteBuffer.allocateDirect(Rtcp.MAX_SENDER_REPORT_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(1500);
+    // Sessions RTSP en PLAY sur ce groupe, et adresse de leur client
+    private final Map<Object, InetAddress> viewers = new ConcurrentHashMap<>();
+    // Dernier Receiver Report reçu de chaque adresse de récepteur (0 avant le premier)
+    private final Map<InetAddress, Long> lastReports = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param networkInterface Interface d'émission et d'écoute RTCP ; si null, le flux part sur l'interface
+     *                         par défaut du système et les rapports des récepteurs ne sont pas écoutés.
+     * @param keyFrameRequester Appelé quand un récepteur perd le fil (file pleine, PLI).
+     */
+    public MulticastRtpSender(InetAddress groupAddress, int rtpPort, int ttl, NetworkInterface networkInterface,
+                              Runnable keyFrameRequester) throws IOException {
+        super("MulticastRtpSender-" + groupAddress.getHostAddress());
+        setDaemon(true);
+        this.group = new InetSocketAddress(groupAddress, rtpPort);
+        this.rtcpGroup = new InetSocketAddress(groupAddress, rtpPort + 1);
+        this.ttl = ttl;
+        this.frameQueue = new FrameQueue(QUEUE_CAPACITY, keyFrameRequester);
+        this.rtcp = new RtcpSession(packetizer, keyFrameRequester, metrics);
+        StandardProtocolFamily family = groupAddress instanceof Inet6Address
+                ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+        channel = DatagramChannel.open(family);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+        // Les récepteurs de la machine (tests, moniteur local) reçoivent aussi le flux
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        if (networkInterface != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        }
+        rtcpChannel = openRtcpChannel(family, networkInterface);
+    }
 
-    public MulticastRtpSender(String multicastAddress, int rtpPort) throws Exception {
-        this.multicastGroup = InetAddress.getByName(multicastAddress);
-        this.rtpPort = rtpPort;
-        socket = new DatagramSocket();
+    /**
+     * Écoute le port RTCP du groupe, partagé avec les autres groupes de la machine : les rapports
+     * sont triés par SSRC. Sans interface d'écoute, le flux part quand même, sans retour des récepteurs.
+     */
+    private DatagramChannel openRtcpChannel(StandardProtocolFamily family, NetworkInterface networkInterface) {
+        if (networkInterface == null) {
+            return null;
+        }
+        DatagramChannel receiver = null;
+        try {
+            receiver = DatagramChannel.open(family);
+            receiver.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            receiver.bind(new InetSocketAddress(rtcpGroup.getPort()));
+            receiver.join(rtcpGroup.getAddress(), networkInterface);
+            receiver.configureBlocking(false);
+            return receiver;
+        } catch (IOException e) {
+            System.out.println("RTCP multicast indisponible sur " + rtcpGroup + " : " + e.getMessage());
+            if (receiver != null) {
+                try {
+                    receiver.close();
+                } catch (IOException ignored) {
+                    // Déjà inutilisable
+                }
+            }
+            return null;
+        }
     }
 
-    public void queueFrame(byte[] encodedFrame) {
+    public InetAddress getGroupAddress() {
+        return group.getAddress();
+    }
+
+    public int getRtpPort() {
+        return group.getPort();
+    }
+
+    public int getRtcpPort() {
+        return rtcpGroup.getPort();
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Ajoute une session RTSP aux récepteurs du groupe.
+     * @param address Adresse du client, dont les Receiver Reports sont suivis.
+     * @return Vrai si c'est la première : le sender doit alors être abonné à la rendition.
+     */
+    public boolean addViewer(Object viewer, InetAddress address) {
+        lastReports.putIfAbsent(address, 0L);
+        return viewers.put(viewer, address) == null && viewers.size() == 1;
+    }
+
+    /**
+     * Retire une session RTSP des récepteurs du groupe.
+     * @return Vrai si c'était la dernière : le sender peut être désabonné de la rendition.
+     */
+    public boolean removeViewer(Object viewer) {
+        InetAddress address = viewers.remove(viewer);
+        if (address == null) {
+            return false;
+        }
+        if (!viewers.containsValue(address)) {
+            lastReports.remove(address);
+        }
+        return viewers.isEmpty();
+    }
+
+    /**
+     * Instant (System.nanoTime) du dernier Receiver Report reçu de cette adresse pour le groupe,
+     * 0 si elle n'en a envoyé aucun ou ne regarde pas le groupe.
+     */
+    public long getLastReportNanos(InetAddress address) {
+        return lastReports.getOrDefault(address, 0L);
+    }
+
+    public int getViewerCount() {
+        return viewers.size();
+    }
+
+    @Override
+    public void queueFrame(EncodedFrame encodedFrame) {
+        if (!running) {
+            encodedFrame.release();
+            return;
+        }
         frameQueue.offer(encodedFrame);
     }
 
-    private byte[] createRtpPacket(byte[] payload) {
-        byte[] packet = new byte[12 + payload.length];
-        packet[0] = (byte) 0x80;
-        // Mettre le marker bit (0x80) avec le type de payload (96)
-        packet[1] = (byte) (0x80 | 96);
-        // Numéro de séquence
-        packet[2] = (byte) (sequenceNumber >> 8);
-        packet[3] = (byte) (sequenceNumber & 0xFF);
-        // Timestamp (4 octets)
-        packet[4] = (byte) (timestamp >> 24);
-        packet[5] = (byte) (timestamp >> 16);
-        packet[6] = (byte) (timestamp >> 8);
-        packet[7] = (byte) (timestamp);
-        // SSRC (4 octets) – valeur fixe pour cet exemple
-        int ssrc = 12345678;
-        packet[8]  = (byte) (ssrc >> 24);
-        packet[9]  = (byte) (ssrc >> 16);
-        packet[10] = (byte) (ssrc >> 8);
-        packet[11] = (byte) (ssrc);
-        System.arraycopy(payload, 0, packet, 12, payload.length);
-        return packet;
+    @Override
+    public int getQueueDepth() {
+        return frameQueue.size();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return frameQueue.getDroppedFrames();
+    }
+
+    @Override
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public RtcpSession getRtcp() {
+        return rtcp;
+    }
+
+    private void sendPacket(ByteBuffer packet) throws Exception {
+        channel.send(packet, group);
+        packetizer.getPool().release(packet);
     }
 
     @Override
     public void run() {
-        while(true){
-            try {
-                byte[] encodedFrame = frameQueue.take();
-                // Pour simplifier, on envoie l'image encodée en un seul paquet RTP
-                byte[] rtpPacket = createRtpPacket(encodedFrame);
-                DatagramPacket packet = new DatagramPacket(rtpPacket, rtpPacket.length, multicastGroup, rtpPort);
-                socket.send(packet);
-                sequenceNumber++;
-                // Pour 30 FPS et une horloge 90kHz, incrément de 3000
-                timestamp += 3000;
-            } catch (Exception e){
+        while (running) {
+            EncodedFrame encodedFrame = frameQueue.poll(POLL_NANOS);
+            if (encodedFrame != null) {
+                try {
+                    long start = System.nanoTime();
+                    packetizer.packetizeFrame(encodedFrame, sink);
+                    metrics.recordSend(start - frameQueue.getLastEnqueueTime(), System.nanoTime() - start,
+                            encodedFrame.getLength());
+                } catch (Exception e) {
+                    if (running) {
+                        e.printStackTrace();
+                    }
+                } finally {
+                    encodedFrame.release();
+                }
+            }
+            receiveReports();
+            sendReportIfDue();
+        }
+        // Rendre les frames restées en file
+        frameQueue.clear();
+    }
+
+    /**
+     * Lit les rapports des récepteurs arrivés depuis le dernier passage, sans attendre.
+     */
+    private void receiveReports() {
+        if (rtcpChannel == null) {
+            return;
+        }
+        try {
+            while (true) {
+                receiveBuffer.clear();
+                SocketAddress source = rtcpChannel.receive(receiveBuffer);
+                if (source == null) {
+                    return;
+                }
+                receiveBuffer.flip();
+                long previousReport = rtcp.getLastReceiverReportNanos();
+                rtcp.receive(receiveBuffer);
+                long lastReport = rtcp.getLastReceiverReportNanos();
+                if (lastReport != previousReport && source instanceof InetSocketAddress address) {
+                    // Rapport sur ce groupe : seules les adresses des sessions en PLAY sont suivies
+                    lastReports.computeIfPresent(address.getAddress(), (receiver, previous) -> lastReport);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
                 e.printStackTrace();
             }
         }
     }
-}
 
+    private void sendReportIfDue() {
+        reportBuffer.clear();
+        if (!rtcp.writeReportIfDue(reportBuffer)) {
+            return;
+        }
+        reportBuffer.flip();
+        try {
+            channel.send(reportBuffer, rtcpGroup);
+        } catch (IOException e) {
+            // Un SR perdu n'empêche pas le flux
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Arrête le flux du groupe et ferme ses canaux.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+            if (rtcpChannel != null) {
+                rtcpChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
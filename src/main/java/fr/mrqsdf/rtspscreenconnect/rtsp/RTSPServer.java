@@ -1,294 +1,785 @@
 package fr.mrqsdf.rtspscreenconnect.rtsp;
 
-import fr.mrqsdf.rtspscreenconnect.resource.Data;
+import fr.mrqsdf.rtspscreenconnect.metrics.MetricsRegistry;
+import fr.mrqsdf.rtspscreenconnect.metrics.StreamMetrics;
+import fr.mrqsdf.rtspscreenconnect.pipeline.PipelineExecutor;
+import fr.mrqsdf.rtspscreenconnect.pipeline.PipelineStream;
+import fr.mrqsdf.rtspscreenconnect.record.StreamRecorder;
+import fr.mrqsdf.rtspscreenconnect.resource.Rendition;
+import fr.mrqsdf.rtspscreenconnect.resource.StreamConfig;
+import fr.mrqsdf.rtspscreenconnect.source.FrameSource;
 import fr.mrqsdf.rtspscreenconnect.utils.*;
 
 import java.awt.image.BufferedImage;
-import java.io.*;
-import java.net.*;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
-import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
-public class RTSPServer extends Thread {
+public class RTSPServer implements PipelineStream {
     private int rtspPort;
     private int screenId;
     private int rtpPort; // on utilise ce port comme indicateur du port serveur pour RTP
     private String localIP;
-    private volatile RtspSender currentSender; // référence au sender en cours
-    private H264FrameEncoder encoder;
-    private ScreenCutter screenCutter;
-    private String sessionId = null;
-    // Indique si la session est en cours (après PLAY)
-    private volatile boolean playActive = false;
-    private ServerSocket rtspServerSocket;
+    // Une seule capture par écran, déclinée en renditions (la première est la résolution native),
+    // chacune encodée une fois et diffusée à tous ses clients en PLAY
+    private final List<RenditionStream> renditions = new ArrayList<>();
+    private final StreamConfig config;
+    // Écran capturé, ou source synthétique / fichier sur une machine sans affichage
+    private final FrameSource source;
+    private final DamageDetector damageDetector = new DamageDetector();
+    // Ordonnanceur partagé par tous les écrans pour la capture et l'encodage
+    private final PipelineExecutor pipeline;
+    // Sessions des clients par identifiant (thread de la boucle uniquement)
+    private final Map<String, RtspSession> sessions = new HashMap<>();
+    // Boucle RTSP partagée : accepte les clients de ce port et analyse leurs requêtes
+    private final RtspEventLoop eventLoop;
+    private final StreamMetrics metrics;
+    // Enregistrement de la rendition native, null s'il est désactivé
+    private StreamRecorder recorder;
+    private Consumer<EncodedFrame> recorderTap;
+    // Origine des positions npt des requêtes PLAY (Range) : le démarrage du flux
+    private final long streamStartNanos = System.nanoTime();
+    // Vitesse de relecture de la dernière IDR quand une session en différé revient au direct
+    private static final double CATCH_UP_SCALE = 8;
+    // Au-delà, la rendition ne diffuse plus (keep-alive d'une frame par seconde) : l'IDR en cache est périmée
+    private static final long KEY_FRAME_CACHE_MAX_AGE_NANOS = 2_000_000_000L;
+    // Groupe multicast de chaque rendition, ouvert au premier SETUP multicast et gardé jusqu'à l'arrêt
+    private final Map<RenditionStream, MulticastRtpSender> multicastGroups = new ConcurrentHashMap<>();
 
     public boolean running = true;
 
-    public RTSPServer(int rtspPort, int screenId, ScreenCutter cutter) throws Exception {
+    public RTSPServer(int rtspPort, int screenId, FrameSource source, StreamConfig config,
+                      PipelineExecutor pipeline, RtspEventLoop eventLoop) throws Exception {
         this.rtspPort = rtspPort;
         this.screenId = screenId;
         this.rtpPort = rtspPort; // convention : même port pour simplifier
         this.localIP = LocalIP.getHostAddress();
-        this.screenCutter = cutter;
-        this.encoder = new H264FrameEncoder();
+        this.source = source;
+        this.config = config;
+        int sourceHeight = source.getHeight();
+        // Mémoire du différé partagée par les renditions de l'écran
+        TimeShiftPool timeShiftPool = config.timeShiftSeconds > 0 && config.timeShiftBytes > 0
+                ? new TimeShiftPool(config.timeShiftBytes) : null;
+        renditions.add(new RenditionStream(new Rendition(Rendition.NATIVE, 0), config, sourceHeight, timeShiftPool,
+                pipeline.getParallelPool()));
+        for (String name : config.renditions) {
+            Rendition rendition = Rendition.parse(name);
+            if (rendition == null) {
+                System.out.println("Rendition inconnue ignorée : " + name);
+            } else if (!rendition.isNative(sourceHeight) && findRendition(rendition.getName()) == null) {
+                // Une rendition aussi grande que l'écran est servie par la rendition native
+                renditions.add(new RenditionStream(rendition, config, sourceHeight, timeShiftPool,
+                        pipeline.getParallelPool()));
+            }
+        }
+        this.pipeline = pipeline;
+        this.eventLoop = eventLoop;
+        this.metrics = new StreamMetrics(screenId, () -> pipeline.getEffectiveFps(this),
+                () -> pipeline.getDroppedFrames(this));
+        for (RenditionStream rendition : renditions) {
+            metrics.addRendition(rendition.getMetrics());
+        }
+    }
+
+    /**
+     * Ouvre le port RTSP de l'écran et confie la capture et l'encodage au pipeline partagé.
+     */
+    public void start() throws IOException {
+        eventLoop.bind(rtspPort, this);
+        MetricsRegistry.get().register(metrics);
+        if (config.recordDirectory != null) {
+            startRecorder();
+        }
+        pipeline.register(this);
+        System.out.println("RTSP Server (unicast) pour l'écran " + screenId + " démarré sur le port " + rtspPort);
+    }
+
+    /**
+     * Enregistre les frames déjà encodées de la rendition native, qui est alors produite même sans client.
+     */
+    private void startRecorder() {
+        RenditionStream rendition = renditions.get(0);
+        H264FrameEncoder encoder = rendition.getEncoder();
+        recorder = new StreamRecorder(Path.of(config.recordDirectory), "screen" + screenId,
+                config.recordSegmentBytes, config.recordSegmentNanos, encoder::requestKeyFrame);
+        recorder.start();
+        recorderTap = recorder::queueFrame;
+        rendition.getBroadcaster().addTap(recorderTap);
+        // L'enregistrement commence à la prochaine IDR
+        encoder.requestKeyFrame();
+    }
+
+    public StreamRecorder getRecorder() {
+        return recorder;
+    }
+
+    public void stop() {
+        running = false;
+        pipeline.unregister(this);
+        if (recorder != null) {
+            // Retirer d'abord le tap : le pipeline ne dépose plus rien pendant la fermeture
+            renditions.get(0).getBroadcaster().removeTap(recorderTap);
+            recorder.close();
+            recorder = null;
+            recorderTap = null;
+        }
+        eventLoop.unbind(rtspPort, this);
+        for (RenditionStream rendition : renditions) {
+            rendition.getBroadcaster().closeAll();
+        }
+        for (MulticastRtpSender group : multicastGroups.values()) {
+            group.close();
+            MulticastGroupAllocator.release(group.getGroupAddress());
+            MetricsRegistry.get().unregisterSession(metrics, group.getMetrics());
+        }
+        multicastGroups.clear();
+        MetricsRegistry.get().unregister(metrics);
+        source.close();
     }
 
     @Override
-    public void interrupt() {
-        if (currentSender != null) {
-            ((Thread) currentSender).interrupt();
-            currentSender = null;
-        }
-        if (rtspServerSocket != null) {
-            try {
-                rtspServerSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    public boolean isActive() {
+        if (!running) {
+            return false;
+        }
+        // Aucun client en PLAY : pas de capture
+        for (RenditionStream rendition : renditions) {
+            if (rendition.getBroadcaster().hasSubscribers()) {
+                return true;
             }
         }
-        running = false;
-        super.interrupt();
+        return false;
+    }
+
+    public List<RenditionStream> getRenditions() {
+        return renditions;
+    }
+
+    public StreamMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
-    public void run() {
-        // Démarrer le thread de capture/encodage pour ce flux.
-        new Thread(() -> {
-            while (running) {
-                try {
-                    if (currentSender != null){
-                        BufferedImage frame = screenCutter.cutScreen();
-                        byte[] encodedFrame = encoder.encodeFrame(frame);
-                        if (encodedFrame != null && encodedFrame.length > 0) {
-                            // Log de vérification de frame
-                            //System.out.println("Screen " + screenId + " : frame encodée, taille = " + encodedFrame.length);
-                            // Si la session PLAY est active et qu'un expéditeur est défini, envoyer la frame.
-                            if (playActive && currentSender != null) {
-                                currentSender.queueFrame(encodedFrame);
-                            }
-                        } else {
-                            System.out.println("Screen " + screenId + " : frame vide");
-                        }
-                        Thread.sleep(1000/ Data.fps); // environ 30 FPS
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    running = false;
-                }
+    public int getTargetFps() {
+        return config.fps;
+    }
+
+    /**
+     * Capture une frame et la transmet à chaque rendition regardée. Appelé par un worker du pipeline
+     * à chaque échéance du flux.
+     */
+    @Override
+    public void processFrame() {
+        long captureTime = System.nanoTime();
+        BufferedImage frame = source.nextFrame();
+        metrics.recordCapture(System.nanoTime() - captureTime);
+        // La détection de changement est faite une fois sur la capture, pour toutes les renditions
+        boolean damaged = damageDetector.detect(frame);
+        for (RenditionStream rendition : renditions) {
+            rendition.processFrame(frame, damaged, captureTime, config.fps);
+        }
+    }
+
+    private RenditionStream findRendition(String name) {
+        for (RenditionStream rendition : renditions) {
+            if (rendition.getRendition().getName().equals(name)) {
+                return rendition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rendition demandée dans l'URL, en segment de chemin ou en paramètre
+     * (rtsp://ip:port/0/360p, rtsp://ip:port/0?rendition=360p).
+     * Une rendition pas plus petite que l'écran est servie en natif.
+     * @return La rendition, ou null si l'URL n'en désigne aucune.
+     */
+    private RenditionStream selectRendition(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        int scheme = uri.indexOf("://");
+        String path = scheme >= 0 ? uri.substring(scheme + 3) : uri;
+        for (String token : path.split("[/?&=;]")) {
+            Rendition requested = Rendition.parse(token);
+            if (requested == null) {
+                continue;
+            }
+            if (requested.isNative(source.getHeight())) {
+                return renditions.get(0);
+            }
+            RenditionStream rendition = findRendition(requested.getName());
+            if (rendition != null) {
+                return rendition;
+            }
+        }
+        return null;
+    }
+
+    void onConnect(RtspConnection connection) {
+        System.out.println("Client connecté sur l'écran " + screenId);
+    }
+
+    /**
+     * Client parti, avec ou sans TEARDOWN : ses sessions TCP interleaved perdent leur transport et sont
+     * libérées ; les sessions UDP et multicast restent jusqu'à leur expiration, le client pouvant les
+     * reprendre depuis une autre connexion.
+     */
+    void onDisconnect(RtspConnection connection) {
+        for (RtspSession session : new ArrayList<>(connection.getSessions())) {
+            if (session.getSender() instanceof TcpRtpSender) {
+                closeSession(session);
+            } else {
+                session.setConnection(null);
+            }
+        }
+        connection.getSessions().clear();
+    }
+
+    /**
+     * Libère les sessions restées sans signe de vie au-delà de leur délai (appelé par la boucle).
+     */
+    void expireSessions(long now) {
+        for (RtspSession session : new ArrayList<>(sessions.values())) {
+            if (session.isExpired(now)) {
+                System.out.println("Session " + session.getId() + " expirée sur l'écran " + screenId);
+                closeSession(session);
+            }
+        }
+    }
+
+    /**
+     * Libère toutes les sessions, à la fermeture du port de l'écran (appelé par la boucle).
+     */
+    void closeSessions() {
+        for (RtspSession session : new ArrayList<>(sessions.values())) {
+            closeSession(session);
+        }
+    }
+
+    private RtspSession createSession(RtspConnection connection) {
+        String id;
+        do {
+            id = RtspSession.newId();
+        } while (sessions.containsKey(id));
+        RtspSession session = new RtspSession(id, config.sessionTimeoutSeconds, connection);
+        sessions.put(id, session);
+        connection.getSessions().add(session);
+        return session;
+    }
+
+    /**
+     * Session désignée par l'en-tête Session de la requête ("id" ou "id;timeout=60"). Sans en-tête,
+     * la dernière session ouverte sur la connexion, pour les clients qui ne le renvoient pas.
+     * @return La session, ou null si l'en-tête désigne une session inconnue ou s'il n'y en a aucune.
+     */
+    private RtspSession findSession(RtspConnection connection, RtspRequest request) {
+        String header = request.getSession();
+        if (header == null) {
+            List<RtspSession> connectionSessions = connection.getSessions();
+            return connectionSessions.isEmpty() ? null : connectionSessions.get(connectionSessions.size() - 1);
+        }
+        int separator = header.indexOf(';');
+        RtspSession session = sessions.get((separator >= 0 ? header.substring(0, separator) : header).trim());
+        if (session != null && session.getConnection() != connection) {
+            // Session reprise depuis une nouvelle connexion de contrôle
+            RtspConnection previous = session.getConnection();
+            if (previous != null) {
+                previous.getSessions().remove(session);
+            }
+            session.setConnection(connection);
+            connection.getSessions().add(session);
+        }
+        return session;
+    }
+
+    /**
+     * Arrête la session et libère tout ce qu'elle détient : lecture, sender, place dans le groupe multicast.
+     */
+    private void closeSession(RtspSession session) {
+        stopSender(session);
+        sessions.remove(session.getId());
+        if (session.getConnection() != null) {
+            session.getConnection().getSessions().remove(session);
+            session.setConnection(null);
+        }
+    }
+
+    /**
+     * Session d'un SETUP : celle de l'en-tête Session, dont le transport précédent est arrêté,
+     * ou une nouvelle session.
+     */
+    private RtspSession setupSession(RtspConnection connection, RtspSession session) {
+        if (session == null) {
+            return createSession(connection);
+        }
+        stopSender(session);
+        return session;
+    }
+
+    /**
+     * Arrête le sender de la session et le retire de la diffusion.
+     */
+    private void stopSender(RtspSession session) {
+        leaveMulticast(session);
+        session.setMulticast(null);
+        RtspSender sender = session.getSender();
+        if (sender == null) {
+            return;
+        }
+        stopPlayback(session);
+        session.setPausedIndex(-1);
+        sender.close();
+        MetricsRegistry.get().unregisterSession(metrics, sender.getMetrics());
+        session.setSender(null);
+    }
+
+    /**
+     * Groupe multicast de la rendition, ouvert au premier client qui le demande : le flux y est envoyé
+     * une seule fois, quel que soit le nombre de sessions qui le regardent.
+     */
+    private MulticastRtpSender openMulticastGroup(RtspConnection connection, RenditionStream rendition)
+            throws IOException {
+        MulticastRtpSender group = multicastGroups.get(rendition);
+        if (group != null) {
+            return group;
+        }
+        InetAddress address = MulticastGroupAllocator.allocate(config.multicastAddress);
+        if (address == null) {
+            throw new IOException("Aucun groupe multicast disponible");
+        }
+        try {
+            group = new MulticastRtpSender(address, config.multicastPort, config.multicastTtl,
+                    multicastInterface(connection), rendition.getEncoder()::requestKeyFrame);
+        } catch (IOException e) {
+            MulticastGroupAllocator.release(address);
+            throw e;
+        }
+        group.start();
+        multicastGroups.put(rendition, group);
+        MetricsRegistry.get().registerSession(rendition.getMetrics(), group.getMetrics(),
+                address.getHostAddress() + ":" + config.multicastPort, "multicast");
+        System.out.println("Groupe multicast " + address.getHostAddress() + ":" + config.multicastPort +
+                " ouvert pour l'écran " + screenId + " (" + rendition.getRendition().getName() + ")");
+        return group;
+    }
+
+    /**
+     * Interface d'émission multicast : celle configurée (nom ou adresse), sinon celle par laquelle
+     * le client est connecté.
+     */
+    private NetworkInterface multicastInterface(RtspConnection connection) throws IOException {
+        String name = config.multicastInterface;
+        if (name == null || name.isBlank()) {
+            return NetworkInterface.getByInetAddress(connection.getLocalAddress());
+        }
+        NetworkInterface networkInterface = NetworkInterface.getByName(name);
+        if (networkInterface == null) {
+            networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(name));
+        }
+        if (networkInterface == null) {
+            throw new IOException("Interface multicast introuvable : " + name);
+        }
+        return networkInterface;
+    }
+
+    /**
+     * Retire la session des récepteurs de son groupe multicast ; le dernier parti désabonne le groupe.
+     */
+    private void leaveMulticast(RtspSession session) {
+        MulticastRtpSender group = session.getMulticast();
+        if (group == null || !group.removeViewer(session)) {
+            return;
+        }
+        RenditionStream rendition = findMulticastRendition(group);
+        if (rendition != null) {
+            rendition.getBroadcaster().unsubscribe(group);
+        }
+    }
+
+    private RenditionStream findMulticastRendition(MulticastRtpSender group) {
+        for (Map.Entry<RenditionStream, MulticastRtpSender> entry : multicastGroups.entrySet()) {
+            if (entry.getValue() == group) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lecture d'une session multicast : toujours en direct, le groupe étant partagé. Le premier récepteur
+     * abonne le groupe à partir de la dernière IDR ; les suivants demandent une IDR pour se synchroniser.
+     */
+    private void playMulticast(RtspConnection connection, RtspSession session, MulticastRtpSender group, String cseq)
+            throws IOException {
+        connection.sendResponse(connection.response().start(RtspResponse.OK, cseq)
+                .header(RtspResponse.SESSION, session.getHeader())
+                .header(RtspResponse.RANGE, "npt=" + formatNpt(System.nanoTime()) + "-")
+                .end());
+        RenditionStream rendition = findMulticastRendition(group);
+        if (rendition == null) {
+            return;
+        }
+        if (!group.addViewer(session, session.getClientAddress())
+                || !rendition.getBroadcaster().subscribeFromKeyFrame(group, System.nanoTime(), KEY_FRAME_CACHE_MAX_AGE_NANOS)) {
+            rendition.getEncoder().requestKeyFrame();
+        }
+        pipeline.wakeUp();
+    }
+
+    /**
+     * Arrête la lecture, différée ou directe, de la session sans fermer son sender.
+     * @return Le numéro de la première frame du différé que la session n'a pas reçue, ou -1.
+     */
+    private long stopPlayback(RtspSession session) {
+        long stoppedAt = -1;
+        TimeShiftPlayer player = session.getPlayer();
+        if (player != null) {
+            // Attendre le thread : il ne touche plus à la file du sender, ni à l'abonnement
+            player.close();
+            stoppedAt = player.getNextIndex();
+            session.setPlayer(null);
+        }
+        if (session.getRendition() != null && session.getSender() != null) {
+            // Lecture passée au direct (ou direct dès le départ) : elle s'arrête là où le sender est désabonné
+            long detachedAt = session.getRendition().getBroadcaster().detach(session.getSender());
+            if (detachedAt >= 0) {
+                stoppedAt = detachedAt;
             }
-        }).start();
-
-        // Démarrer le serveur RTSP pour gérer les requêtes des clients.
-        try (ServerSocket rtspServerSocket = new ServerSocket(rtspPort)) {
-            System.out.println("RTSP Server (unicast) pour l'écran " + screenId + " démarré sur le port " + rtspPort);
-            while (running) {
-                this.rtspServerSocket = rtspServerSocket;
-                if (!rtspServerSocket.isClosed()){
-                    try {
-                        Socket clientSocket = rtspServerSocket != null ? rtspServerSocket.accept() : null;
-                        if (clientSocket == null) break;
-                        System.out.println("Client connecté sur l'écran " + screenId);
-                        handleClient(clientSocket);
-                    } catch (SocketException se) {
-                        // Socket fermé, on sort de la boucle.
-                        System.out.println("ServerSocket fermé, arrêt du serveur RTSP pour l'écran " + screenId);
-                        running = false;
-                        break;
-                    }
+        }
+        return stoppedAt;
+    }
+
+    /**
+     * Lance la lecture d'une session : en différé si le Range désigne une position encore en mémoire
+     * ou si la session reprend après un PAUSE, en direct sinon. La réponse part avant la première frame,
+     * qui partage le canal en TCP interleaved.
+     */
+    private void play(RtspConnection connection, RtspSession session, RtspSender sender, RenditionStream rendition,
+                      RtspRequest request, String cseq) throws IOException {
+        FrameBroadcaster broadcaster = rendition.getBroadcaster();
+        TimeShiftBuffer timeShift = broadcaster.getTimeShift();
+        // Session qui a déjà reçu des frames : son décodeur attend la suite de ce qu'il a eu
+        boolean playing = session.getPlayer() != null || session.getPausedIndex() >= 0;
+        stopPlayback(session);
+        long startIndex = -1;
+        double scale = parseScale(request.getScale());
+        if (timeShift != null) {
+            double npt = parseNptStart(request.getRange());
+            if (npt > 0) {
+                long time = streamStartNanos + (long) (npt * 1_000_000_000L);
+                // Position déjà diffusée : dernière IDR avant elle ; sinon direct
+                if (time < timeShift.getNewestTime()) {
+                    startIndex = timeShift.findKeyFrame(time);
                 }
+            } else if (npt < 0 && request.getRange() == null && session.getPausedIndex() >= 0) {
+                // Reprise là où le PAUSE s'est arrêté : le décodeur du client a déjà les frames précédentes
+                startIndex = Math.max(session.getPausedIndex(), timeShift.getFirstIndex());
+            } else if (playing) {
+                // Retour au direct : dernière IDR relue en accéléré, sans P-frames privées de leurs références
+                startIndex = timeShift.findKeyFrame(Long.MAX_VALUE);
+                scale = CATCH_UP_SCALE;
+            }
+        }
+        session.setPausedIndex(-1);
+        long startTime = startIndex >= 0 ? timeShift.getTime(startIndex) : TimeShiftBuffer.NO_FRAME;
+        boolean timeShifted = startTime != TimeShiftBuffer.NO_FRAME;
 
+        RtspResponse response = connection.response().start(RtspResponse.OK, cseq)
+                .header(RtspResponse.SESSION, session.getHeader())
+                .header(RtspResponse.RANGE, "npt=" + formatNpt(timeShifted ? startTime : System.nanoTime()) + "-");
+        if (timeShifted && request.getScale() != null) {
+            response.header(RtspResponse.SCALE, String.valueOf(scale));
+        }
+        connection.sendResponse(response.end());
+
+        if (timeShifted) {
+            TimeShiftPlayer player = new TimeShiftPlayer(timeShift, broadcaster, sender, startIndex, scale,
+                    pipeline::wakeUp);
+            session.setPlayer(player);
+            player.start();
+        } else {
+            // Dernière IDR envoyée tout de suite si la rendition est en cours d'encodage ;
+            // si des P-frames l'ont suivie, le client reprend à la prochaine IDR
+            if (!broadcaster.subscribeFromKeyFrame(sender, System.nanoTime(), KEY_FRAME_CACHE_MAX_AGE_NANOS)) {
+                rendition.getEncoder().requestKeyFrame();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        pipeline.wakeUp();
     }
 
     /**
-     * Parse tous les en-têtes RTSP de la requête et les retourne dans une Map.
+     * Paramètres fmtp H.264 du SDP : profil et niveau repris du SPS, SPS et PPS en base64.
      */
-    private Map<String, String> parseHeaders(BufferedReader in) throws IOException {
-        Map<String, String> headers = new HashMap<>();
-        String line;
-        while ((line = in.readLine()) != null && line.trim().length() > 0) {
-            int colon = line.indexOf(":");
-            if (colon != -1) {
-                String key = line.substring(0, colon).trim();
-                String value = line.substring(colon + 1).trim();
-                headers.put(key, value);
+    private static String formatParameters(byte[][] parameterSets) {
+        byte[] sps = parameterSets[0];
+        Base64.Encoder base64 = Base64.getEncoder();
+        return String.format(Locale.ROOT, "packetization-mode=1;profile-level-id=%02X%02X%02X;sprop-parameter-sets=%s,%s",
+                sps[1], sps[2], sps[3], base64.encodeToString(sps), base64.encodeToString(parameterSets[1]));
+    }
+
+    private String formatNpt(long timeNanos) {
+        return String.format(Locale.ROOT, "%.3f", Math.max(0, timeNanos - streamStartNanos) / 1e9);
+    }
+
+    /**
+     * Début d'un Range npt en secondes depuis le démarrage du flux ("npt=42.5-", "npt=0:00:42.5-"),
+     * ou -1 pour le direct ("npt=now-", en-tête absent ou dans un autre format).
+     */
+    private static double parseNptStart(String range) {
+        if (range == null) {
+            return -1;
+        }
+        String value = range.trim().toLowerCase(Locale.ROOT);
+        if (!value.startsWith("npt")) {
+            return -1;
+        }
+        int equals = value.indexOf('=');
+        int dash = value.indexOf('-', equals + 1);
+        String start = value.substring(equals + 1, dash >= 0 ? dash : value.length()).trim();
+        if (start.isEmpty() || start.equals("now")) {
+            return -1;
+        }
+        try {
+            double seconds = 0;
+            for (String part : start.split(":")) {
+                seconds = seconds * 60 + Double.parseDouble(part);
             }
+            return seconds;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Vitesse de lecture différée demandée par l'en-tête Scale, bornée entre 1/4 et 8 (1 par défaut).
+     */
+    private static double parseScale(String scale) {
+        if (scale == null) {
+            return 1;
+        }
+        try {
+            double value = Double.parseDouble(scale.trim());
+            return value > 0 ? Math.max(0.25, Math.min(8, value)) : 1;
+        } catch (NumberFormatException e) {
+            return 1;
         }
-        return headers;
-    }
-
-    private void handleClient(Socket clientSocket) {
-        new Thread(() -> {
-            try (
-                    BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()))
-            ) {
-                // Générer ou réutiliser l'identifiant de session
-                String session = (sessionId == null) ? String.valueOf(new Random().nextInt(1000000)) : sessionId;
-                sessionId = session;
-                boolean exit = false;
-                while (!exit) {
-                    if (clientSocket.isClosed()) {
-                        break;
-                    }
-                    String requestLine = in.readLine();
-                    if (requestLine == null) break;
-                    if (requestLine.trim().isEmpty()) continue;
-                    System.out.println("[" + screenId + "] " + requestLine);
-
-                    StringTokenizer tokens = new StringTokenizer(requestLine);
-                    if (!tokens.hasMoreTokens()) {
-                        System.out.println("Requête RTSP vide ou mal formée.");
-                        continue;
-                    }
-                    String method = tokens.nextToken();
-
-                    // Ignorer la version RTSP
-                    Map<String, String> headers = parseHeaders(in);
-                    String cseq = headers.getOrDefault("CSeq", "1");
-                    String transport = headers.get("Transport");
-                    System.out.println(headers);
-
-                    if ("OPTIONS".equals(method)) {
-                        String response = "RTSP/1.0 200 OK\r\n" +
-                                "CSeq: " + cseq + "\r\n" +
-                                "Public: DESCRIBE, SETUP, PLAY, TEARDOWN, OPTIONS\r\n\r\n";
-                        out.write(response);
-                        out.flush();
-                    } else if ("DESCRIBE".equals(method)) {
-                        String sdp = "v=0\r\n" +
-                                "o=- 0 0 IN IP4 " + localIP + "\r\n" +
-                                "s=Screen" + screenId + "\r\n" +
-                                "c=IN IP4 " + localIP + "\r\n" +
-                                "t=0 0\r\n" +
-                                "a=tool:JavaRTSPServer\r\n" +
-                                "m=video " + rtpPort + " RTP/AVP 96\r\n" +
-                                "a=rtpmap:96 H264/90000\r\n" +
-                                // Paramètres H264 indicatifs (à ajuster si besoin)
-                                "a=framerate:"+ Data.fps + "\r\n" +
-                                "a=fmtp:96 packetization-mode=1;profile-level-id=42A01E;sprop-parameter-sets=Z0IAKeKQCgC3,aMljiA==\r\n" +
-                                "a=control:trackID=0\r\n";
-                        String response = "RTSP/1.0 200 OK\r\n" +
-                                "CSeq: " + cseq + "\r\n" +
-                                "Content-Base: rtsp://" + localIP + ":" + rtspPort + "/" + screenId + "\r\n" +
-                                "Content-Type: application/sdp\r\n" +
-                                "Content-Length: " + sdp.length() + "\r\n\r\n" +
-                                sdp;
-                        System.out.println("Réponse DESCRIBE : " + response);
-                        out.write(response);
-                        out.flush();
-                    } else if ("SETUP".equals(method)) {
-                        // Vérifier le header Transport pour choisir TCP ou UDP
-                        if (transport != null && transport.toLowerCase().contains("tcp")) {
-                            // Mode TCP interleaved
-                            int rtpChannel = 0;
-                            int idx = transport.toLowerCase().indexOf("interleaved=");
-                            if (idx != -1) {
-                                int start = idx + "interleaved=".length();
-                                int dash = transport.indexOf("-", start);
-                                if (dash != -1) {
-                                    String channelStr = transport.substring(start, dash);
-                                    try {
-                                        rtpChannel = Integer.parseInt(channelStr);
-                                    } catch (NumberFormatException ex) {
-                                        rtpChannel = 0;
-                                    }
-                                }
-                            }
-                            System.out.println("RTP Channel : " + rtpChannel);
-                            System.out.println("Client IP : " + clientSocket.getInetAddress().getHostAddress());
-                            System.out.println("tcp://" + clientSocket.getInetAddress().getHostAddress() + ":" + rtpChannel);
-                            TcpRtpSender tcpSender = new TcpRtpSender(clientSocket, rtpChannel);
-                            tcpSender.start();
-                            currentSender = tcpSender;
-                            // Renvoyer le header Transport tel quel (ou adapté) dans la réponse
-                            String response = "RTSP/1.0 200 OK\r\n" +
-                                    "CSeq: " + cseq + "\r\n" +
-                                    "Session: " + session + "\r\n" +
-                                    "Transport: " + transport + "\r\n\r\n";
-                            out.write(response);
-                            out.flush();
-                        } else if (transport != null && transport.toLowerCase().contains("client_port=")) {
-                            // Mode UDP (existant)
-                            int clientPort = 0;
-                            String transportLower = transport.toLowerCase();
-                            int idx = transportLower.indexOf("client_port=");
-                            if (idx != -1) {
-                                int start = idx + "client_port=".length();
-                                int dash = transportLower.indexOf("-", start);
-                                if (dash != -1) {
-                                    String portStr = transportLower.substring(start, dash);
-                                    try {
-                                        clientPort = Integer.parseInt(portStr);
-                                    } catch (NumberFormatException ex) {
-                                        clientPort = 0;
-                                    }
-                                }
-                            }
-                            if (clientPort > 0) {
-                                String clientIP = clientSocket.getInetAddress().getHostAddress();
-                                if (currentSender == null) {
-                                    currentSender = new UnicastRtpSender(clientIP, clientPort);
-                                    ((Thread) currentSender).start();
-                                }
-                                String response = "RTSP/1.0 200 OK\r\n" +
-                                        "CSeq: " + cseq + "\r\n" +
-                                        "Session: " + session + "\r\n" +
-                                        "Transport: RTP/AVP;unicast;destination=" + localIP +
-                                        ";client_port=" + clientPort + ";server_port=" + rtpPort + "\r\n\r\n";
-                                out.write(response);
-                                out.flush();
-                            } else {
-                                String response = "RTSP/1.0 454 Session Not Found\r\n" +
-                                        "CSeq: " + cseq + "\r\n\r\n";
-                                out.write(response);
-                                out.flush();
-                            }
-                        } else {
-                            String response = "RTSP/1.0 454 Session Not Found\r\n" +
-                                    "CSeq: " + cseq + "\r\n\r\n";
-                            out.write(response);
-                            out.flush();
-                        }
-                    } else if ("PLAY".equals(method)) {
-                        playActive = true;
-                        String response = "RTSP/1.0 200 OK\r\n" +
-                                "CSeq: " + cseq + "\r\n" +
-                                "Session: " + session + "\r\n\r\n";
-                        out.write(response);
-                        out.flush();
-                    } else if ("TEARDOWN".equals(method)) {
-                        String response = "RTSP/1.0 200 OK\r\n" +
-                                "CSeq: " + cseq + "\r\n" +
-                                "Session: " + session + "\r\n\r\n";
-                        out.write(response);
-                        out.flush();
-                        playActive = false;
-                        currentSender = null;
-                        exit = true;
-                    } else if ("GET_PARAMETER".equals(method)) {
-                        // Simple réponse GET_PARAMETER pour indiquer que la session est active.
-                        String response = "RTSP/1.0 200 OK\r\n" +
-                                "CSeq: " + cseq + "\r\n" +
-                                "Session: " + session + "\r\n\r\n";
-                        out.write(response);
-                        out.flush();
-                    } else {
-                        String response = "RTSP/1.0 200 OK\r\n" +
-                                "CSeq: " + cseq + "\r\n\r\n";
-                        out.write(response);
-                        out.flush();
-                    }
+    }
+
+    /**
+     * Traite une requête RTSP, sur le thread de la boucle : rien ici ne doit bloquer.
+     */
+    void handleRequest(RtspConnection connection, RtspRequest request) throws Exception {
+        String cseq = request.getCseq();
+        String transport = request.getTransport();
+        RtspResponse response = connection.response();
+        String method = request.getMethod();
+        RtspSession session = findSession(connection, request);
+        if (request.getSession() != null && session == null) {
+            // Session expirée, fermée, ou identifiant inventé
+            connection.sendResponse(response.start(RtspResponse.SESSION_NOT_FOUND, cseq).end());
+            return;
+        }
+        if (session != null) {
+            // Toute requête sur la session la maintient en vie
+            session.touch();
+        }
+        // Un SETUP sans en-tête Session ouvre une nouvelle session
+        RtspSession setupTarget = request.getSession() != null ? session : null;
+
+        if (RtspRequest.OPTIONS.equals(method)) {
+            connection.sendResponse(response.start(RtspResponse.OK, cseq)
+                    .header(RtspResponse.PUBLIC)
+                    .end());
+        } else if (RtspRequest.DESCRIBE.equals(method)) {
+            RenditionStream rendition = selectRendition(request.getUri());
+            if (rendition == null) {
+                rendition = renditions.get(0);
+            }
+            // Retenue pour le SETUP, dont l'URL (Content-Base + trackID) ne la contient pas toujours
+            connection.setRendition(rendition);
+            String contentBase = "rtsp://" + localIP + ":" + rtspPort + "/" + screenId;
+            if (rendition != renditions.get(0)) {
+                contentBase += "/" + rendition.getRendition().getName();
+            }
+            String sdp = "v=0\r\n" +
+                    "o=- 0 0 IN IP4 " + localIP + "\r\n" +
+                    "s=Screen" + screenId + "\r\n" +
+                    "c=IN IP4 " + localIP + "\r\n" +
+                    "t=0 0\r\n" +
+                    "a=tool:JavaRTSPServer\r\n" +
+                    "m=video " + rtpPort + " RTP/AVP 96\r\n" +
+                    "a=rtpmap:96 H264/90000\r\n" +
+                    "a=framerate:"+ config.fps + "\r\n" +
+                    // SPS et PPS réellement produits par l'encodeur de la rendition
+                    "a=fmtp:96 " + formatParameters(rendition.getParameterSets(source.getWidth(), source.getHeight())) + "\r\n" +
+                    "a=control:trackID=0\r\n";
+            connection.sendResponse(response.start(RtspResponse.OK, cseq)
+                    .header(RtspResponse.CONTENT_BASE, contentBase)
+                    .header(RtspResponse.CONTENT_TYPE_SDP)
+                    .end(sdp.getBytes(StandardCharsets.US_ASCII)));
+        } else if (RtspRequest.SETUP.equals(method)) {
+            // Rendition de l'URL, sinon celle du DESCRIBE, sinon la résolution native
+            RenditionStream rendition = selectRendition(request.getUri());
+            if (rendition == null) {
+                rendition = connection.getRendition() != null ? connection.getRendition() : renditions.get(0);
+            }
+            H264FrameEncoder encoder = rendition.getEncoder();
+            // Vérifier le header Transport pour choisir TCP ou UDP
+            String transportLower = transport != null ? transport.toLowerCase() : "";
+            if (transportLower.contains("tcp")) {
+                // Mode TCP interleaved
+                int rtpChannel = Math.max(0, parseFirstNumber(transportLower, "interleaved="));
+                // RTCP sur le second canal de la paire (interleaved=0-1), par défaut le suivant
+                int rtcpChannel = parseSecondNumber(transportLower, "interleaved=");
+                if (rtcpChannel < 0) {
+                    rtcpChannel = rtpChannel + 1;
                 }
-                clientSocket.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+                session = setupSession(connection, setupTarget);
+                session.setRendition(rendition);
+                TcpRtpSender tcpSender = new TcpRtpSender(connection, rtpChannel, rtcpChannel, encoder::requestKeyFrame);
+                tcpSender.start();
+                session.setSender(tcpSender);
+                MetricsRegistry.get().registerSession(rendition.getMetrics(), tcpSender.getMetrics(),
+                        connection.getRemoteAddress().getHostAddress(), "tcp");
+                // Renvoyer le header Transport tel quel dans la réponse
+                connection.sendResponse(response.start(RtspResponse.OK, cseq)
+                        .header(RtspResponse.SESSION, session.getHeader())
+                        .header(RtspResponse.TRANSPORT, transport)
+                        .end());
+            } else if (transportLower.contains("multicast")) {
+                // Mode multicast : groupe de la rendition, la destination proposée par le client est ignorée
+                MulticastRtpSender group;
+                try {
+                    group = openMulticastGroup(connection, rendition);
+                } catch (IOException e) {
+                    System.out.println("Multicast indisponible : " + e.getMessage());
+                    connection.sendResponse(response.start(RtspResponse.UNSUPPORTED_TRANSPORT, cseq).end());
+                    return;
+                }
+                session = setupSession(connection, setupTarget);
+                session.setRendition(rendition);
+                session.setMulticast(group);
+                connection.sendResponse(response.start(RtspResponse.OK, cseq)
+                        .header(RtspResponse.SESSION, session.getHeader())
+                        .header(RtspResponse.TRANSPORT, "RTP/AVP;multicast;destination=" +
+                                group.getGroupAddress().getHostAddress() + ";port=" + group.getRtpPort() + "-" +
+                                group.getRtcpPort() + ";ttl=" + group.getTtl())
+                        .end());
+            } else if (parseFirstNumber(transportLower, "client_port=") > 0) {
+                // Mode UDP
+                int clientPort = parseFirstNumber(transportLower, "client_port=");
+                int clientRtcpPort = parseSecondNumber(transportLower, "client_port=");
+                if (clientRtcpPort <= 0) {
+                    clientRtcpPort = clientPort + 1;
+                }
+                String clientIP = connection.getRemoteAddress().getHostAddress();
+                session = setupSession(connection, setupTarget);
+                session.setRendition(rendition);
+                // Canal UDP partagé par toutes les sessions de l'interface du client
+                UdpSendEngine engine = UdpSendEngine.forInterface(connection.getLocalAddress());
+                UnicastRtpSender udpSender = new UnicastRtpSender(engine, clientIP, clientPort, clientRtcpPort,
+                        encoder::requestKeyFrame);
+                session.setSender(udpSender);
+                MetricsRegistry.get().registerSession(rendition.getMetrics(), udpSender.getMetrics(),
+                        clientIP + ":" + clientPort, "udp");
+                connection.sendResponse(response.start(RtspResponse.OK, cseq)
+                        .header(RtspResponse.SESSION, session.getHeader())
+                        .header(RtspResponse.TRANSPORT, "RTP/AVP;unicast;destination=" + clientIP +
+                                ";client_port=" + clientPort + "-" + clientRtcpPort +
+                                ";server_port=" + engine.getRtpPort() + "-" + engine.getRtcpPort())
+                        .end());
+            } else {
+                connection.sendResponse(response.start(RtspResponse.UNSUPPORTED_TRANSPORT, cseq).end());
+            }
+        } else if (session == null && (RtspRequest.PLAY.equals(method) || RtspRequest.PAUSE.equals(method)
+                || RtspRequest.TEARDOWN.equals(method))) {
+            // Pas de SETUP préalable
+            connection.sendResponse(response.start(RtspResponse.SESSION_NOT_FOUND, cseq).end());
+        } else if (RtspRequest.PLAY.equals(method)) {
+            if (session.getMulticast() != null) {
+                playMulticast(connection, session, session.getMulticast(), cseq);
+            } else {
+                play(connection, session, session.getSender(), session.getRendition(), request, cseq);
             }
-        }).start();
+        } else if (RtspRequest.PAUSE.equals(method)) {
+            // La position est gardée pour que le PLAY suivant reprenne au même endroit dans le différé
+            if (session.getSender() != null) {
+                session.setPausedIndex(stopPlayback(session));
+            }
+            leaveMulticast(session);
+            connection.sendResponse(response.start(RtspResponse.OK, cseq)
+                    .header(RtspResponse.SESSION, session.getHeader())
+                    .end());
+        } else if (RtspRequest.TEARDOWN.equals(method)) {
+            connection.sendResponse(response.start(RtspResponse.OK, cseq)
+                    .header(RtspResponse.SESSION, session.getHeader())
+                    .end());
+            closeSession(session);
+        } else if (RtspRequest.GET_PARAMETER.equals(method) && session != null) {
+            // Keep-alive : indique que la session est active
+            connection.sendResponse(response.start(RtspResponse.OK, cseq)
+                    .header(RtspResponse.SESSION, session.getHeader())
+                    .end());
+        } else {
+            connection.sendResponse(response.start(RtspResponse.OK, cseq).end());
+        }
+    }
+
+    /**
+     * Second nombre d'une paire qui suit {@code key} dans un header Transport
+     * (ex. "client_port=5000-5001" -> 5001), ou -1 s'il n'y en a qu'un.
+     */
+    private static int parseSecondNumber(String transport, String key) {
+        int idx = transport.indexOf(key);
+        if (idx == -1) {
+            return -1;
+        }
+        int dash = idx + key.length();
+        while (dash < transport.length() && Character.isDigit(transport.charAt(dash))) {
+            dash++;
+        }
+        if (dash >= transport.length() || transport.charAt(dash) != '-') {
+            return -1;
+        }
+        return parseNumberAt(transport, dash + 1);
+    }
+
+    /**
+     * Premier nombre qui suit {@code key} dans un header Transport (ex. "client_port=5000-5001" -> 5000),
+     * ou -1.
+     */
+    private static int parseFirstNumber(String transport, String key) {
+        int idx = transport.indexOf(key);
+        if (idx == -1) {
+            return -1;
+        }
+        return parseNumberAt(transport, idx + key.length());
+    }
+
+    private static int parseNumberAt(String transport, int start) {
+        int end = start;
+        while (end < transport.length() && Character.isDigit(transport.charAt(end))) {
+            end++;
+        }
+        if (end == start) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(transport.substring(start, end));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
     }
 }
@@ -0,0 +1,189 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.metrics.RenditionMetrics;
+import fr.mrqsdf.rtspscreenconnect.pipeline.ParallelPool;
+import fr.mrqsdf.rtspscreenconnect.resource.Rendition;
+import fr.mrqsdf.rtspscreenconnect.resource.StreamConfig;
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+import fr.mrqsdf.rtspscreenconnect.utils.H264FrameEncoder;
+import fr.mrqsdf.rtspscreenconnect.utils.ImageResizer;
+import fr.mrqsdf.rtspscreenconnect.utils.NalUnitScanner;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Une variante de résolution d'un écran, avec son propre encodeur et ses propres abonnés.
+ * Toutes les renditions d'un écran partagent la même capture ; une rendition sans client n'est ni
+ * réduite ni encodée. Ses frames diffusées sont gardées dans son différé ({@link TimeShiftBuffer}).
+ * Son {@link AdaptiveController} y ajuste qualité, cadence et résolution selon ses clients.
+ */
+public class RenditionStream {
+
+    private final Rendition rendition;
+    private final FrameBroadcaster broadcaster;
+    private final H264FrameEncoder encoder;
+    private final ImageResizer resizer;
+    private final RenditionMetrics metrics;
+    // Contrôle adaptatif de la qualité, de la cadence et de la résolution, null s'il est désactivé
+    private final AdaptiveController adaptive;
+    // Captures inchangées depuis la dernière frame envoyée
+    private int skippedFrames = 0;
+    // Captures sautées pour réduire la cadence, et changement survenu pendant ces captures
+    private int decimatedFrames = 0;
+    private boolean pendingDamage = false;
+    // SPS et PPS de la dernière IDR (NAL sans code de début), annoncés dans le SDP ; null avant la première
+    private volatile byte[][] parameterSets;
+    private final NalUnitScanner scanner = new NalUnitScanner();
+
+    /**
+     * @param timeShiftPool Mémoire du différé de l'écran, null pour ne garder aucun différé.
+     * @param parallelPool Pool du pipeline pour la réduction, la conversion et les slices.
+     */
+    public RenditionStream(Rendition rendition, StreamConfig config, int sourceHeight, TimeShiftPool timeShiftPool,
+                           ParallelPool parallelPool) {
+        this.rendition = rendition;
+        this.resizer = new ImageResizer(parallelPool);
+        TimeShiftBuffer timeShift = null;
+        if (timeShiftPool != null) {
+            // Au plus une frame par capture, plus un GOP entamé avant le début de la fenêtre
+            int maxFrames = (config.timeShiftSeconds + 1) * config.fps + config.gopSize;
+            timeShift = new TimeShiftBuffer(timeShiftPool, config.timeShiftSeconds, maxFrames);
+        }
+        this.broadcaster = new FrameBroadcaster(timeShift);
+        int slices = config.slices;
+        if (!rendition.isNative(sourceHeight)) {
+            // Moins de lignes, moins de slices
+            slices = Math.max(1, slices * rendition.getHeight(sourceHeight) / Math.max(1, sourceHeight));
+        }
+        this.encoder = new H264FrameEncoder(config.gopSize, slices, parallelPool);
+        this.metrics = new RenditionMetrics(rendition.getName(), broadcaster::getSubscriberCount);
+        this.adaptive = config.adaptive ? new AdaptiveController(rendition.getName(), metrics) : null;
+    }
+
+    public Rendition getRendition() {
+        return rendition;
+    }
+
+    public FrameBroadcaster getBroadcaster() {
+        return broadcaster;
+    }
+
+    public H264FrameEncoder getEncoder() {
+        return encoder;
+    }
+
+    public RenditionMetrics getMetrics() {
+        return metrics;
+    }
+
+    public AdaptiveController getAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * SPS et PPS du flux (NAL sans code de début) : ceux de la dernière IDR encodée, ou à défaut ceux que
+     * l'encodeur produira pour une capture de cette taille.
+     */
+    public byte[][] getParameterSets(int captureWidth, int captureHeight) {
+        byte[][] sets = parameterSets;
+        if (sets != null) {
+            return sets;
+        }
+        return encoder.getParameterSets(rendition.getWidth(captureWidth, captureHeight),
+                rendition.getHeight(captureHeight));
+    }
+
+    /**
+     * Relève le SPS et le PPS en tête d'une IDR, s'ils ont changé (nouvelle résolution).
+     */
+    private void updateParameterSets(EncodedFrame frame) {
+        byte[] sps = null;
+        byte[] pps = null;
+        byte[] data = frame.getData();
+        scanner.reset(data, frame.getOffset(), frame.getLength());
+        while (scanner.next() && (sps == null || pps == null)) {
+            int type = scanner.getNalType();
+            if (type == 7 || type == 8) {
+                byte[] nal = Arrays.copyOfRange(data, scanner.getNalOffset(), scanner.getNalOffset() + scanner.getNalLength());
+                if (type == 7) {
+                    sps = nal;
+                } else {
+                    pps = nal;
+                }
+            } else if (type == 1 || type == 5) {
+                break;
+            }
+        }
+        byte[][] current = parameterSets;
+        if (sps != null && pps != null
+                && (current == null || !Arrays.equals(current[0], sps) || !Arrays.equals(current[1], pps))) {
+            parameterSets = new byte[][]{sps, pps};
+        }
+    }
+
+    /**
+     * Réduit, encode et diffuse la capture si des clients regardent cette rendition.
+     * @param damaged Vrai si la capture a changé depuis la précédente.
+     * @param fps Cadence du flux : une frame par seconde est envoyée même sans changement.
+     */
+    void processFrame(BufferedImage capture, boolean damaged, long captureTimeNanos, int fps) {
+        if (!broadcaster.hasSubscribers()) {
+            if (adaptive != null) {
+                adaptive.reset();
+            }
+            return;
+        }
+        int frameInterval = 1;
+        if (adaptive != null) {
+            adaptive.update(captureTimeNanos, broadcaster.getSubscribers(), fps);
+            encoder.setQpOffset(adaptive.getQpOffset());
+            frameInterval = adaptive.getFrameInterval();
+            // Cadence réduite : une capture sur frameInterval, un changement sauté est encodé à la suivante
+            damaged |= pendingDamage;
+            if (++decimatedFrames < frameInterval && !encoder.isKeyFrameRequested()) {
+                pendingDamage = damaged;
+                return;
+            }
+            decimatedFrames = 0;
+            pendingDamage = false;
+        }
+        // Écran inchangé : la frame n'est ni encodée ni envoyée,
+        // sauf une par seconde pour que les clients restent alimentés,
+        // ou si une IDR est attendue par un nouveau client.
+        if (!damaged && skippedFrames < fps / frameInterval && !encoder.isKeyFrameRequested()) {
+            skippedFrames++;
+            metrics.recordUnchanged();
+            return;
+        }
+        skippedFrames = 0;
+        BufferedImage image = capture;
+        int w = capture.getWidth();
+        int h = capture.getHeight();
+        int targetWidth = rendition.getWidth(w, h);
+        int targetHeight = rendition.getHeight(h);
+        if (adaptive != null) {
+            // Résolution réduite par l'adaptatif : l'encodeur repart d'une IDR à la nouvelle taille
+            targetWidth = adaptive.scaleWidth(targetWidth, targetHeight);
+            targetHeight = adaptive.scaleHeight(targetHeight);
+        }
+        if (targetWidth != w || targetHeight != h) {
+            long start = System.nanoTime();
+            image = resizer.resize(capture, targetWidth, targetHeight);
+            metrics.recordResize(System.nanoTime() - start);
+        }
+        EncodedFrame encodedFrame = encoder.encodeFrame(image, captureTimeNanos);
+        metrics.recordFrame(encoder.getLastConvertNanos(), encoder.getLastEncodeNanos(),
+                encodedFrame.getLength(), encodedFrame.isKeyFrame());
+        if (encodedFrame.getLength() > 0) {
+            if (encodedFrame.isKeyFrame()) {
+                updateParameterSets(encodedFrame);
+            }
+            // Une seule réduction et un seul encodage, partagés par tous les clients de la rendition.
+            broadcaster.broadcast(encodedFrame);
+        } else {
+            System.out.println("Rendition " + rendition + " : frame vide");
+        }
+        encodedFrame.release();
+    }
+}
@@ -0,0 +1,170 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Lecture et écriture des paquets RTCP (RFC 3550, RFC 4585 pour PLI, RFC 5104 pour FIR).
+ * Le serveur envoie des paquets composés SR + SDES (CNAME) et lit les RR, PLI et FIR des clients.
+ */
+public final class Rtcp {
+
+    public static final int SR = 200;
+    public static final int RR = 201;
+    public static final int SDES = 202;
+    public static final int BYE = 203;
+    // Retours spécifiques au payload (PLI, FIR)
+    public static final int PSFB = 206;
+    private static final int FMT_PLI = 1;
+    private static final int FMT_FIR = 4;
+    private static final int SDES_CNAME = 1;
+    // Écart entre l'époque NTP (1900) et l'époque Unix (1970), en secondes
+    private static final long NTP_EPOCH_OFFSET = 2_208_988_800L;
+    private static final byte[] CNAME = cname();
+    // Taille d'un SR + SDES écrit par le serveur : SR de 28 octets, en-tête SDES, puis le chunk CNAME bourré
+    public static final int MAX_SENDER_REPORT_SIZE = 28 + 4 + sdesChunkWords() * 4;
+
+    private Rtcp() {
+    }
+
+    /**
+     * Instant courant au format NTP 64 bits (32 bits de secondes, 32 bits de fraction).
+     */
+    public static long ntpNow() {
+        Instant now = Instant.now();
+        long seconds = now.getEpochSecond() + NTP_EPOCH_OFFSET;
+        long fraction = ((long) now.getNano() << 32) / 1_000_000_000L;
+        return seconds << 32 | fraction;
+    }
+
+    /**
+     * Les 32 bits du milieu d'un temps NTP, format des champs LSR / DLSR (unité : 1/65536 s).
+     */
+    public static long middle32(long ntp) {
+        return (ntp >>> 16) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Écrit un paquet composé Sender Report + SDES CNAME à la position courante.
+     * @param ntp Instant du rapport (format NTP 64 bits).
+     * @param rtpTimestamp Timestamp RTP correspondant au même instant.
+     * @param packets Paquets RTP émis depuis le début du flux.
+     * @param octets Octets de charge utile émis depuis le début du flux.
+     */
+    public static void writeSenderReport(ByteBuffer out, int ssrc, long ntp, long rtpTimestamp,
+                                         long packets, long octets) {
+        // SR sans bloc de réception : V=2, RC=0, longueur 6 mots de 32 bits après l'en-tête
+        out.put((byte) 0x80);
+        out.put((byte) SR);
+        out.putShort((short) 6);
+        out.putInt(ssrc);
+        out.putLong(ntp);
+        out.putInt((int) rtpTimestamp);
+        out.putInt((int) packets);
+        out.putInt((int) octets);
+        // SDES à un seul chunk : SSRC, élément CNAME, fin de liste, bourrage jusqu'au mot suivant
+        int chunkWords = sdesChunkWords();
+        out.put((byte) 0x81);
+        out.put((byte) SDES);
+        out.putShort((short) chunkWords);
+        out.putInt(ssrc);
+        out.put((byte) SDES_CNAME);
+        out.put((byte) CNAME.length);
+        out.put(CNAME);
+        for (int i = 4 + 2 + CNAME.length; i < chunkWords * 4; i++) {
+            out.put((byte) 0);
+        }
+    }
+
+    /**
+     * Lit un paquet RTCP composé reçu d'un client et transmet chaque bloc de réception, PLI ou FIR
+     * à la session dont il désigne le SSRC.
+     * @param sessions Session d'un SSRC émis par le serveur, ou null s'il est inconnu.
+     * @param arrivalNtp Instant de réception (format NTP 64 bits), pour le calcul du RTT.
+     */
+    public static void parse(ByteBuffer in, IntFunction<RtcpSession> sessions, long arrivalNtp) {
+        while (in.remaining() >= 8) {
+            int start = in.position();
+            int first = in.get(start) & 0xFF;
+            int type = in.get(start + 1) & 0xFF;
+            int length = ((in.getShort(start + 2) & 0xFFFF) + 1) * 4;
+            if ((first >> 6) != 2 || length > in.remaining()) {
+                // Pas du RTCP version 2, ou paquet tronqué
+                return;
+            }
+            int count = first & 0x1F;
+            int end = start + length;
+            if (type == SR || type == RR) {
+                // Les SR d'un client portent 20 octets d'infos émetteur avant les blocs
+                int block = start + 8 + (type == SR ? 20 : 0);
+                for (int i = 0; i < count && block + 24 <= end; i++, block += 24) {
+                    RtcpSession session = sessions.apply(in.getInt(block));
+                    if (session != null) {
+                        readReportBlock(in, block, session, arrivalNtp);
+                    }
+                }
+            } else if (type == PSFB && length >= 12) {
+                int mediaSsrc = in.getInt(start + 8);
+                if (count == FMT_PLI) {
+                    RtcpSession session = sessions.apply(mediaSsrc);
+                    if (session != null) {
+                        session.onKeyFrameRequest();
+                    }
+                } else if (count == FMT_FIR) {
+                    // Entrées FCI de 8 octets : SSRC visé, numéro de séquence de commande
+                    for (int fci = start + 12; fci + 8 <= end; fci += 8) {
+                        RtcpSession session = sessions.apply(in.getInt(fci));
+                        if (session != null) {
+                            session.onKeyFrameRequest();
+                        }
+                    }
+                }
+            }
+            in.position(end);
+        }
+    }
+
+    private static void readReportBlock(ByteBuffer in, int block, RtcpSession session, long arrivalNtp) {
+        int fractionLost = in.get(block + 4) & 0xFF;
+        // Perte cumulée sur 24 bits signés
+        int cumulativeLost = (in.getInt(block + 4) << 8) >> 8;
+        long highestSequence = in.getInt(block + 8) & 0xFFFFFFFFL;
+        long jitter = in.getInt(block + 12) & 0xFFFFFFFFL;
+        long lastSenderReport = in.getInt(block + 16) & 0xFFFFFFFFL;
+        long delaySinceLastReport = in.getInt(block + 20) & 0xFFFFFFFFL;
+        long rtt = -1;
+        if (lastSenderReport != 0) {
+            // RTT = arrivée - LSR - DLSR, en 1/65536 s (RFC 3550 §6.4.1)
+            long units = (middle32(arrivalNtp) - lastSenderReport - delaySinceLastReport) & 0xFFFFFFFFL;
+            // Une valeur "négative" (horloges, rapport trop ancien) est ignorée
+            if (units < 0x80000000L) {
+                rtt = units * 1_000_000_000L / 65536;
+            }
+        }
+        session.onReceiverReport(fractionLost, cumulativeLost, highestSequence, jitter, rtt);
+    }
+
+    /**
+     * Taille en mots de 32 bits du chunk SDES : SSRC, élément CNAME, fin de liste, bourrage.
+     */
+    private static int sdesChunkWords() {
+        int itemsLength = 2 + CNAME.length + 1;
+        return (4 + itemsLength + 3) / 4;
+    }
+
+    private static byte[] cname() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "localhost";
+        }
+        byte[] cname = ("rtspscreenconnect@" + host).getBytes(StandardCharsets.UTF_8);
+        // Un élément SDES fait au plus 255 octets
+        return cname.length > 255 ? Arrays.copyOf(cname, 255) : cname;
+    }
+}
@@ -0,0 +1,145 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.metrics.SessionMetrics;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * État RTCP d'une session : émission périodique des Sender Reports (correspondance NTP / RTP,
+ * nombre de paquets et d'octets) et statistiques issues des Receiver Reports du client
+ * (perte, gigue, RTT), consultables par le reste du serveur.
+ *
+ * Les SR sont construits par le thread d'envoi de la session, entre deux frames ; les rapports du client
+ * sont lus par un autre thread (boucle RTSP en TCP, récepteur RTCP en UDP), d'où les champs volatiles.
+ */
+public class RtcpSession {
+
+    // Intervalle moyen entre deux SR, tiré entre 0,5 et 1,5 fois cette valeur (RFC 3550 §6.2)
+    private static final long REPORT_INTERVAL_NANOS = 5_000_000_000L;
+
+    private final RtpPacketizer packetizer;
+    private final Runnable keyFrameRequester;
+    private final SessionMetrics metrics;
+    // Thread d'envoi uniquement : 0 = premier SR dès la première frame, pour une synchronisation rapide
+    private long nextReportNanos = 0;
+
+    private volatile int fractionLost;
+    private volatile long cumulativeLost;
+    private volatile long highestSequence;
+    private volatile long jitter;
+    private volatile long rttNanos = -1;
+    private volatile long receiverReports;
+    private volatile long lastReceiverReportNanos;
+    private volatile long keyFrameRequests;
+
+    public RtcpSession(RtpPacketizer packetizer, Runnable keyFrameRequester, SessionMetrics metrics) {
+        this.packetizer = packetizer;
+        this.keyFrameRequester = keyFrameRequester;
+        this.metrics = metrics;
+    }
+
+    public int getSsrc() {
+        return packetizer.getSsrc();
+    }
+
+    /**
+     * Écrit un SR + SDES si l'échéance est passée (thread d'envoi, après une frame).
+     * @return Vrai si un rapport a été écrit dans {@code out}.
+     */
+    public boolean writeReportIfDue(ByteBuffer out) {
+        long now = System.nanoTime();
+        if (now < nextReportNanos || !packetizer.isClockStarted()) {
+            return false;
+        }
+        long interval = (long) (REPORT_INTERVAL_NANOS * (0.5 + ThreadLocalRandom.current().nextDouble()));
+        nextReportNanos = now + interval;
+        // Même instant des deux côtés : horloge murale pour le NTP, horloge du flux pour le RTP
+        long ntp = Rtcp.ntpNow();
+        long rtpTimestamp = packetizer.toRtpTimestamp(now);
+        Rtcp.writeSenderReport(out, packetizer.getSsrc(), ntp, rtpTimestamp,
+                packetizer.getPacketCount(), packetizer.getOctetCount());
+        return true;
+    }
+
+    /**
+     * Lit un paquet RTCP reçu pour cette session (TCP interleaved).
+     */
+    public void receive(ByteBuffer data) {
+        int ssrc = getSsrc();
+        Rtcp.parse(data, reported -> reported == ssrc ? this : null, Rtcp.ntpNow());
+    }
+
+    void onReceiverReport(int fractionLost, long cumulativeLost, long highestSequence, long jitter, long rttNanos) {
+        this.fractionLost = fractionLost;
+        this.cumulativeLost = cumulativeLost;
+        this.highestSequence = highestSequence;
+        this.jitter = jitter;
+        if (rttNanos >= 0) {
+            this.rttNanos = rttNanos;
+        }
+        this.lastReceiverReportNanos = System.nanoTime();
+        receiverReports++;
+        if (metrics != null) {
+            metrics.recordReceiverReport(getFractionLost(), cumulativeLost, getJitterMillis(), getRttMillis());
+        }
+    }
+
+    /**
+     * PLI ou FIR : le décodeur du client a besoin d'une IDR.
+     */
+    void onKeyFrameRequest() {
+        keyFrameRequests++;
+        if (keyFrameRequester != null) {
+            keyFrameRequester.run();
+        }
+    }
+
+    /**
+     * Part des paquets perdus depuis le rapport précédent du client, entre 0 et 1.
+     */
+    public double getFractionLost() {
+        return fractionLost / 256.0;
+    }
+
+    public long getCumulativeLost() {
+        return cumulativeLost;
+    }
+
+    /**
+     * Plus grand numéro de séquence reçu par le client, étendu avec le nombre de cycles.
+     */
+    public long getHighestSequence() {
+        return highestSequence;
+    }
+
+    /**
+     * Gigue d'arrivée estimée par le client, en millisecondes.
+     */
+    public double getJitterMillis() {
+        return jitter * 1000.0 / RtpPacketizer.CLOCK_RATE;
+    }
+
+    /**
+     * Temps d'aller-retour, en millisecondes, ou -1 tant qu'aucun rapport ne le permet.
+     */
+    public double getRttMillis() {
+        long rtt = rttNanos;
+        return rtt < 0 ? -1 : rtt / 1e6;
+    }
+
+    public long getReceiverReports() {
+        return receiverReports;
+    }
+
+    /**
+     * Instant (System.nanoTime) du dernier rapport du client, 0 s'il n'en a envoyé aucun.
+     */
+    public long getLastReceiverReportNanos() {
+        return lastReceiverReportNanos;
+    }
+
+    public long getKeyFrameRequests() {
+        return keyFrameRequests;
+    }
+}
@@ -0,0 +1,45 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Réserve de buffers de paquets RTP réutilisables.
+ * En régime établi, plus aucun buffer n'est alloué : chaque paquet envoyé rend son buffer à la réserve.
+ * La file est bornée et pré-allouée, rendre un buffer n'alloue donc rien non plus.
+ */
+public class RtpPacketPool {
+
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int packetSize;
+    private final boolean direct;
+
+    /**
+     * @param packetSize Taille de chaque buffer (en-têtes compris).
+     * @param maxPooled Nombre maximal de buffers conservés dans la réserve.
+     * @param direct Buffers hors tas (pour les channels NIO) ou dans le tas (pour les flux).
+     */
+    public RtpPacketPool(int packetSize, int maxPooled, boolean direct) {
+        this.packetSize = packetSize;
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = direct ? ByteBuffer.allocateDirect(packetSize) : ByteBuffer.allocate(packetSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        // Réserve pleine : le buffer est simplement abandonné au GC
+        free.offer(buffer);
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+}
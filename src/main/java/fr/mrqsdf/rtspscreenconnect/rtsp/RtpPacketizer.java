@@ -0,0 +1,258 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+import fr.mrqsdf.rtspscreenconnect.utils.NalUnitScanner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Packetisation RTP H.264 (RFC 6184, packetization-mode=1) partagée par tous les senders.
+ * Chaque frame Annex-B est découpée en NAL units :
+ * - les petites NAL consécutives (SPS, PPS, SEI...) sont regroupées en STAP-A,
+ * - une NAL qui tient dans le MTU est envoyée seule,
+ * - seules les NAL plus grandes que le MTU sont fragmentées en FU-A.
+ * Le marker bit est posé sur le dernier paquet de la frame.
+ *
+ * Les en-têtes RTP, STAP-A et FU-A sont écrits directement dans des buffers issus d'une
+ * {@link RtpPacketPool}, suivis du payload : aucune allocation ni copie intermédiaire par paquet.
+ */
+public class RtpPacketizer {
+
+    public interface PacketSink {
+        /**
+         * Reçoit un paquet prêt à envoyer : le paquet RTP occupe [position, limit[,
+         * les octets réservés avant la position sont libres pour le sink (framing TCP par exemple).
+         * Le sink devient propriétaire du buffer et doit le rendre à la réserve une fois envoyé.
+         */
+        void sendPacket(ByteBuffer packet) throws Exception;
+    }
+
+    public static final int RTP_HEADER_SIZE = 12;
+    // Horloge RTP de la vidéo H.264
+    public static final int CLOCK_RATE = 90000;
+    private static final int STAP_A = 24;
+    private static final int FU_A = 28;
+
+    // Taille maximale du payload RTP (en octets). Ajustez selon le MTU (par exemple, 1400)
+    private final int maxPayload;
+    // Octets laissés libres devant l'en-tête RTP de chaque paquet
+    private final int headroom;
+    private final RtpPacketPool pool;
+    private final int ssrc;
+    private final NalUnitScanner scanner = new NalUnitScanner();
+    private int[] nalOffsets = new int[16];
+    private int[] nalLengths = new int[16];
+    private int sequenceNumber;
+    // Paquets et octets de charge utile émis, annoncés dans les Sender Reports RTCP (thread d'envoi)
+    private long packetCount;
+    private long octetCount;
+    private final int timestampBase;
+    // Instant de capture correspondant à timestampBase, fixé à la première frame
+    private long clockOriginNanos;
+    private boolean clockStarted = false;
+
+    public RtpPacketizer(int maxPayload, boolean direct) {
+        this(maxPayload, 0, direct);
+    }
+
+    public RtpPacketizer(int maxPayload, int headroom, boolean direct) {
+        this(maxPayload, headroom, new RtpPacketPool(headroom + RTP_HEADER_SIZE + maxPayload, 512, direct));
+    }
+
+    public RtpPacketizer(int maxPayload, int headroom, RtpPacketPool pool) {
+        this.maxPayload = maxPayload;
+        this.headroom = headroom;
+        this.pool = pool;
+        // SSRC et numéro de séquence initial aléatoires, propres à chaque flux (RFC 3550)
+        this.ssrc = ThreadLocalRandom.current().nextInt();
+        this.sequenceNumber = ThreadLocalRandom.current().nextInt(0x10000);
+        this.timestampBase = ThreadLocalRandom.current().nextInt();
+    }
+
+    public RtpPacketPool getPool() {
+        return pool;
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Nombre de paquets RTP émis depuis le début du flux.
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Nombre d'octets de charge utile (en-têtes RTP exclus) émis depuis le début du flux.
+     */
+    public long getOctetCount() {
+        return octetCount;
+    }
+
+    /**
+     * Vrai dès que la première frame a fixé l'origine de l'horloge RTP.
+     */
+    public boolean isClockStarted() {
+        return clockStarted;
+    }
+
+    /**
+     * Convertit un instant (System.nanoTime) en timestamp RTP 90 kHz pour ce flux.
+     * La première frame fixe l'origine, les suivantes sont espacées selon leur vrai instant de capture.
+     */
+    public long toRtpTimestamp(long nanos) {
+        if (!clockStarted) {
+            clockOriginNanos = nanos;
+            clockStarted = true;
+        }
+        long elapsed = nanos - clockOriginNanos;
+        // Secondes et reste séparés pour ne pas déborder sur les sessions de plusieurs jours
+        long ticks = elapsed / 1_000_000_000L * CLOCK_RATE + elapsed % 1_000_000_000L * CLOCK_RATE / 1_000_000_000L;
+        return (timestampBase + ticks) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Packetise une frame en la datant de son instant de capture.
+     */
+    public void packetizeFrame(EncodedFrame frame, PacketSink sink) throws Exception {
+        long timestamp = toRtpTimestamp(frame.getCaptureTimeNanos());
+        packetizeFrame(frame.getData(), frame.getOffset(), frame.getLength(), timestamp, sink);
+    }
+
+    /**
+     * Découpe une frame Annex-B et envoie ses paquets RTP dans l'ordre.
+     * @param frame Le buffer contenant la frame encodée (codes de départ inclus).
+     * @param offset Le début de la frame dans le buffer.
+     * @param length La longueur de la frame.
+     * @param timestamp Le timestamp RTP (horloge 90 kHz) de la frame.
+     * @param sink La destination des paquets.
+     */
+    public void packetizeFrame(byte[] frame, int offset, int length, long timestamp, PacketSink sink) throws Exception {
+        int nalCount = collectNals(frame, offset, length);
+        int i = 0;
+        while (i < nalCount) {
+            int nalLength = nalLengths[i];
+            if (nalLength > maxPayload) {
+                sendFragmented(frame, nalOffsets[i], nalLength, i == nalCount - 1, timestamp, sink);
+                i++;
+                continue;
+            }
+            // Regrouper autant de petites NAL consécutives que le MTU le permet
+            int aggregated = 1;
+            int stapSize = 1 + 2 + nalLength;
+            while (i + aggregated < nalCount
+                    && stapSize + 2 + nalLengths[i + aggregated] <= maxPayload) {
+                stapSize += 2 + nalLengths[i + aggregated];
+                aggregated++;
+            }
+            boolean last = i + aggregated == nalCount;
+            ByteBuffer packet = startPacket(last, timestamp);
+            if (aggregated == 1) {
+                packet.put(frame, nalOffsets[i], nalLength);
+            } else {
+                putStapA(packet, frame, i, aggregated);
+            }
+            finishPacket(packet, sink);
+            i += aggregated;
+        }
+    }
+
+    private int collectNals(byte[] frame, int offset, int length) {
+        scanner.reset(frame, offset, length);
+        int count = 0;
+        while (scanner.next()) {
+            if (count == nalOffsets.length) {
+                nalOffsets = Arrays.copyOf(nalOffsets, count * 2);
+                nalLengths = Arrays.copyOf(nalLengths, count * 2);
+            }
+            nalOffsets[count] = scanner.getNalOffset();
+            nalLengths[count] = scanner.getNalLength();
+            count++;
+        }
+        return count;
+    }
+
+    private void putStapA(ByteBuffer packet, byte[] frame, int first, int count) {
+        int forbidden = 0;
+        int nri = 0;
+        for (int n = first; n < first + count; n++) {
+            int header = frame[nalOffsets[n]] & 0xFF;
+            forbidden |= header & 0x80;
+            nri = Math.max(nri, header & 0x60);
+        }
+        // En-tête STAP-A : F et NRI les plus forts des NAL agrégées, type 24
+        packet.put((byte) (forbidden | nri | STAP_A));
+        for (int n = first; n < first + count; n++) {
+            packet.putShort((short) nalLengths[n]);
+            packet.put(frame, nalOffsets[n], nalLengths[n]);
+        }
+    }
+
+    private void sendFragmented(byte[] frame, int nalOffset, int nalLength, boolean lastNal,
+                                long timestamp, PacketSink sink) throws Exception {
+        // Le premier octet est le header NAL, il n'est pas transmis tel quel en FU-A
+        int nalHeader = frame[nalOffset] & 0xFF;
+        int nalType = nalHeader & 0x1F;
+        // FU indicator : F (bit7) + NRI (bits 6-5) + 28 (FU-A)
+        int fuIndicator = (nalHeader & 0xE0) | FU_A;
+        int offset = nalOffset + 1;
+        int end = nalOffset + nalLength;
+        boolean firstFragment = true;
+        while (offset < end) {
+            int remaining = end - offset;
+            // On réserve 2 octets pour FU-A header, le reste pour la charge utile.
+            int payloadSize = Math.min(remaining, maxPayload - 2);
+            // FU header : S, E, R (bit 7, 6, 5) + original nalType (bits 4-0)
+            int fuHeader = nalType;
+            if (firstFragment) {
+                fuHeader |= 0x80; // S=1
+                firstFragment = false;
+            }
+            boolean lastFragment = remaining == payloadSize;
+            if (lastFragment) {
+                fuHeader |= 0x40; // E=1 pour le dernier fragment
+            }
+            // Le marker bit n'est mis que sur le dernier fragment de la dernière NAL de la frame
+            ByteBuffer packet = startPacket(lastNal && lastFragment, timestamp);
+            packet.put((byte) fuIndicator);
+            packet.put((byte) fuHeader);
+            packet.put(frame, offset, payloadSize);
+            finishPacket(packet, sink);
+            offset += payloadSize;
+        }
+    }
+
+    /**
+     * Prend un buffer dans la réserve et y écrit l'en-tête RTP (12 octets) après la zone réservée.
+     * @param marker Si vrai, le marker bit est mis à 1.
+     */
+    private ByteBuffer startPacket(boolean marker, long timestamp) {
+        ByteBuffer packet = pool.acquire();
+        packet.position(headroom);
+        // Version 2, pas de padding, pas d'extension, pas de CSRC
+        packet.put((byte) 0x80);
+        // Marker bit et payload type 96 (dynamique)
+        packet.put((byte) ((marker ? 0x80 : 0x00) | 96));
+        packet.putShort((short) sequenceNumber);
+        packet.putInt((int) timestamp);
+        packet.putInt(ssrc);
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+        return packet;
+    }
+
+    private void finishPacket(ByteBuffer packet, PacketSink sink) throws Exception {
+        packet.flip();
+        packet.position(headroom);
+        packetCount++;
+        octetCount += packet.remaining() - RTP_HEADER_SIZE;
+        sink.sendPacket(packet);
+    }
+}
@@ -0,0 +1,263 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Connexion de contrôle RTSP d'un client, en mode non bloquant sur la boucle {@link RtspEventLoop}.
+ * Les requêtes sont lues et analysées par la boucle, puis traitées par le {@link RTSPServer} de l'écran.
+ *
+ * En TCP interleaved, les paquets RTP partagent ce canal avec les réponses RTSP : toutes les écritures
+ * passent par une file ordonnée, vidée dès que le socket est inscriptible, pour qu'un paquet ne soit jamais
+ * coupé par une réponse. La file est vidée par écritures groupées (un appel système pour plusieurs tampons).
+ * Personne n'attend le socket : ni la boucle, ni le thread d'envoi TCP, qui applique sa politique de perte
+ * tant que ses tampons n'ont pas été absorbés.
+ */
+public class RtspConnection implements RtspRequestParser.Listener {
+
+    // Taille maximale d'une requête (en-têtes et corps)
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Tampons en file passés à une même écriture groupée
+    static final int MAX_GATHER = 16;
+
+    private final RtspEventLoop loop;
+    private final SocketChannel channel;
+    private final RTSPServer server;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final RtspRequestParser parser = new RtspRequestParser();
+    private final RtspResponse response = new RtspResponse(512);
+    // Écritures en attente, dans l'ordre d'envoi (protégée par writeLock)
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final Object writeLock = new Object();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private SelectionKey key;
+    private volatile boolean closed = false;
+    // Sessions pilotées par cette connexion, la dernière ouverte en fin (thread de la boucle uniquement)
+    private final List<RtspSession> sessions = new ArrayList<>();
+    // Rendition du dernier DESCRIBE, reprise par un SETUP dont l'URL n'en désigne pas
+    private RenditionStream rendition;
+
+    RtspConnection(RtspEventLoop loop, SocketChannel channel, RTSPServer server) {
+        this.loop = loop;
+        this.channel = channel;
+        this.server = server;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public RTSPServer getServer() {
+        return server;
+    }
+
+    public InetAddress getRemoteAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    public InetAddress getLocalAddress() {
+        return channel.socket().getLocalAddress();
+    }
+
+    public List<RtspSession> getSessions() {
+        return sessions;
+    }
+
+    public RenditionStream getRendition() {
+        return rendition;
+    }
+
+    public void setRendition(RenditionStream rendition) {
+        this.rendition = rendition;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Tampon de réponse de la connexion, réutilisé pour chaque requête (thread de la boucle uniquement).
+     */
+    public RtspResponse response() {
+        return response;
+    }
+
+    /**
+     * Lit les octets disponibles et traite toutes les requêtes complètes (appelé par la boucle).
+     */
+    void onReadable() throws Exception {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        try {
+            parser.parse(readBuffer, this);
+        } finally {
+            readBuffer.compact();
+        }
+        if (!readBuffer.hasRemaining()) {
+            throw new RtspRequestParser.RtspParseException("Requête trop longue");
+        }
+    }
+
+    @Override
+    public void onRequest(RtspRequest request) throws Exception {
+        server.handleRequest(this, request);
+    }
+
+    @Override
+    public void onInterleaved(int channel, ByteBuffer data) {
+        // Rapports RTCP du client sur le canal impair de l'une de ses sessions
+        for (RtspSession session : sessions) {
+            if (session.getSender() instanceof TcpRtpSender tcpSender && channel == tcpSender.getRtcpChannel()) {
+                tcpSender.getRtcp().receive(data);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Envoie une réponse construite avec {@link #response()} (thread de la boucle).
+     * Ce qui ne part pas immédiatement est copié en file : la boucle ne bloque jamais.
+     */
+    public void sendResponse(ByteBuffer data) throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            if (pendingWrites.isEmpty()) {
+                channel.write(data);
+                if (!data.hasRemaining()) {
+                    return;
+                }
+            }
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data).flip();
+            pendingWrites.add(copy);
+            enableWriteInterest();
+        }
+    }
+
+    /**
+     * Ajoute des paquets interleaved à la suite des écritures en attente, sans attendre (thread d'envoi TCP).
+     * Le tampon appartient à la connexion tant que {@link #isWriting(ByteBuffer)} est vrai.
+     */
+    public void writeInterleaved(ByteBuffer data) throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            pendingWrites.add(data);
+            if (!flush()) {
+                enableWriteInterest();
+            }
+        }
+    }
+
+    /**
+     * Vrai si le tampon remis par {@link #writeInterleaved(ByteBuffer)} n'est pas encore entièrement parti.
+     */
+    public boolean isWriting(ByteBuffer data) {
+        synchronized (writeLock) {
+            return !closed && data.hasRemaining();
+        }
+    }
+
+    /**
+     * Le socket accepte de nouveau des octets : vide la file d'écriture (appelé par la boucle).
+     */
+    void onWritable() throws IOException {
+        synchronized (writeLock) {
+            if (flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Ferme la connexion depuis un autre thread que la boucle : la fermeture et la libération
+     * des sessions sont faites par la boucle.
+     */
+    public void closeLater() {
+        loop.execute(this::close);
+    }
+
+    /**
+     * Ferme la connexion et libère la session (idempotent).
+     */
+    public void close() {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingWrites.clear();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        server.onDisconnect(this);
+    }
+
+    /**
+     * Écrit la file tant que le socket accepte des octets.
+     * @return Vrai si tout est parti.
+     */
+    private boolean flush() throws IOException {
+        return flush(pendingWrites, gather, channel);
+    }
+
+    /**
+     * Vide {@code pendingWrites} dans {@code channel} par écritures groupées d'au plus {@code gather.length}
+     * tampons, jusqu'à ce que le canal n'accepte plus tout ce qui lui est proposé.
+     * Les tampons entièrement écrits sont retirés de la file.
+     * @return Vrai si tout est parti.
+     */
+    static boolean flush(ArrayDeque<ByteBuffer> pendingWrites, ByteBuffer[] gather, GatheringByteChannel channel)
+            throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            int count = 0;
+            long offered = 0;
+            for (ByteBuffer buffer : pendingWrites) {
+                gather[count++] = buffer;
+                offered += buffer.remaining();
+                if (count == gather.length) {
+                    break;
+                }
+            }
+            long written = channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            while (!pendingWrites.isEmpty() && !pendingWrites.peekFirst().hasRemaining()) {
+                pendingWrites.pollFirst();
+            }
+            if (written < offered) {
+                // Socket plein : la suite partira quand il sera de nouveau inscriptible
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void enableWriteInterest() {
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            loop.wakeUp();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Plan de contrôle RTSP de tous les écrans : un seul thread et un Selector pour les ports d'écoute
+ * et toutes les connexions clientes, au lieu d'un thread bloquant par client.
+ * Les requêtes sont traitées directement sur ce thread : elles ne doivent jamais bloquer.
+ */
+public class RtspEventLoop extends Thread {
+
+    // Intervalle de recherche des sessions expirées
+    private static final long SESSION_CHECK_MILLIS = 1000;
+
+    private final Selector selector;
+    // Actions à exécuter sur le thread de la boucle (inscriptions, fermetures)
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, ServerSocketChannel> listeners = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    public RtspEventLoop() throws IOException {
+        super("RtspEventLoop");
+        setDaemon(true);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Ouvre le port RTSP d'un écran. Le port est réservé immédiatement, les connexions sont acceptées
+     * par la boucle.
+     */
+    public void bind(int port, RTSPServer server) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        listeners.put(port, serverChannel);
+        execute(() -> {
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT, server);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Ferme le port d'un écran et toutes les connexions de ses clients.
+     */
+    public void unbind(int port, RTSPServer server) {
+        ServerSocketChannel serverChannel = listeners.remove(port);
+        execute(() -> {
+            if (serverChannel != null) {
+                try {
+                    serverChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (RtspConnection connection : connections()) {
+                if (connection.getServer() == server) {
+                    connection.close();
+                }
+            }
+            server.closeSessions();
+        });
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void wakeUp() {
+        selector.wakeup();
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private List<RtspConnection> connections() {
+        List<RtspConnection> connections = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof RtspConnection connection) {
+                connections.add(connection);
+            }
+        }
+        return connections;
+    }
+
+    @Override
+    public void run() {
+        try {
+            long lastSessionCheck = System.nanoTime();
+            while (running) {
+                selector.select(SESSION_CHECK_MILLIS);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.nanoTime();
+                if (now - lastSessionCheck >= SESSION_CHECK_MILLIS * 1_000_000L) {
+                    lastSessionCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid() && key.attachment() instanceof RTSPServer server) {
+                            server.expireSessions(now);
+                        }
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.attachment() instanceof RTSPServer server) {
+                        accept(key, server);
+                    } else {
+                        handle(key, (RtspConnection) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (RtspConnection connection : connections()) {
+                connection.close();
+            }
+            for (ServerSocketChannel serverChannel : listeners.values()) {
+                try {
+                    serverChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept(SelectionKey key, RTSPServer server) {
+        try {
+            SocketChannel channel;
+            while (key.isValid() && (channel = ((ServerSocketChannel) key.channel()).accept()) != null) {
+                channel.configureBlocking(false);
+                RtspConnection connection = new RtspConnection(this, channel, server);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                server.onConnect(connection);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handle(SelectionKey key, RtspConnection connection) {
+        try {
+            if (key.isWritable()) {
+                connection.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+        } catch (CancelledKeyException e) {
+            connection.close();
+        } catch (Exception e) {
+            // Client parti ou requête invalide : la connexion est fermée, pas la boucle
+            if (!(e instanceof IOException)) {
+                e.printStackTrace();
+            }
+            connection.close();
+        }
+    }
+}
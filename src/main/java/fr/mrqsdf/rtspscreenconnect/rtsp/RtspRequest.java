@@ -0,0 +1,74 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+/**
+ * Requête RTSP décodée par {@link RtspRequestParser}. Seuls les en-têtes utilisés par le serveur sont conservés.
+ * L'instance est réutilisée d'une requête à l'autre : elle ne doit pas être gardée après son traitement.
+ */
+public class RtspRequest {
+
+    public static final String OPTIONS = "OPTIONS";
+    public static final String DESCRIBE = "DESCRIBE";
+    public static final String SETUP = "SETUP";
+    public static final String PLAY = "PLAY";
+    public static final String PAUSE = "PAUSE";
+    public static final String TEARDOWN = "TEARDOWN";
+    public static final String GET_PARAMETER = "GET_PARAMETER";
+    public static final String SET_PARAMETER = "SET_PARAMETER";
+
+    String method;
+    String uri;
+    String cseq;
+    String transport;
+    String session;
+    String range;
+    String scale;
+    int contentLength;
+
+    void reset() {
+        method = null;
+        uri = null;
+        cseq = null;
+        transport = null;
+        session = null;
+        range = null;
+        scale = null;
+        contentLength = 0;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getCseq() {
+        return cseq != null ? cseq : "1";
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public String getSession() {
+        return session;
+    }
+
+    public String getRange() {
+        return range;
+    }
+
+    public String getScale() {
+        return scale;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + uri + " (CSeq " + cseq + ")";
+    }
+}
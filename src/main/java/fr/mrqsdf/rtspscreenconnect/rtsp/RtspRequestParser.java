@@ -0,0 +1,255 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Analyseur RTSP incrémental, directement sur les octets reçus.
+ * Un appel à {@link #parse} consomme tous les messages complets du tampon (requêtes enchaînées sans attendre
+ * les réponses) et laisse le message incomplet en place pour la lecture suivante.
+ * Les blocs interleaved envoyés par le client ('$', canal, longueur, données — RTCP sur TCP) sont reconnus
+ * entre les requêtes et transmis tels quels.
+ */
+public class RtspRequestParser {
+
+    public interface Listener {
+        void onRequest(RtspRequest request) throws Exception;
+
+        /**
+         * Bloc interleaved reçu du client, occupant [position, limit) du tampon. Le contenu n'est valable que
+         * pendant l'appel.
+         */
+        void onInterleaved(int channel, ByteBuffer data) throws Exception;
+    }
+
+    private static final byte[][] METHODS = {
+            ascii(RtspRequest.OPTIONS), ascii(RtspRequest.DESCRIBE), ascii(RtspRequest.SETUP),
+            ascii(RtspRequest.PLAY), ascii(RtspRequest.PAUSE), ascii(RtspRequest.TEARDOWN),
+            ascii(RtspRequest.GET_PARAMETER), ascii(RtspRequest.SET_PARAMETER)
+    };
+    private static final String[] METHOD_NAMES = {
+            RtspRequest.OPTIONS, RtspRequest.DESCRIBE, RtspRequest.SETUP, RtspRequest.PLAY,
+            RtspRequest.PAUSE, RtspRequest.TEARDOWN, RtspRequest.GET_PARAMETER, RtspRequest.SET_PARAMETER
+    };
+    private static final byte[] CSEQ = ascii("cseq");
+    private static final byte[] TRANSPORT = ascii("transport");
+    private static final byte[] SESSION = ascii("session");
+    private static final byte[] RANGE = ascii("range");
+    private static final byte[] SCALE = ascii("scale");
+    private static final byte[] CONTENT_LENGTH = ascii("content-length");
+
+    private final RtspRequest request = new RtspRequest();
+    // Position (relative au début du message courant) où reprendre la recherche de la fin des en-têtes
+    private int scanFrom = 0;
+
+    /**
+     * Consomme les messages complets de [position, limit). En sortie, la position pointe sur le premier octet
+     * non consommé : le tampon peut être compacté avant la lecture suivante.
+     * @throws RtspParseException si un message est mal formé : la connexion doit être fermée.
+     */
+    public void parse(ByteBuffer in, Listener listener) throws Exception {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            byte first = in.get(start);
+            if (first == '\r' || first == '\n') {
+                // Lignes vides entre deux requêtes
+                in.position(start + 1);
+                continue;
+            }
+            if (first == '$') {
+                if (in.remaining() < 4) {
+                    return;
+                }
+                int channel = in.get(start + 1) & 0xFF;
+                int length = in.getShort(start + 2) & 0xFFFF;
+                if (in.remaining() < 4 + length) {
+                    return;
+                }
+                int end = start + 4 + length;
+                ByteBuffer data = in.duplicate();
+                data.position(start + 4).limit(end);
+                listener.onInterleaved(channel, data);
+                in.position(end);
+                continue;
+            }
+            int headerEnd = findHeaderEnd(in, Math.max(start, start + scanFrom - 3), in.limit());
+            if (headerEnd < 0) {
+                scanFrom = in.limit() - start;
+                return;
+            }
+            request.reset();
+            parseHead(in, start, headerEnd);
+            int end = headerEnd + request.contentLength;
+            if (end > in.limit()) {
+                // En-têtes complets mais corps pas encore reçu : il sera relu en entier
+                scanFrom = 0;
+                return;
+            }
+            scanFrom = 0;
+            in.position(end);
+            listener.onRequest(request);
+        }
+    }
+
+    /**
+     * Index juste après la ligne vide qui termine les en-têtes (CRLF CRLF, ou LF LF), ou -1.
+     */
+    private static int findHeaderEnd(ByteBuffer in, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (in.get(i) != '\n') {
+                continue;
+            }
+            if (i + 1 < to && in.get(i + 1) == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < to && in.get(i + 1) == '\r' && in.get(i + 2) == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private void parseHead(ByteBuffer in, int start, int end) throws RtspParseException {
+        int lineEnd = lineEnd(in, start, end);
+        parseRequestLine(in, start, trimEnd(in, start, lineEnd));
+        int pos = lineEnd + 1;
+        while (pos < end) {
+            int next = lineEnd(in, pos, end);
+            int stop = trimEnd(in, pos, next);
+            if (stop > pos) {
+                parseHeader(in, pos, stop);
+            }
+            pos = next + 1;
+        }
+    }
+
+    private void parseRequestLine(ByteBuffer in, int start, int end) throws RtspParseException {
+        int space = indexOf(in, start, end, (byte) ' ');
+        if (space <= start) {
+            throw new RtspParseException("Ligne de requête invalide");
+        }
+        request.method = method(in, start, space);
+        int uriStart = skipSpaces(in, space, end);
+        int uriEnd = indexOf(in, uriStart, end, (byte) ' ');
+        if (uriEnd < 0) {
+            uriEnd = end;
+        }
+        request.uri = string(in, uriStart, uriEnd);
+    }
+
+    private void parseHeader(ByteBuffer in, int start, int end) throws RtspParseException {
+        int colon = indexOf(in, start, end, (byte) ':');
+        if (colon < 0) {
+            return;
+        }
+        int nameEnd = trimEnd(in, start, colon);
+        int valueStart = skipSpaces(in, colon + 1, end);
+        if (matches(in, start, nameEnd, CSEQ)) {
+            request.cseq = string(in, valueStart, end);
+        } else if (matches(in, start, nameEnd, TRANSPORT)) {
+            request.transport = string(in, valueStart, end);
+        } else if (matches(in, start, nameEnd, SESSION)) {
+            request.session = string(in, valueStart, end);
+        } else if (matches(in, start, nameEnd, RANGE)) {
+            request.range = string(in, valueStart, end);
+        } else if (matches(in, start, nameEnd, SCALE)) {
+            request.scale = string(in, valueStart, end);
+        } else if (matches(in, start, nameEnd, CONTENT_LENGTH)) {
+            int length = 0;
+            for (int i = valueStart; i < end; i++) {
+                int digit = in.get(i) - '0';
+                if (digit < 0 || digit > 9 || length > 1 << 20) {
+                    throw new RtspParseException("Content-Length invalide");
+                }
+                length = length * 10 + digit;
+            }
+            request.contentLength = length;
+        }
+    }
+
+    /**
+     * Les méthodes connues sont reconnues sans allocation, les autres sont copiées.
+     */
+    private static String method(ByteBuffer in, int start, int end) {
+        for (int m = 0; m < METHODS.length; m++) {
+            byte[] name = METHODS[m];
+            if (name.length != end - start) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length && in.get(start + i) == name[i]) {
+                i++;
+            }
+            if (i == name.length) {
+                return METHOD_NAMES[m];
+            }
+        }
+        return string(in, start, end);
+    }
+
+    /**
+     * Compare un nom d'en-tête sans tenir compte de la casse ({@code lowerName} est en minuscules).
+     */
+    private static boolean matches(ByteBuffer in, int start, int end, byte[] lowerName) {
+        if (end - start != lowerName.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerName.length; i++) {
+            int c = in.get(start + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lowerName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int lineEnd(ByteBuffer in, int from, int to) {
+        int i = indexOf(in, from, to, (byte) '\n');
+        return i < 0 ? to : i;
+    }
+
+    private static int trimEnd(ByteBuffer in, int start, int end) {
+        while (end > start && (in.get(end - 1) == '\r' || in.get(end - 1) == ' ' || in.get(end - 1) == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int skipSpaces(ByteBuffer in, int start, int end) {
+        while (start < end && (in.get(start) == ' ' || in.get(start) == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int indexOf(ByteBuffer in, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (in.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String string(ByteBuffer in, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        in.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Message RTSP mal formé.
+     */
+    public static class RtspParseException extends Exception {
+        public RtspParseException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Construit les réponses RTSP directement en octets dans un tampon réutilisé par la connexion.
+ * Lignes de statut et noms d'en-têtes sont préformatés une fois pour toutes ; seules les valeurs
+ * (CSeq, session, transport...) sont recopiées.
+ */
+public class RtspResponse {
+
+    static final byte[] OK = RtspRequestParser.ascii("RTSP/1.0 200 OK\r\n");
+    static final byte[] BAD_REQUEST = RtspRequestParser.ascii("RTSP/1.0 400 Bad Request\r\n");
+    static final byte[] SESSION_NOT_FOUND = RtspRequestParser.ascii("RTSP/1.0 454 Session Not Found\r\n");
+    static final byte[] UNSUPPORTED_TRANSPORT = RtspRequestParser.ascii("RTSP/1.0 461 Unsupported Transport\r\n");
+    static final byte[] METHOD_NOT_ALLOWED = RtspRequestParser.ascii("RTSP/1.0 405 Method Not Allowed\r\n");
+
+    static final byte[] CSEQ = RtspRequestParser.ascii("CSeq: ");
+    static final byte[] SESSION = RtspRequestParser.ascii("Session: ");
+    static final byte[] TRANSPORT = RtspRequestParser.ascii("Transport: ");
+    static final byte[] RANGE = RtspRequestParser.ascii("Range: ");
+    static final byte[] SCALE = RtspRequestParser.ascii("Scale: ");
+    static final byte[] CONTENT_BASE = RtspRequestParser.ascii("Content-Base: ");
+    static final byte[] CONTENT_LENGTH = RtspRequestParser.ascii("Content-Length: ");
+    static final byte[] CONTENT_TYPE_SDP = RtspRequestParser.ascii("Content-Type: application/sdp\r\n");
+    static final byte[] PUBLIC = RtspRequestParser.ascii(
+            "Public: DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN, OPTIONS, GET_PARAMETER\r\n");
+    static final byte[] CRLF = RtspRequestParser.ascii("\r\n");
+
+    private ByteBuffer buffer;
+
+    public RtspResponse(int initialCapacity) {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Commence une réponse : ligne de statut et CSeq.
+     */
+    public RtspResponse start(byte[] status, String cseq) {
+        buffer.clear();
+        put(status);
+        return header(CSEQ, cseq);
+    }
+
+    /**
+     * Ajoute un en-tête dont le nom (suivi de ": ") est préformaté.
+     */
+    public RtspResponse header(byte[] name, String value) {
+        put(name);
+        put(value);
+        put(CRLF);
+        return this;
+    }
+
+    /**
+     * Ajoute une ligne d'en-tête complète préformatée (terminée par CRLF).
+     */
+    public RtspResponse header(byte[] line) {
+        put(line);
+        return this;
+    }
+
+    /**
+     * Termine les en-têtes et retourne la réponse, prête à être écrite.
+     */
+    public ByteBuffer end() {
+        put(CRLF);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Termine la réponse avec un corps (SDP), Content-Length compris.
+     */
+    public ByteBuffer end(byte[] body) {
+        header(CONTENT_LENGTH, String.valueOf(body.length));
+        put(CRLF);
+        put(body);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void put(String value) {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    private void ensure(int length) {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+}
@@ -1,7 +1,39 @@
 package fr.mrqsdf.rtspscreenconnect.rtsp;
 
+import fr.mrqsdf.rtspscreenconnect.metrics.SessionMetrics;
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+
 public interface RtspSender {
 
-    void queueFrame(byte[] encodedFrame);
+    /**
+     * Met une frame en file d'envoi. Le sender reçoit une référence sur la frame
+     * et doit la rendre (release) une fois envoyée ou abandonnée.
+     */
+    void queueFrame(EncodedFrame encodedFrame);
+
+    /**
+     * Nombre de frames en attente d'envoi pour cette session.
+     */
+    int getQueueDepth();
+
+    /**
+     * Nombre de frames abandonnées pour cette session (client trop lent).
+     */
+    long getDroppedFrames();
+
+    /**
+     * Métriques d'envoi de la session (attente en file, durée d'envoi, volume).
+     */
+    SessionMetrics getMetrics();
+
+    /**
+     * État RTCP de la session : Sender Reports émis, perte, gigue et RTT rapportés par le client.
+     */
+    RtcpSession getRtcp();
+
+    /**
+     * Arrête l'envoi et libère les ressources de la session.
+     */
+    void close();
 
 }
@@ -0,0 +1,147 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+/**
+ * Session RTSP d'un client : transport choisi au SETUP, lecture en cours et dernière activité.
+ * Elle est désignée par un identifiant aléatoire imprévisible, renvoyé dans l'en-tête Session,
+ * et survit à sa connexion de contrôle en UDP et en multicast (le client peut se reconnecter
+ * pour la reprendre) ; elle expire si ni requête RTSP ni rapport RTCP ne la maintient.
+ *
+ * Utilisée par le thread de la boucle RTSP uniquement.
+ */
+public class RtspSession {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // 64 bits d'aléa : l'identifiant ne se devine pas à partir de ceux des autres clients
+    private static final int ID_BYTES = 8;
+
+    private final String id;
+    private final long timeoutNanos;
+    // Adresse du client à l'ouverture, pour reconnaître ses rapports RTCP sur un groupe multicast
+    private final InetAddress clientAddress;
+    // Connexion de contrôle courante, null si le client l'a fermée
+    private RtspConnection connection;
+    private RenditionStream rendition;
+    // Sender propre à la session (TCP, UDP), ou groupe multicast partagé avec d'autres sessions
+    private RtspSender sender;
+    private MulticastRtpSender multicast;
+    // Lecture différée en cours, et position dans le différé au dernier PAUSE (-1 sans pause)
+    private TimeShiftPlayer player;
+    private long pausedIndex = -1;
+    private long lastActivityNanos = System.nanoTime();
+
+    RtspSession(String id, int timeoutSeconds, RtspConnection connection) {
+        this.id = id;
+        this.timeoutNanos = timeoutSeconds * 1_000_000_000L;
+        this.connection = connection;
+        this.clientAddress = connection.getRemoteAddress();
+    }
+
+    static String newId() {
+        byte[] bytes = new byte[ID_BYTES];
+        RANDOM.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getTimeoutSeconds() {
+        return (int) (timeoutNanos / 1_000_000_000L);
+    }
+
+    /**
+     * Valeur de l'en-tête Session des réponses : identifiant et délai d'expiration annoncé.
+     */
+    public String getHeader() {
+        return id + ";timeout=" + getTimeoutSeconds();
+    }
+
+    public InetAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    public RtspConnection getConnection() {
+        return connection;
+    }
+
+    public void setConnection(RtspConnection connection) {
+        this.connection = connection;
+    }
+
+    public RenditionStream getRendition() {
+        return rendition;
+    }
+
+    public void setRendition(RenditionStream rendition) {
+        this.rendition = rendition;
+    }
+
+    public RtspSender getSender() {
+        return sender;
+    }
+
+    public void setSender(RtspSender sender) {
+        this.sender = sender;
+    }
+
+    public MulticastRtpSender getMulticast() {
+        return multicast;
+    }
+
+    public void setMulticast(MulticastRtpSender multicast) {
+        this.multicast = multicast;
+    }
+
+    public TimeShiftPlayer getPlayer() {
+        return player;
+    }
+
+    public void setPlayer(TimeShiftPlayer player) {
+        this.player = player;
+    }
+
+    public long getPausedIndex() {
+        return pausedIndex;
+    }
+
+    public void setPausedIndex(long pausedIndex) {
+        this.pausedIndex = pausedIndex;
+    }
+
+    /**
+     * Requête RTSP reçue pour la session.
+     */
+    public void touch() {
+        lastActivityNanos = System.nanoTime();
+    }
+
+    /**
+     * Vrai si la session n'a donné aucun signe de vie depuis plus que son délai d'expiration.
+     * Une session TCP interleaved vit avec sa connexion : sa fermeture la libère déjà.
+     * Les rapports RTCP du client comptent comme activité. En multicast, le groupe est partagé :
+     * ce sont les Receiver Reports reçus de l'adresse du client, et seulement pendant la lecture.
+     * Un client multicast en pause, ou dont les rapports partent d'une autre adresse que sa connexion
+     * RTSP, doit envoyer des requêtes RTSP (GET_PARAMETER, OPTIONS) pour garder sa session.
+     */
+    public boolean isExpired(long now) {
+        if (sender instanceof TcpRtpSender && connection != null && !connection.isClosed()) {
+            return false;
+        }
+        long lastActivity = lastActivityNanos;
+        long lastReport = 0;
+        if (sender != null) {
+            lastReport = sender.getRtcp().getLastReceiverReportNanos();
+        } else if (multicast != null) {
+            lastReport = multicast.getLastReportNanos(clientAddress);
+        }
+        if (lastReport != 0 && lastReport - lastActivity > 0) {
+            lastActivity = lastReport;
+        }
+        return now - lastActivity > timeoutNanos;
+    }
+}
@@ -0,0 +1,59 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.resource.Data;
+
+import java.util.Random;
+
+/**
+ * Lien dégradé simulé à l'émission d'une session UDP : pertes aléatoires et débit plafonné.
+ * Au-delà du débit, les paquets sont perdus comme par un routeur saturé (seau à jetons d'un quart de seconde),
+ * si bien que réduire le débit encodé fait baisser les pertes rapportées par le client :
+ * de quoi éprouver le contrôle adaptatif en local.
+ */
+class SimulatedLink {
+
+    private final double loss;
+    // Débit en octets par nanoseconde et taille du seau
+    private final double bytesPerNano;
+    private final double burstBytes;
+    private final Random random = new Random();
+    private double tokens;
+    private long lastNanos = System.nanoTime();
+
+    private SimulatedLink(double loss, int kilobitsPerSecond) {
+        this.loss = loss;
+        this.bytesPerNano = kilobitsPerSecond * 1000 / 8 / 1e9;
+        this.burstBytes = kilobitsPerSecond * 1000 / 8 / 4.0;
+        this.tokens = burstBytes;
+    }
+
+    /**
+     * Lien configuré par {@link Data#simulatedLoss} et {@link Data#simulatedBandwidth}, ou null sans simulation.
+     */
+    static SimulatedLink fromSettings() {
+        if (Data.simulatedLoss <= 0 && Data.simulatedBandwidth <= 0) {
+            return null;
+        }
+        return new SimulatedLink(Math.max(0, Data.simulatedLoss), Math.max(0, Data.simulatedBandwidth));
+    }
+
+    /**
+     * Décide si un paquet passe (thread d'envoi de la session).
+     */
+    boolean admit(int size) {
+        if (loss > 0 && random.nextDouble() < loss) {
+            return false;
+        }
+        if (bytesPerNano <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(burstBytes, tokens + (now - lastNanos) * bytesPerNano);
+        lastNanos = now;
+        if (tokens < size) {
+            return false;
+        }
+        tokens -= size;
+        return true;
+    }
+}
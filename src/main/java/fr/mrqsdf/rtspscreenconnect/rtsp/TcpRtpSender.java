@@ -1,124 +1,240 @@
 package fr.mrqsdf.rtspscreenconnect.rtsp;
 
-import fr.mrqsdf.rtspscreenconnect.resource.Data;
-import java.io.DataOutputStream;
-import java.net.Socket;
+import fr.mrqsdf.rtspscreenconnect.metrics.SessionMetrics;
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
 import java.nio.ByteBuffer;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Envoi RTP en TCP interleaved sur la connexion RTSP du client.
+ *
+ * Tous les paquets d'une frame (et le Sender Report éventuel) sont écrits à la suite, framing '$' compris,
+ * dans un tampon hors tas, remis en une fois à la connexion : un seul write pour toute l'unité d'accès,
+ * sans attendre que le socket l'ait absorbée. Deux tampons alternent, l'un part pendant que l'autre
+ * se remplit ; si le client n'a pas encore lu les deux précédents, la frame est abandonnée avec les
+ * P-frames qui en dépendent, jusqu'à une IDR demandée à l'encodeur.
+ */
 public class TcpRtpSender extends Thread implements RtspSender {
-    private DataOutputStream outStream;
+    // Connexion RTSP du client : les paquets RTP y sont entrelacés avec les réponses
+    private final RtspConnection connection;
     private int rtpChannel;
-    private int sequenceNumber = 0;
-    private long timestamp = 0;
-    private BlockingQueue<byte[]> frameQueue = new LinkedBlockingQueue<>();
+    // Canal interleaved du RTCP (le canal impair qui suit le RTP)
+    private final int rtcpChannel;
+    private final FrameQueue frameQueue;
+    // Nombre maximal de frames en attente avant d'appliquer la politique de perte
+    private static final int QUEUE_CAPACITY = 32;
     // Taille maximale du payload TCP pour fragmentation (similaire à UDP)
     private final int MAX_PAYLOAD = 1400;
-    private boolean running = true;
+    // Taille initiale d'un tampon d'unité d'accès, agrandi pour les IDR les plus lourdes
+    private static final int INITIAL_BUFFER_SIZE = 256 * 1024;
+    // Octets de framing interleaved devant chaque paquet : '$', canal, longueur
+    private static final int INTERLEAVED_HEADER_SIZE = 4;
+    private final RtpPacketizer packetizer = new RtpPacketizer(MAX_PAYLOAD, true);
+    private final RtpPacketizer.PacketSink sink = this::appendPacket;
+    private final SessionMetrics metrics = new SessionMetrics(this::getQueueDepth, this::getDroppedFrames);
+    private final RtcpSession rtcp;
+    private final Runnable keyFrameRequester;
+    // Tampons d'unité d'accès (thread d'envoi) ; celui en cours de remplissage est writeBuffers[current]
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[2];
+    private int current;
+    // Frames abandonnées parce que le client ne lisait pas assez vite
+    private final AtomicLong congestionDrops = new AtomicLong();
+    // Thread d'envoi uniquement : plus rien n'est envoyé avant la prochaine IDR
+    private boolean awaitingKeyFrame = false;
+    private volatile boolean running = true;
 
-    public TcpRtpSender(Socket clientSocket, int rtpChannel) throws Exception {
-        // On utilise directement le flux de sortie du clientSocket
-        this.outStream = new DataOutputStream(clientSocket.getOutputStream());
+    public TcpRtpSender(RtspConnection connection, int rtpChannel, int rtcpChannel, Runnable keyFrameRequester) {
+        this.frameQueue = new FrameQueue(QUEUE_CAPACITY, keyFrameRequester);
+        this.connection = connection;
         this.rtpChannel = rtpChannel;
+        this.rtcpChannel = rtcpChannel;
+        this.keyFrameRequester = keyFrameRequester;
+        this.rtcp = new RtcpSession(packetizer, keyFrameRequester, metrics);
+        for (int i = 0; i < writeBuffers.length; i++) {
+            // Vide : rien à envoyer, donc libre
+            writeBuffers[i] = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE).limit(0);
+        }
+    }
+
+    public int getRtcpChannel() {
+        return rtcpChannel;
     }
 
     @Override
-    public void queueFrame(byte[] encodedFrame) {
+    public void queueFrame(EncodedFrame encodedFrame) {
+        if (!running) {
+            encodedFrame.release();
+            return;
+        }
         frameQueue.offer(encodedFrame);
     }
 
     @Override
-    public void interrupt() {
+    public int getQueueDepth() {
+        return frameQueue.size();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return frameQueue.getDroppedFrames() + congestionDrops.get();
+    }
+
+    @Override
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public RtcpSession getRtcp() {
+        return rtcp;
+    }
+
+    /**
+     * Arrête le thread d'envoi sans l'interrompre : il écrit sur le canal de contrôle du client,
+     * qu'une interruption fermerait.
+     */
+    @Override
+    public void close() {
         running = false;
-        super.interrupt();
+        frameQueue.wakeUp();
+    }
+
+    /**
+     * Copie un paquet RTP, précédé de son en-tête interleaved, à la suite de l'unité d'accès en cours.
+     */
+    private void appendPacket(ByteBuffer rtpPacket) {
+        try {
+            int length = rtpPacket.remaining();
+            ByteBuffer buffer = reserve(INTERLEAVED_HEADER_SIZE + length);
+            writeInterleavedHeader(buffer, buffer.position(), rtpChannel, length);
+            buffer.position(buffer.position() + INTERLEAVED_HEADER_SIZE);
+            buffer.put(rtpPacket);
+        } finally {
+            packetizer.getPool().release(rtpPacket);
+        }
+    }
+
+    /**
+     * Ajoute un Sender Report sur le canal RTCP à la fin de l'unité d'accès si l'échéance est passée.
+     */
+    private void appendReportIfDue() {
+        ByteBuffer buffer = reserve(INTERLEAVED_HEADER_SIZE + Rtcp.MAX_SENDER_REPORT_SIZE);
+        int header = buffer.position();
+        buffer.position(header + INTERLEAVED_HEADER_SIZE);
+        if (!rtcp.writeReportIfDue(buffer)) {
+            buffer.position(header);
+            return;
+        }
+        writeInterleavedHeader(buffer, header, rtcpChannel, buffer.position() - header - INTERLEAVED_HEADER_SIZE);
+    }
+
+    /**
+     * Écrit l'en-tête interleaved d'un paquet à l'index donné.
+     * Format : 0x24, canal (1 octet), longueur (2 octets big endian), puis le paquet.
+     */
+    static void writeInterleavedHeader(ByteBuffer buffer, int index, int channel, int length) {
+        buffer.put(index, (byte) 0x24);            // '$'
+        buffer.put(index + 1, (byte) channel);     // canal
+        buffer.putShort(index + 2, (short) length); // longueur du paquet
+    }
+
+    /**
+     * Tampon en cours de remplissage, agrandi si besoin pour recevoir {@code length} octets de plus.
+     * Il n'a pas encore été remis à la connexion : il peut être remplacé sans risque.
+     */
+    private ByteBuffer reserve(int length) {
+        ByteBuffer buffer = writeBuffers[current];
+        if (buffer.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            larger.put(buffer);
+            writeBuffers[current] = larger;
+            buffer = larger;
+        }
+        return buffer;
     }
 
     /**
-     * Construit un paquet RTP en ajoutant l'en-tête RTP de 12 octets.
-     * Le marker est mis à 1 si c'est la fin d'une trame.
+     * Index d'un tampon que la connexion a fini d'envoyer, ou -1 si le client n'a lu aucun des deux.
      */
-    private byte[] createRtpPacket(byte[] payload, boolean marker) {
-        byte[] packet = new byte[12 + payload.length];
-        packet[0] = (byte) 0x80; // Version 2
-        packet[1] = (byte) ((marker ? 0x80 : 0x00) | 96); // Marker + payload type 96
-        packet[2] = (byte) (sequenceNumber >> 8);
-        packet[3] = (byte) (sequenceNumber & 0xFF);
-        packet[4] = (byte) (timestamp >> 24);
-        packet[5] = (byte) (timestamp >> 16);
-        packet[6] = (byte) (timestamp >> 8);
-        packet[7] = (byte) (timestamp);
-        int ssrc = 12345678;
-        packet[8] = (byte) (ssrc >> 24);
-        packet[9] = (byte) (ssrc >> 16);
-        packet[10] = (byte) (ssrc >> 8);
-        packet[11] = (byte) (ssrc);
-        System.arraycopy(payload, 0, packet, 12, payload.length);
-        return packet;
+    private int freeBuffer() {
+        for (int i = 0; i < writeBuffers.length; i++) {
+            if (!connection.isWriting(writeBuffers[i])) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
-     * Envoie un paquet RTP sur le flux TCP en mode interleaved.
-     * Format : 0x24, canal (1 octet), longueur (2 octets big endian), puis le paquet RTP.
+     * Packetise une frame dans un tampon libre et le remet à la connexion, ou applique la politique
+     * de perte si le client est en retard.
+     * @return Vrai si la frame est partie (au moins dans la file d'écriture de la connexion).
      */
-    private void sendInterleavedPacket(byte[] rtpPacket) throws Exception {
-        synchronized(outStream) {
-            outStream.writeByte(0x24);          // '$'
-            outStream.writeByte(rtpChannel);      // canal
-            outStream.writeShort(rtpPacket.length); // longueur du paquet RTP
-            outStream.write(rtpPacket);           // données RTP
-            outStream.flush();
+    private boolean sendFrame(EncodedFrame encodedFrame) throws Exception {
+        if (awaitingKeyFrame && !encodedFrame.isKeyFrame()) {
+            congestionDrops.incrementAndGet();
+            return false;
         }
+        int free = freeBuffer();
+        if (free < 0) {
+            // Client trop lent : une IDR relancera le flux quand il aura rattrapé son retard
+            congestionDrops.incrementAndGet();
+            if (!awaitingKeyFrame || encodedFrame.isKeyFrame()) {
+                keyFrameRequester.run();
+            }
+            awaitingKeyFrame = true;
+            return false;
+        }
+        awaitingKeyFrame = false;
+        current = free;
+        connection.writeInterleaved(buildAccessUnit(encodedFrame));
+        return true;
+    }
+
+    /**
+     * Écrit l'unité d'accès de la frame dans le tampon courant : tous ses paquets RTP framés '$',
+     * puis le Sender Report s'il est dû. Aussi appelé par le benchmark du chemin TCP.
+     * @return Le tampon, prêt à être écrit.
+     */
+    ByteBuffer buildAccessUnit(EncodedFrame encodedFrame) throws Exception {
+        writeBuffers[current].clear();
+        // Découpage NAL par NAL (STAP-A / unique / FU-A) par le packetizer partagé
+        packetizer.packetizeFrame(encodedFrame, sink);
+        appendReportIfDue();
+        // Le tampon a pu être agrandi pendant le remplissage
+        ByteBuffer buffer = writeBuffers[current];
+        buffer.flip();
+        return buffer;
     }
 
     @Override
     public void run() {
         while (running) {
             try {
-                byte[] encodedFrame = frameQueue.take();
-                int timestampIncrement = 90000 / Data.fps;
-                if (encodedFrame.length <= MAX_PAYLOAD) {
-                    byte[] rtpPacket = createRtpPacket(encodedFrame, true);
-                    sendInterleavedPacket(rtpPacket);
-                    sequenceNumber++;
-                    timestamp += timestampIncrement;
-                } else {
-                    // Fragmentation FU-A (supposant une unique NAL unit)
-                    int nalHeader = encodedFrame[0] & 0xFF;
-                    int nalType = nalHeader & 0x1F;
-                    int fuIndicator = (nalHeader & 0xE0) | 28; // 28 = FU-A type
-                    int offset = 1;
-                    boolean firstFragment = true;
-                    while (offset < encodedFrame.length) {
-                        int remaining = encodedFrame.length - offset;
-                        int payloadSize = Math.min(remaining, MAX_PAYLOAD - 2); // 2 octets réservés pour FU header
-                        byte[] fuPayload = new byte[2 + payloadSize];
-                        fuPayload[0] = (byte) fuIndicator;
-                        int fuHeader = nalType;
-                        if (firstFragment) {
-                            fuHeader |= 0x80; // Set S bit
-                            firstFragment = false;
-                        }
-                        if (remaining == payloadSize) {
-                            fuHeader |= 0x40; // Set E bit pour le dernier fragment
-                        }
-                        fuPayload[1] = (byte) fuHeader;
-                        System.arraycopy(encodedFrame, offset, fuPayload, 2, payloadSize);
-                        boolean marker = (remaining == payloadSize);
-                        byte[] rtpPacket = createRtpPacket(fuPayload, marker);
-                        sendInterleavedPacket(rtpPacket);
-                        sequenceNumber++;
-                        offset += payloadSize;
+                EncodedFrame encodedFrame = frameQueue.take();
+                if (encodedFrame == null) {
+                    continue;
+                }
+                try {
+                    long start = System.nanoTime();
+                    if (sendFrame(encodedFrame)) {
+                        metrics.recordSend(start - frameQueue.getLastEnqueueTime(), System.nanoTime() - start,
+                                encodedFrame.getLength());
                     }
-                    timestamp += timestampIncrement;
+                } finally {
+                    encodedFrame.release();
                 }
-            } catch (InterruptedException e) {
-                running = false;
-                Thread.currentThread().interrupt();
             } catch (Exception e) {
-                e.printStackTrace();
+                if (!connection.isClosed()) {
+                    e.printStackTrace();
+                    // Canal inutilisable : la connexion et ses sessions sont libérées par la boucle
+                    connection.closeLater();
+                }
                 running = false;
             }
         }
+        // Rendre les frames restées en file
+        frameQueue.clear();
     }
 }
@@ -0,0 +1,272 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Différé d'une rendition : les dernières frames encodées, gardées par GOP entiers dans des blocs hors tas
+ * de la {@link TimeShiftPool} de l'écran et indexées par instant de capture.
+ *
+ * Chaque frame reçoit un numéro croissant ; les frames sont écrites à la suite dans les blocs, à un offset
+ * logique qui ne fait que croître. Le buffer commence toujours par une IDR : les GOP sont retirés entiers,
+ * quand ils sortent de la fenêtre de temps, quand l'index est plein ou quand la réserve manque de blocs.
+ * Si le GOP en cours a dû être retiré, les frames suivantes sont ignorées jusqu'à la prochaine IDR.
+ *
+ * Une seule écriture à la fois (le thread qui diffuse la rendition), des lectures concurrentes
+ * par les {@link TimeShiftPlayer}.
+ */
+public class TimeShiftBuffer {
+
+    // Instant renvoyé pour une frame absente (System.nanoTime peut être négatif)
+    public static final long NO_FRAME = Long.MIN_VALUE;
+
+    private final TimeShiftPool pool;
+    private final long windowNanos;
+    // Index circulaire des frames présentes, de firstIndex (une IDR) à nextIndex exclu
+    private final long[] times;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final boolean[] keyFrames;
+    private long firstIndex = 0;
+    private volatile long nextIndex = 0;
+    // Blocs détenus, en anneau : le premier commence à l'offset logique headOffset
+    private final ByteBuffer[] chunks;
+    private int headSlot = 0;
+    private int chunkCount = 0;
+    private long headOffset = 0;
+    private long writeOffset = 0;
+    // Plus rien n'est gardé avant la prochaine IDR
+    private boolean awaitingKeyFrame = true;
+
+    public TimeShiftBuffer(TimeShiftPool pool, int windowSeconds, int maxFrames) {
+        this.pool = pool;
+        this.windowNanos = windowSeconds * 1_000_000_000L;
+        this.times = new long[maxFrames];
+        this.offsets = new long[maxFrames];
+        this.lengths = new int[maxFrames];
+        this.keyFrames = new boolean[maxFrames];
+        this.chunks = new ByteBuffer[pool.getMaxChunks()];
+        pool.register(this);
+    }
+
+    /**
+     * Copie la frame dans le différé (thread de diffusion). La référence de l'appelant n'est pas consommée.
+     */
+    public void append(EncodedFrame frame) {
+        int length = frame.getLength();
+        if (awaitingKeyFrame && !frame.isKeyFrame()) {
+            return;
+        }
+        if (length > (long) chunks.length * TimeShiftPool.CHUNK_SIZE) {
+            return;
+        }
+        synchronized (this) {
+            // Fenêtre de temps : un GOP part quand le suivant commence avant le début de la fenêtre
+            long keyFrame;
+            while (firstIndex < nextIndex && (keyFrame = nextKeyFrame(firstIndex)) >= 0
+                    && times[slot(keyFrame)] <= frame.getCaptureTimeNanos() - windowNanos) {
+                evictLocked();
+            }
+            while (nextIndex - firstIndex >= times.length) {
+                evictLocked();
+            }
+        }
+        // Blocs manquants, pris hors verrou : la réserve peut en reprendre à ce buffer
+        while (true) {
+            synchronized (this) {
+                if (awaitingKeyFrame && !frame.isKeyFrame()) {
+                    // Le GOP en cours a été sacrifié pour faire de la place
+                    return;
+                }
+                awaitingKeyFrame = false;
+                if (chunkCount == 0) {
+                    headOffset = writeOffset;
+                }
+                if (headOffset + (long) chunkCount * TimeShiftPool.CHUNK_SIZE - writeOffset >= length) {
+                    write(frame);
+                    notifyAll();
+                    return;
+                }
+            }
+            ByteBuffer chunk = pool.acquire();
+            if (chunk == null) {
+                synchronized (this) {
+                    awaitingKeyFrame = true;
+                }
+                return;
+            }
+            synchronized (this) {
+                if (chunkCount == 0) {
+                    headOffset = writeOffset;
+                }
+                chunks[(headSlot + chunkCount) % chunks.length] = chunk;
+                chunkCount++;
+            }
+        }
+    }
+
+    private void write(EncodedFrame frame) {
+        byte[] data = frame.getData();
+        int offset = frame.getOffset();
+        int length = frame.getLength();
+        int index = slot(nextIndex);
+        times[index] = frame.getCaptureTimeNanos();
+        offsets[index] = writeOffset;
+        lengths[index] = length;
+        keyFrames[index] = frame.isKeyFrame();
+        while (length > 0) {
+            ByteBuffer chunk = chunkAt(writeOffset);
+            int position = (int) ((writeOffset - headOffset) % TimeShiftPool.CHUNK_SIZE);
+            int count = Math.min(length, TimeShiftPool.CHUNK_SIZE - position);
+            chunk.put(position, data, offset, count);
+            offset += count;
+            length -= count;
+            writeOffset += count;
+        }
+        nextIndex++;
+    }
+
+    /**
+     * Retire le plus ancien GOP (appelé par la réserve quand elle manque de blocs).
+     * @return Vrai si quelque chose a été libéré.
+     */
+    synchronized boolean evictOldestGop() {
+        if (firstIndex == nextIndex && chunkCount == 0) {
+            return false;
+        }
+        evictLocked();
+        return true;
+    }
+
+    private void evictLocked() {
+        long keyFrame = firstIndex < nextIndex ? nextKeyFrame(firstIndex) : -1;
+        if (keyFrame < 0) {
+            // Un seul GOP : c'est le GOP en cours qui part
+            firstIndex = nextIndex;
+            awaitingKeyFrame = true;
+        } else {
+            firstIndex = keyFrame;
+        }
+        // Blocs entièrement avant la première frame restante
+        long keep = firstIndex < nextIndex ? offsets[slot(firstIndex)] : writeOffset;
+        while (chunkCount > 0 && (firstIndex == nextIndex || headOffset + TimeShiftPool.CHUNK_SIZE <= keep)) {
+            pool.release(chunks[headSlot]);
+            chunks[headSlot] = null;
+            headSlot = (headSlot + 1) % chunks.length;
+            chunkCount--;
+            headOffset += TimeShiftPool.CHUNK_SIZE;
+        }
+    }
+
+    /**
+     * Première IDR strictement après {@code index}, ou -1.
+     */
+    private long nextKeyFrame(long index) {
+        for (long i = index + 1; i < nextIndex; i++) {
+            if (keyFrames[slot(i)]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Dernière IDR capturée au plus tard à {@code timeNanos}, ou la plus ancienne IDR si l'instant
+     * est antérieur au différé.
+     * @return Le numéro de la frame, ou -1 si le différé est vide.
+     */
+    public synchronized long findKeyFrame(long timeNanos) {
+        if (firstIndex == nextIndex) {
+            return -1;
+        }
+        long found = firstIndex;
+        for (long i = firstIndex; i < nextIndex && times[slot(i)] <= timeNanos; i++) {
+            if (keyFrames[slot(i)]) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Instant de capture de la frame, ou {@link #NO_FRAME} si elle n'est pas (ou plus) dans le différé.
+     */
+    public synchronized long getTime(long index) {
+        if (index < firstIndex || index >= nextIndex) {
+            return NO_FRAME;
+        }
+        return times[slot(index)];
+    }
+
+    /**
+     * Copie une frame du différé dans une frame indépendante.
+     * @param captureTimeNanos Instant de capture donné à la copie.
+     * @return La copie, ou null si la frame n'est pas (ou plus) dans le différé.
+     */
+    public synchronized EncodedFrame copyFrame(long index, long captureTimeNanos) {
+        if (index < firstIndex || index >= nextIndex) {
+            return null;
+        }
+        int length = lengths[slot(index)];
+        byte[] data = new byte[length];
+        long readOffset = offsets[slot(index)];
+        int copied = 0;
+        while (copied < length) {
+            ByteBuffer chunk = chunkAt(readOffset);
+            int position = (int) ((readOffset - headOffset) % TimeShiftPool.CHUNK_SIZE);
+            int count = Math.min(length - copied, TimeShiftPool.CHUNK_SIZE - position);
+            chunk.get(position, data, copied, count);
+            copied += count;
+            readOffset += count;
+        }
+        return EncodedFrame.wrap(data, length, keyFrames[slot(index)], captureTimeNanos);
+    }
+
+    /**
+     * Attend qu'une frame de numéro {@code index} soit ajoutée, au plus {@code timeoutMillis}.
+     */
+    public synchronized void awaitFrame(long index, long timeoutMillis) throws InterruptedException {
+        if (nextIndex <= index) {
+            wait(timeoutMillis);
+        }
+    }
+
+    public synchronized long getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * Numéro de la prochaine frame ajoutée : les frames antérieures ont été diffusées.
+     */
+    public long getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * Instant de capture de la plus ancienne frame, ou {@link #NO_FRAME} si le différé est vide.
+     */
+    public synchronized long getOldestTime() {
+        return firstIndex < nextIndex ? times[slot(firstIndex)] : NO_FRAME;
+    }
+
+    /**
+     * Instant de capture de la dernière frame, ou {@link #NO_FRAME} si le différé est vide.
+     */
+    public synchronized long getNewestTime() {
+        return firstIndex < nextIndex ? times[slot(nextIndex - 1)] : NO_FRAME;
+    }
+
+    synchronized int getChunkCount() {
+        return chunkCount;
+    }
+
+    private int slot(long index) {
+        return (int) (index % times.length);
+    }
+
+    private ByteBuffer chunkAt(long logicalOffset) {
+        int chunk = (int) ((logicalOffset - headOffset) / TimeShiftPool.CHUNK_SIZE);
+        return chunks[(headSlot + chunk) % chunks.length];
+    }
+}
@@ -0,0 +1,125 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
+
+/**
+ * Lecture différée d'une session : renvoie les frames du {@link TimeShiftBuffer} à partir d'une IDR passée,
+ * au rythme de leur capture (divisé par la vitesse demandée), puis abonne la session au direct quand
+ * elle a rattrapé la dernière frame diffusée.
+ *
+ * Les frames relues reçoivent un instant de capture recalé sur l'horloge courante : les timestamps RTP
+ * de la session restent croissants, à la reprise comme au passage au direct. Le direct n'est rejoint
+ * que si l'horloge recalée n'est pas en avance sur la capture, ce qui n'arrive qu'en lecture accélérée
+ * (ou après un trou du différé) : à vitesse 1, la session reste décalée jusqu'à un PLAY sans Range.
+ */
+public class TimeShiftPlayer extends Thread {
+
+    // Trou dans le différé (rendition non encodée) : il n'est pas attendu plus d'une seconde
+    private static final long MAX_GAP_NANOS = 1_000_000_000L;
+    private static final long AWAIT_MILLIS = 100;
+
+    private final TimeShiftBuffer buffer;
+    private final FrameBroadcaster broadcaster;
+    private final RtspSender sender;
+    private final double scale;
+    // Appelé quand la session est passée au direct (réveil du pipeline)
+    private final Runnable onLive;
+    private volatile long nextIndex;
+    private volatile boolean running = true;
+
+    public TimeShiftPlayer(TimeShiftBuffer buffer, FrameBroadcaster broadcaster, RtspSender sender,
+                           long startIndex, double scale, Runnable onLive) {
+        super("TimeShiftPlayer");
+        setDaemon(true);
+        this.buffer = buffer;
+        this.broadcaster = broadcaster;
+        this.sender = sender;
+        this.nextIndex = startIndex;
+        this.scale = scale;
+        this.onLive = onLive;
+    }
+
+    /**
+     * Numéro de la prochaine frame à envoyer : tout ce qui précède a été remis au sender.
+     */
+    public long getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * Démarre la lecture ; la rendition compte aussitôt la session parmi ses clients.
+     */
+    @Override
+    public synchronized void start() {
+        broadcaster.addPlayer(this);
+        super.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            play();
+        } catch (InterruptedException e) {
+            // Arrêt demandé
+        } finally {
+            broadcaster.removePlayer(this);
+        }
+    }
+
+    private void play() throws InterruptedException {
+        long previousTime = TimeShiftBuffer.NO_FRAME;
+        long playTime = 0;
+        while (running) {
+            long index = nextIndex;
+            long time = buffer.getTime(index);
+            if (time == TimeShiftBuffer.NO_FRAME) {
+                if (index < buffer.getFirstIndex()) {
+                    // Frame déjà sortie du différé : reprise à la plus ancienne IDR
+                    nextIndex = buffer.getFirstIndex();
+                    previousTime = TimeShiftBuffer.NO_FRAME;
+                    continue;
+                }
+                // Dernière frame atteinte : direct si l'horloge recalée n'est pas en avance sur la capture
+                if (previousTime == TimeShiftBuffer.NO_FRAME || playTime <= previousTime) {
+                    if (broadcaster.subscribeIf(() -> running && buffer.getNextIndex() == index, sender)) {
+                        onLive.run();
+                        return;
+                    }
+                }
+                buffer.awaitFrame(index, AWAIT_MILLIS);
+                continue;
+            }
+            if (previousTime == TimeShiftBuffer.NO_FRAME) {
+                playTime = System.nanoTime();
+            } else {
+                long delta = Math.max(0, Math.min(MAX_GAP_NANOS, time - previousTime));
+                playTime += (long) (delta / scale);
+            }
+            previousTime = time;
+            long wait = playTime - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            EncodedFrame frame = buffer.copyFrame(index, playTime);
+            if (frame == null) {
+                // Sortie du différé pendant l'attente
+                continue;
+            }
+            sender.queueFrame(frame);
+            nextIndex = index + 1;
+        }
+    }
+
+    /**
+     * Arrête la lecture et attend le thread : au retour, il ne dépose plus rien dans la file du sender.
+     */
+    public void close() {
+        running = false;
+        interrupt();
+        try {
+            join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
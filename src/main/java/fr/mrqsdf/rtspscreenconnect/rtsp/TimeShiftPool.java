@@ -0,0 +1,75 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Réserve de blocs hors tas partagée par les {@link TimeShiftBuffer} des renditions d'un écran.
+ * La mémoire du différé ne dépasse jamais la limite de l'écran : les blocs sont alloués à la demande
+ * jusqu'à cette limite, puis recyclés. Quand la réserve est vide, le plus ancien GOP de la rendition
+ * qui occupe le plus de blocs est libéré.
+ */
+public class TimeShiftPool {
+
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    private final int maxChunks;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final List<TimeShiftBuffer> buffers = new CopyOnWriteArrayList<>();
+    private int allocated = 0;
+
+    public TimeShiftPool(long maxBytes) {
+        this.maxChunks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / CHUNK_SIZE));
+    }
+
+    public int getMaxChunks() {
+        return maxChunks;
+    }
+
+    void register(TimeShiftBuffer buffer) {
+        buffers.add(buffer);
+    }
+
+    /**
+     * Fournit un bloc vide, en libérant au besoin le plus ancien GOP d'une rendition.
+     * Appelé sans tenir le verrou d'aucun buffer.
+     * @return Le bloc, ou null si rien ne peut être libéré.
+     */
+    ByteBuffer acquire() {
+        while (true) {
+            synchronized (this) {
+                ByteBuffer chunk = free.pollFirst();
+                if (chunk != null) {
+                    chunk.clear();
+                    return chunk;
+                }
+                if (allocated < maxChunks) {
+                    allocated++;
+                    return ByteBuffer.allocateDirect(CHUNK_SIZE);
+                }
+            }
+            TimeShiftBuffer victim = null;
+            for (TimeShiftBuffer buffer : buffers) {
+                if (buffer.getChunkCount() > 0 && (victim == null || buffer.getChunkCount() > victim.getChunkCount())) {
+                    victim = buffer;
+                }
+            }
+            if (victim == null || !victim.evictOldestGop()) {
+                return null;
+            }
+        }
+    }
+
+    synchronized void release(ByteBuffer chunk) {
+        free.addFirst(chunk);
+    }
+
+    /**
+     * Octets actuellement alloués hors tas pour le différé de l'écran.
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) allocated * CHUNK_SIZE;
+    }
+}
@@ -0,0 +1,201 @@
+package fr.mrqsdf.rtspscreenconnect.rtsp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Moteur d'envoi UDP partagé : un seul DatagramChannel et un seul thread par interface réseau locale,
+ * pour toutes les sessions UDP qui passent par cette interface.
+ * Une session qui reçoit une frame se signale au moteur, qui à son réveil vide d'un coup
+ * toutes les frames en attente de toutes les sessions prêtes.
+ *
+ * Le RTP part d'un port pair, le RTCP du port impair suivant (annoncés en server_port au SETUP).
+ * Un thread lit les rapports RTCP des clients et les transmet à la session dont ils citent le SSRC.
+ */
+public class UdpSendEngine extends Thread {
+
+    private static final Map<InetAddress, UdpSendEngine> engines = new ConcurrentHashMap<>();
+
+    // Tentatives pour trouver une paire de ports libres (pair, pair + 1)
+    private static final int PORT_PAIR_ATTEMPTS = 16;
+
+    private final DatagramChannel channel;
+    private final DatagramChannel rtcpChannel;
+    private final BlockingQueue<UnicastRtpSender> readySenders = new LinkedBlockingQueue<>();
+    // Sessions RTCP par SSRC émis, pour router les rapports des clients
+    private final Map<Integer, RtcpSession> rtcpSessions = new ConcurrentHashMap<>();
+    private final Thread rtcpReceiver;
+    private volatile boolean running = true;
+
+    private UdpSendEngine(InetAddress localAddress) throws IOException {
+        super("UdpSendEngine-" + localAddress.getHostAddress());
+        setDaemon(true);
+        DatagramChannel[] pair = openPortPair(localAddress);
+        this.channel = pair[0];
+        this.rtcpChannel = pair[1];
+        this.rtcpReceiver = new Thread(this::receiveRtcp, "RtcpReceiver-" + localAddress.getHostAddress());
+        this.rtcpReceiver.setDaemon(true);
+    }
+
+    /**
+     * Ouvre deux canaux sur des ports consécutifs, RTP pair et RTCP impair (RFC 3550 §11).
+     * Si aucune paire n'est libre, le RTCP prend un port quelconque.
+     */
+    private static DatagramChannel[] openPortPair(InetAddress localAddress) throws IOException {
+        for (int attempt = 0; attempt < PORT_PAIR_ATTEMPTS; attempt++) {
+            DatagramChannel rtp = DatagramChannel.open();
+            rtp.bind(new InetSocketAddress(localAddress, 0));
+            int port = ((InetSocketAddress) rtp.getLocalAddress()).getPort();
+            if ((port & 1) == 0 && port < 65535) {
+                DatagramChannel rtcp = DatagramChannel.open();
+                try {
+                    rtcp.bind(new InetSocketAddress(localAddress, port + 1));
+                    return new DatagramChannel[]{rtp, rtcp};
+                } catch (IOException e) {
+                    rtcp.close();
+                }
+            }
+            rtp.close();
+        }
+        DatagramChannel rtp = DatagramChannel.open();
+        rtp.bind(new InetSocketAddress(localAddress, 0));
+        DatagramChannel rtcp = DatagramChannel.open();
+        rtcp.bind(new InetSocketAddress(localAddress, 0));
+        return new DatagramChannel[]{rtp, rtcp};
+    }
+
+    /**
+     * Retourne le moteur de l'interface locale donnée, en le créant au besoin.
+     * @param localAddress L'adresse locale sur laquelle le client RTSP est connecté.
+     */
+    public static UdpSendEngine forInterface(InetAddress localAddress) {
+        return engines.computeIfAbsent(localAddress, address -> {
+            try {
+                UdpSendEngine engine = new UdpSendEngine(address);
+                engine.start();
+                engine.rtcpReceiver.start();
+                System.out.println("Moteur UDP démarré sur " + address.getHostAddress());
+                return engine;
+            } catch (IOException e) {
+                throw new IllegalStateException("Impossible d'ouvrir le canal UDP sur " + address, e);
+            }
+        });
+    }
+
+    /**
+     * Arrête tous les moteurs et ferme leurs canaux.
+     */
+    public static void shutdownAll() {
+        for (UdpSendEngine engine : engines.values()) {
+            engine.interrupt();
+        }
+        engines.clear();
+    }
+
+    DatagramChannel getChannel() {
+        return channel;
+    }
+
+    DatagramChannel getRtcpChannel() {
+        return rtcpChannel;
+    }
+
+    public int getRtpPort() {
+        return localPort(channel);
+    }
+
+    public int getRtcpPort() {
+        return localPort(rtcpChannel);
+    }
+
+    /**
+     * Reçoit désormais les rapports RTCP adressés au SSRC de la session.
+     */
+    void registerRtcp(RtcpSession session) {
+        rtcpSessions.put(session.getSsrc(), session);
+    }
+
+    void unregisterRtcp(RtcpSession session) {
+        rtcpSessions.remove(session.getSsrc(), session);
+    }
+
+    /**
+     * Signale qu'une session a des frames en attente.
+     */
+    void schedule(UnicastRtpSender sender) {
+        readySenders.offer(sender);
+    }
+
+    @Override
+    public void interrupt() {
+        running = false;
+        super.interrupt();
+        try {
+            // Débloque le récepteur RTCP
+            rtcpChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Boucle du thread récepteur : lit les paquets RTCP des clients (RR, PLI, FIR).
+     */
+    private void receiveRtcp() {
+        ByteBuffer buffer = ByteBuffer.allocate(1500);
+        while (running) {
+            try {
+                buffer.clear();
+                rtcpChannel.receive(buffer);
+                buffer.flip();
+                Rtcp.parse(buffer, rtcpSessions::get, Rtcp.ntpNow());
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (Exception e) {
+                // Un paquet malformé ne doit pas arrêter la réception
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static int localPort(DatagramChannel channel) {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                UnicastRtpSender sender = readySenders.take();
+                // Vider toutes les sessions prêtes en une seule rafale avant de se rendormir
+                while (sender != null) {
+                    sender.drainFrames();
+                    sender = readySenders.poll();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,128 +1,143 @@
 package fr.mrqsdf.rtspscreenconnect.rtsp;
 
-import fr.mrqsdf.rtspscreenconnect.resource.Data;
+import fr.mrqsdf.rtspscreenconnect.metrics.SessionMetrics;
+import fr.mrqsdf.rtspscreenconnect.utils.EncodedFrame;
 
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class UnicastRtpSender extends Thread implements RtspSender {
-    private DatagramSocket socket;
-    private InetAddress clientAddress;
-    private int clientPort;
-    private int sequenceNumber = 0;
-    private long timestamp = 0;
-    private BlockingQueue<byte[]> frameQueue = new LinkedBlockingQueue<>();
+/**
+ * Session RTP unicast UDP. Elle n'a pas de thread propre : ses frames sont packetisées
+ * et envoyées par le {@link UdpSendEngine} de l'interface sur laquelle le client est connecté.
+ */
+public class UnicastRtpSender implements RtspSender {
+    private final UdpSendEngine engine;
+    private InetSocketAddress clientAddress;
+    // Port RTCP du client (client_port impair) : destination des Sender Reports
+    private final InetSocketAddress clientRtcpAddress;
+    private final FrameQueue frameQueue;
     // Taille maximale du payload UDP (en octets). Ajustez selon le MTU (par exemple, 1400)
     private final int MAX_PAYLOAD = 1400;
+    // Nombre maximal de frames en attente avant d'appliquer la politique de perte
+    private static final int QUEUE_CAPACITY = 32;
+    private final RtpPacketizer packetizer = new RtpPacketizer(MAX_PAYLOAD, true);
+    private final RtpPacketizer.PacketSink sink = this::sendPacket;
+    // Vrai tant que la session attend dans la file du moteur
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final SessionMetrics metrics = new SessionMetrics(this::getQueueDepth, this::getDroppedFrames);
+    private final RtcpSession rtcp;
+    // Tampon des Sender Reports, utilisé par le thread du moteur uniquement
+    private final ByteBuffer reportBuffer = ByteBuffer.allocateDirect(Rtcp.MAX_SENDER_REPORT_SIZE);
+    // Lien dégradé simulé (tests de l'adaptatif), null en fonctionnement normal
+    private final SimulatedLink simulatedLink = SimulatedLink.fromSettings();
 
-    private boolean running = true;
+    private volatile boolean running = true;
 
-    public UnicastRtpSender(String clientAddress, int clientPort) throws Exception {
-        socket = new DatagramSocket();
-        this.clientAddress = InetAddress.getByName(clientAddress);
-        this.clientPort = clientPort;
+    public UnicastRtpSender(UdpSendEngine engine, String clientAddress, int clientPort, int clientRtcpPort,
+                            Runnable keyFrameRequester) throws Exception {
+        this.engine = engine;
+        this.frameQueue = new FrameQueue(QUEUE_CAPACITY, keyFrameRequester);
+        InetAddress address = InetAddress.getByName(clientAddress);
+        this.clientAddress = new InetSocketAddress(address, clientPort);
+        this.clientRtcpAddress = new InetSocketAddress(address, clientRtcpPort);
+        this.rtcp = new RtcpSession(packetizer, keyFrameRequester, metrics);
+        engine.registerRtcp(rtcp);
     }
 
-    public void queueFrame(byte[] encodedFrame) {
+    public void queueFrame(EncodedFrame encodedFrame) {
+        if (!running) {
+            encodedFrame.release();
+            return;
+        }
         frameQueue.offer(encodedFrame);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            engine.schedule(this);
+        }
     }
 
     @Override
-    public void interrupt() {
-        running = false;
-        super.interrupt();
+    public int getQueueDepth() {
+        return frameQueue.size();
     }
 
-    /**
-     * Construit un paquet RTP en préfixant le payload avec un en-tête RTP (12 octets).
-     * @param payload Le payload à envoyer.
-     * @param marker Si vrai, le marker bit est mis à 1.
-     * @return Le paquet RTP complet sous forme de tableau d'octets.
-     */
-    private byte[] createRtpPacket(byte[] payload, boolean marker) {
-        byte[] packet = new byte[12 + payload.length];
-        // Version 2, pas de padding, pas d'extension, pas de CSRC
-        packet[0] = (byte) 0x80;
-        // Marker bit et payload type 96 (dynamique)
-        packet[1] = (byte) ((marker ? 0x80 : 0x00) | 96);
-        // Numéro de séquence
-        packet[2] = (byte) (sequenceNumber >> 8);
-        packet[3] = (byte) (sequenceNumber & 0xFF);
-        // Timestamp (4 octets)
-        packet[4] = (byte) (timestamp >> 24);
-        packet[5] = (byte) (timestamp >> 16);
-        packet[6] = (byte) (timestamp >> 8);
-        packet[7] = (byte) (timestamp);
-        // SSRC (valeur fixe pour cet exemple)
-        int ssrc = 12345678;
-        packet[8] = (byte) (ssrc >> 24);
-        packet[9] = (byte) (ssrc >> 16);
-        packet[10] = (byte) (ssrc >> 8);
-        packet[11] = (byte) (ssrc);
-        // Copier le payload
-        System.arraycopy(payload, 0, packet, 12, payload.length);
-        return packet;
+    @Override
+    public long getDroppedFrames() {
+        return frameQueue.getDroppedFrames();
+    }
+
+    @Override
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public RtcpSession getRtcp() {
+        return rtcp;
     }
 
     @Override
-    public void run() {
-        while (running) {
+    public void close() {
+        running = false;
+        engine.unregisterRtcp(rtcp);
+        // La file n'est vidée que par le thread du moteur (consommateur unique)
+        schedule();
+    }
+
+    private void sendPacket(ByteBuffer packet) throws Exception {
+        if (simulatedLink == null || simulatedLink.admit(packet.remaining())) {
+            engine.getChannel().send(packet, clientAddress);
+        }
+        packetizer.getPool().release(packet);
+    }
+
+    /**
+     * Envoie toutes les frames en attente. Appelé uniquement par le thread du moteur.
+     */
+    void drainFrames() {
+        // Remis à faux avant de vider : une frame arrivée pendant l'envoi reprogrammera la session
+        scheduled.set(false);
+        if (!running) {
+            frameQueue.clear();
+            return;
+        }
+        EncodedFrame encodedFrame;
+        while (running && (encodedFrame = frameQueue.poll()) != null) {
             try {
-                byte[] encodedFrame = frameQueue.take();
-                // Si le paquet est suffisamment petit, l'envoyer directement
-                if (encodedFrame.length <= MAX_PAYLOAD) {
-                    byte[] rtpPacket = createRtpPacket(encodedFrame, true); // marker true => fin de frame
-                    DatagramPacket packet = new DatagramPacket(rtpPacket, rtpPacket.length, clientAddress, clientPort);
-                    socket.send(packet);
-                    sequenceNumber++;
-                    timestamp += 90000 / Data.fps;
-                } else {
-                    // Fragmenter la trame en plusieurs paquets FU-A.
-                    // Supposons que encodedFrame représente une unique NAL unit.
-                    // Le premier octet est le header NAL.
-                    int nalHeader = encodedFrame[0] & 0xFF;
-                    int nalType = nalHeader & 0x1F;
-                    // FU indicator : F (bit7) + NRI (bits 6-5) + 28 (FU-A)
-                    int fuIndicator = (nalHeader & 0xE0) | 28;
-                    // Fragmenter à partir de l'octet 1.
-                    int offset = 1;
-                    boolean firstFragment = true;
-                    while (offset < encodedFrame.length) {
-                        int remaining = encodedFrame.length - offset;
-                        // On réserve 2 octets pour FU-A header, le reste pour la charge utile.
-                        int payloadSize = Math.min(remaining, MAX_PAYLOAD - 2);
-                        byte[] fuPayload = new byte[2 + payloadSize];
-                        // FU indicator
-                        fuPayload[0] = (byte) fuIndicator;
-                        // FU header : S, E, R (bit 7, 6, 5) + original nalType (bits 4-0)
-                        int fuHeader = nalType;
-                        if (firstFragment) {
-                            fuHeader |= 0x80; // S=1
-                            firstFragment = false;
-                        }
-                        if (remaining == payloadSize) {
-                            fuHeader |= 0x40; // E=1 pour le dernier fragment
-                        }
-                        fuPayload[1] = (byte) fuHeader;
-                        // Copier le fragment de charge utile
-                        System.arraycopy(encodedFrame, offset, fuPayload, 2, payloadSize);
-                        // Créer le paquet RTP pour ce fragment.
-                        // Le marker bit est true uniquement pour le dernier fragment.
-                        boolean marker = (remaining == payloadSize);
-                        byte[] rtpPacket = createRtpPacket(fuPayload, marker);
-                        DatagramPacket packet = new DatagramPacket(rtpPacket, rtpPacket.length, clientAddress, clientPort);
-                        socket.send(packet);
-                        sequenceNumber++;
-                        offset += payloadSize;
-                    }
-                    timestamp += 90000 / Data.fps;
-                }
+                long start = System.nanoTime();
+                // Découpage NAL par NAL (STAP-A / unique / FU-A) par le packetizer partagé
+                packetizer.packetizeFrame(encodedFrame, sink);
+                metrics.recordSend(start - frameQueue.getLastEnqueueTime(), System.nanoTime() - start,
+                        encodedFrame.getLength());
             } catch (Exception e) {
                 e.printStackTrace();
-                running = false;
+                close();
+            } finally {
+                encodedFrame.release();
             }
         }
+        if (!running) {
+            frameQueue.clear();
+            return;
+        }
+        sendReportIfDue();
+    }
+
+    private void sendReportIfDue() {
+        reportBuffer.clear();
+        if (!rtcp.writeReportIfDue(reportBuffer)) {
+            return;
+        }
+        reportBuffer.flip();
+        try {
+            engine.getRtcpChannel().send(reportBuffer, clientRtcpAddress);
+        } catch (Exception e) {
+            // Un SR perdu n'empêche pas le flux
+            e.printStackTrace();
+        }
     }
 }
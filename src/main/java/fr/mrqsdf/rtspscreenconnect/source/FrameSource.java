@@ -0,0 +1,26 @@
+package fr.mrqsdf.rtspscreenconnect.source;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Source des images d'un flux : un écran (ScreenCutter), une source synthétique ou des fichiers.
+ * Le pipeline ne dépend que de cette interface, ce qui permet de mesurer et tester sans affichage.
+ */
+public interface FrameSource {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Produit l'image suivante. L'image retournée peut être réutilisée (écrasée) au prochain appel,
+     * l'appelant ne doit pas la conserver.
+     */
+    BufferedImage nextFrame();
+
+    /**
+     * Libère les ressources de la source (fichiers ouverts...).
+     */
+    default void close() {
+    }
+}
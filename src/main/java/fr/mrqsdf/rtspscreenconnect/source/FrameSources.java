@@ -0,0 +1,65 @@
+package fr.mrqsdf.rtspscreenconnect.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Crée une source d'images depuis une description texte, par exemple passée en propriété système
+ * ({@code -Drtsp.source=...}) :
+ * <ul>
+ *     <li>{@code synthetic:1920x1080:scroll} (mouvement {@code static}, {@code scroll} ou {@code noise})</li>
+ *     <li>{@code images:/chemin/vers/dossier}</li>
+ *     <li>{@code raw:/chemin/video.rgb:1920x1080}</li>
+ * </ul>
+ */
+public final class FrameSources {
+
+    private FrameSources() {
+    }
+
+    public static FrameSource fromSpec(String spec) throws IOException {
+        int colon = spec.indexOf(':');
+        String type = colon < 0 ? spec : spec.substring(0, colon);
+        String args = colon < 0 ? "" : spec.substring(colon + 1);
+        switch (type.toLowerCase()) {
+            case "synthetic" -> {
+                String[] parts = args.isEmpty() ? new String[0] : args.split(":");
+                int[] size = parts.length > 0 ? parseSize(parts[0]) : new int[]{1920, 1080};
+                SyntheticFrameSource.Motion motion = parts.length > 1
+                        ? parseMotion(parts[1]) : SyntheticFrameSource.Motion.SCROLLING_TEXT;
+                return new SyntheticFrameSource(size[0], size[1], motion);
+            }
+            case "images" -> {
+                return new ImageSequenceFrameSource(new File(args));
+            }
+            case "raw" -> {
+                // La taille est après le dernier ':', le chemin peut en contenir (C:\...)
+                int last = args.lastIndexOf(':');
+                if (last < 0) {
+                    throw new IllegalArgumentException("Taille manquante : " + spec);
+                }
+                int[] size = parseSize(args.substring(last + 1));
+                return new RawVideoFrameSource(Path.of(args.substring(0, last)), size[0], size[1]);
+            }
+            default -> throw new IllegalArgumentException("Source inconnue : " + spec);
+        }
+    }
+
+    private static int[] parseSize(String size) {
+        String[] wh = size.toLowerCase().split("x");
+        if (wh.length != 2) {
+            throw new IllegalArgumentException("Taille invalide : " + size);
+        }
+        return new int[]{Integer.parseInt(wh[0].trim()), Integer.parseInt(wh[1].trim())};
+    }
+
+    private static SyntheticFrameSource.Motion parseMotion(String motion) {
+        return switch (motion.toLowerCase()) {
+            case "static" -> SyntheticFrameSource.Motion.STATIC;
+            case "scroll", "text" -> SyntheticFrameSource.Motion.SCROLLING_TEXT;
+            case "noise", "motion" -> SyntheticFrameSource.Motion.NOISE;
+            default -> throw new IllegalArgumentException("Mouvement inconnu : " + motion);
+        };
+    }
+}
@@ -0,0 +1,86 @@
+package fr.mrqsdf.rtspscreenconnect.source;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rejoue en boucle une suite d'images (PNG, JPEG, BMP...) d'un dossier, dans l'ordre alphabétique.
+ * Les images sont chargées une fois au démarrage et ramenées à la taille de la première :
+ * aucune lecture disque pendant le flux, les mesures ne dépendent que du pipeline.
+ */
+public class ImageSequenceFrameSource implements FrameSource {
+
+    private final BufferedImage[] frames;
+    private final int width;
+    private final int height;
+    private int index = 0;
+
+    public ImageSequenceFrameSource(File directory) throws IOException {
+        File[] files = directory.listFiles(File::isFile);
+        if (files == null) {
+            throw new IOException("Dossier introuvable : " + directory);
+        }
+        Arrays.sort(files);
+        List<BufferedImage> loaded = new ArrayList<>();
+        int w = 0;
+        int h = 0;
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                // Pas une image lisible (fichier texte, format inconnu...)
+                continue;
+            }
+            if (loaded.isEmpty()) {
+                // Dimensions paires, comme l'exige le 4:2:0
+                w = image.getWidth() & ~1;
+                h = image.getHeight() & ~1;
+            }
+            loaded.add(toRgb(image, w, h));
+        }
+        if (loaded.isEmpty()) {
+            throw new IOException("Aucune image dans " + directory);
+        }
+        this.frames = loaded.toArray(new BufferedImage[0]);
+        this.width = w;
+        this.height = h;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    @Override
+    public BufferedImage nextFrame() {
+        BufferedImage frame = frames[index];
+        index = (index + 1) % frames.length;
+        return frame;
+    }
+
+    private static BufferedImage toRgb(BufferedImage image, int width, int height) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB
+                && image.getWidth() == width && image.getHeight() == height) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return rgb;
+    }
+}
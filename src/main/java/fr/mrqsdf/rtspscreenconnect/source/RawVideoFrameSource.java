@@ -0,0 +1,93 @@
+package fr.mrqsdf.rtspscreenconnect.source;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lit une vidéo brute RGB 24 bits (rgb24, sans en-tête), image après image, et reboucle à la fin du fichier.
+ * Ce format s'obtient par exemple avec {@code ffmpeg -i video.mp4 -f rawvideo -pix_fmt rgb24 video.rgb}.
+ */
+public class RawVideoFrameSource implements FrameSource {
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    // Largeur du fichier, qui peut être impaire
+    private final int sourceWidth;
+    private final ByteBuffer frameBuffer;
+    private final BufferedImage image;
+    private final int[] pixels;
+
+    public RawVideoFrameSource(Path path, int width, int height) throws IOException {
+        this.width = width & ~1;
+        this.height = height & ~1;
+        this.sourceWidth = width;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        long frameSize = (long) width * height * 3;
+        if (channel.size() < frameSize) {
+            channel.close();
+            throw new IOException("Fichier trop court pour une image " + width + "x" + height + " : " + path);
+        }
+        this.frameBuffer = ByteBuffer.allocateDirect((int) frameSize);
+        this.image = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public BufferedImage nextFrame() {
+        try {
+            readFrame();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int y = 0; y < height; y++) {
+            int in = y * sourceWidth * 3;
+            int out = y * width;
+            for (int x = 0; x < width; x++, in += 3) {
+                pixels[out + x] = (frameBuffer.get(in) & 0xFF) << 16
+                        | (frameBuffer.get(in + 1) & 0xFF) << 8
+                        | frameBuffer.get(in + 2) & 0xFF;
+            }
+        }
+        return image;
+    }
+
+    private void readFrame() throws IOException {
+        frameBuffer.clear();
+        // Une image incomplète en fin de fichier est ignorée : on repart du début
+        if (channel.size() - channel.position() < frameBuffer.capacity()) {
+            channel.position(0);
+        }
+        while (frameBuffer.hasRemaining()) {
+            if (channel.read(frameBuffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package fr.mrqsdf.rtspscreenconnect.source;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Source synthétique déterministe, sans écran : la même suite d'images à chaque exécution,
+ * pour des mesures reproductibles (benchmarks, tests de charge sur des machines headless).
+ */
+public class SyntheticFrameSource implements FrameSource {
+
+    /**
+     * Niveau de mouvement de la source.
+     */
+    public enum Motion {
+        // Image fixe : rien à encoder après la première frame
+        STATIC,
+        // Texte qui défile verticalement, comme un terminal ou une page web
+        SCROLLING_TEXT,
+        // Bruit aléatoire plein écran : le pire cas pour l'encodeur
+        NOISE
+    }
+
+    // Pixels de défilement par frame
+    private static final int SCROLL_SPEED = 4;
+    private static final int LINE_HEIGHT = 20;
+
+    private final int width;
+    private final int height;
+    private final Motion motion;
+    private final BufferedImage image;
+    private final int[] pixels;
+    // Page de texte de deux hauteurs d'écran, parcourue en boucle
+    private int[] textPage;
+    private long frameIndex = 0;
+
+    public SyntheticFrameSource(int width, int height, Motion motion) {
+        this.width = width;
+        this.height = height;
+        this.motion = motion;
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        if (motion == Motion.NOISE) {
+            return;
+        }
+        BufferedImage page = renderTextPage(width, motion == Motion.STATIC ? height : height * 2);
+        textPage = ((DataBufferInt) page.getRaster().getDataBuffer()).getData();
+        System.arraycopy(textPage, 0, pixels, 0, width * height);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public Motion getMotion() {
+        return motion;
+    }
+
+    @Override
+    public BufferedImage nextFrame() {
+        switch (motion) {
+            case SCROLLING_TEXT -> {
+                int pageHeight = height * 2;
+                int top = (int) ((frameIndex * SCROLL_SPEED) % pageHeight);
+                // Fenêtre de la hauteur de l'écran dans la page, qui reboucle au début
+                int firstRows = Math.min(height, pageHeight - top);
+                System.arraycopy(textPage, top * width, pixels, 0, firstRows * width);
+                if (firstRows < height) {
+                    System.arraycopy(textPage, 0, pixels, firstRows * width, (height - firstRows) * width);
+                }
+            }
+            case NOISE -> fillNoise(frameIndex);
+            default -> {
+                // STATIC : l'image est déjà en place
+            }
+        }
+        frameIndex++;
+        return image;
+    }
+
+    /**
+     * Bruit pseudo-aléatoire (xorshift) dont la graine ne dépend que du numéro de frame.
+     */
+    private void fillNoise(long frame) {
+        long state = 0x9E3779B97F4A7C15L * (frame + 1);
+        for (int i = 0; i < pixels.length; i++) {
+            state ^= state << 13;
+            state ^= state >>> 7;
+            state ^= state << 17;
+            pixels[i] = (int) state & 0xFFFFFF;
+        }
+    }
+
+    private static BufferedImage renderTextPage(int width, int height) {
+        BufferedImage page = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = page.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(new Color(0x2B5797));
+        g.fillRect(0, 0, width / 6, height);
+        g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
+        g.setColor(Color.DARK_GRAY);
+        int line = 0;
+        for (int y = LINE_HEIGHT; y < height; y += LINE_HEIGHT) {
+            g.drawString(String.format("%05d  La capture d'écran est encodée en H.264 puis envoyée en RTP, ligne %d", line, line),
+                    width / 6 + 10, y);
+            line++;
+        }
+        g.dispose();
+        return page;
+    }
+}
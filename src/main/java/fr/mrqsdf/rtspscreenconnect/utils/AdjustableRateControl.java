@@ -0,0 +1,68 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import org.jcodec.codecs.h264.encode.RateControl;
+import org.jcodec.codecs.h264.io.model.SliceType;
+import org.jcodec.common.model.Size;
+
+/**
+ * Contrôle de débit de l'encodeur jcodec, avec un décalage de QP réglable à chaud : le contrôle adaptatif
+ * dégrade ou rétablit la qualité sans recréer l'encodeur ni forcer d'IDR.
+ *
+ * Sans décalage, le comportement est celui de DumbRateControl (QP 20 en I, 26 en P, QP relevé d'un cran
+ * pour chaque macrobloc qui dépasse sa part du buffer de sortie), borné au QP maximal de H.264.
+ */
+public class AdjustableRateControl implements RateControl {
+
+    private static final int BASE_QP = 20;
+    private static final int P_FRAME_QP_OFFSET = 6;
+    public static final int MAX_QP = 51;
+
+    private volatile int qpOffset = 0;
+    // État de l'image en cours (thread d'encodage)
+    private int pictureQp;
+    private int bitsPerMb;
+    private int totalQpDelta;
+    private boolean justSwitched;
+
+    /**
+     * Décalage ajouté au QP de chaque image à partir de la prochaine (0 = qualité d'origine).
+     */
+    public void setQpOffset(int qpOffset) {
+        this.qpOffset = Math.max(0, qpOffset);
+    }
+
+    public int getQpOffset() {
+        return qpOffset;
+    }
+
+    @Override
+    public int startPicture(Size size, int maxSize, SliceType sliceType) {
+        int totalMb = ((size.getWidth() + 15) >> 4) * ((size.getHeight() + 15) >> 4);
+        bitsPerMb = (maxSize << 3) / totalMb;
+        totalQpDelta = 0;
+        justSwitched = false;
+        pictureQp = Math.min(MAX_QP, BASE_QP + qpOffset + (sliceType == SliceType.P ? P_FRAME_QP_OFFSET : 0));
+        return pictureQp;
+    }
+
+    @Override
+    public int initialQpDelta() {
+        return 0;
+    }
+
+    @Override
+    public int accept(int bits) {
+        if (bits >= bitsPerMb && pictureQp + totalQpDelta < MAX_QP) {
+            totalQpDelta++;
+            justSwitched = true;
+            return 1;
+        }
+        if (totalQpDelta > 0 && !justSwitched && bitsPerMb - bits > bitsPerMb >> 3) {
+            totalQpDelta--;
+            justSwitched = true;
+            return -1;
+        }
+        justSwitched = false;
+        return 0;
+    }
+}
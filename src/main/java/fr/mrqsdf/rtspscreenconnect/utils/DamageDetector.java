@@ -0,0 +1,129 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * Détecte les zones modifiées d'une capture par rapport à la précédente, par tuiles de 16x16
+ * (la taille d'un macrobloc H.264). La comparaison se fait directement sur le raster int
+ * produit par Robot.createScreenCapture, ligne par ligne avec Arrays.mismatch (vectorisé par la JVM).
+ */
+public class DamageDetector {
+
+    public static final int TILE_SIZE = 16;
+
+    private int width = -1;
+    private int height = -1;
+    private int tilesX;
+    private int tilesY;
+    private int[] previous;
+    private int[] fallbackPixels;
+    private boolean[] changedTiles;
+    private int changedTileCount;
+
+    /**
+     * Compare l'image à la précédente et met à jour la carte des tuiles modifiées.
+     * @param image La capture courante.
+     * @return true si au moins une tuile a changé.
+     */
+    public boolean detect(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (w != width || h != height) {
+            // Nouvelle résolution : tout est considéré comme modifié
+            reset(w, h);
+        }
+
+        int[] pixels;
+        int offset;
+        int stride;
+        Raster raster = image.getRaster();
+        if (raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getDataBuffer().getNumBanks() == 1) {
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            stride = sampleModel.getScanlineStride();
+            offset = raster.getDataBuffer().getOffset()
+                    - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+        } else {
+            // Format inattendu : on passe par une copie ARGB
+            if (fallbackPixels == null || fallbackPixels.length != w * h) {
+                fallbackPixels = new int[w * h];
+            }
+            image.getRGB(0, 0, w, h, fallbackPixels, 0, w);
+            pixels = fallbackPixels;
+            stride = w;
+            offset = 0;
+        }
+
+        if (previous == null) {
+            previous = new int[w * h];
+            for (int y = 0; y < h; y++) {
+                System.arraycopy(pixels, offset + y * stride, previous, y * w, w);
+            }
+            Arrays.fill(changedTiles, true);
+            changedTileCount = changedTiles.length;
+            return true;
+        }
+
+        Arrays.fill(changedTiles, false);
+        changedTileCount = 0;
+        for (int y = 0; y < h; y++) {
+            int src = offset + y * stride;
+            int dst = y * w;
+            int tileRow = (y / TILE_SIZE) * tilesX;
+            boolean rowChanged = false;
+            int x = 0;
+            while (x < w) {
+                int mismatch = Arrays.mismatch(pixels, src + x, src + w, previous, dst + x, dst + w);
+                if (mismatch < 0) {
+                    break;
+                }
+                int tileX = (x + mismatch) / TILE_SIZE;
+                if (!changedTiles[tileRow + tileX]) {
+                    changedTiles[tileRow + tileX] = true;
+                    changedTileCount++;
+                }
+                rowChanged = true;
+                // Inutile de comparer le reste de cette tuile sur cette ligne
+                x = (tileX + 1) * TILE_SIZE;
+            }
+            if (rowChanged) {
+                System.arraycopy(pixels, src, previous, dst, w);
+            }
+        }
+        return changedTileCount > 0;
+    }
+
+    private void reset(int w, int h) {
+        width = w;
+        height = h;
+        tilesX = (w + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (h + TILE_SIZE - 1) / TILE_SIZE;
+        changedTiles = new boolean[tilesX * tilesY];
+        previous = null;
+    }
+
+    /**
+     * Carte des tuiles modifiées lors du dernier appel à detect, indexée par tileY * tilesX + tileX.
+     */
+    public boolean[] getChangedTiles() {
+        return changedTiles;
+    }
+
+    public int getChangedTileCount() {
+        return changedTileCount;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+}
@@ -0,0 +1,85 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Vue sur une frame encodée (flux Annex-B) : buffer, offset, longueur, type de frame et instant de capture.
+ * Le buffer appartient à la réserve de l'encodeur et est réutilisé : chaque détenteur (diffusion, sender...)
+ * prend une référence avec {@link #retain()} et la rend avec {@link #release()} quand il a fini de lire.
+ * Quand plus personne ne la détient, la frame retourne dans la réserve.
+ */
+public class EncodedFrame {
+
+    private final byte[] data;
+    private final ArrayBlockingQueue<EncodedFrame> pool;
+    private final AtomicInteger refCount = new AtomicInteger();
+    private int length;
+    private boolean keyFrame;
+    private long captureTimeNanos;
+
+    EncodedFrame(int capacity, ArrayBlockingQueue<EncodedFrame> pool) {
+        this.data = new byte[capacity];
+        this.pool = pool;
+    }
+
+    /**
+     * Frame indépendante de toute réserve, enveloppant un tableau existant.
+     */
+    public static EncodedFrame wrap(byte[] data, int length, boolean keyFrame, long captureTimeNanos) {
+        EncodedFrame frame = new EncodedFrame(data, null);
+        frame.set(length, keyFrame, captureTimeNanos);
+        return frame;
+    }
+
+    private EncodedFrame(byte[] data, ArrayBlockingQueue<EncodedFrame> pool) {
+        this.data = data;
+        this.pool = pool;
+    }
+
+    void set(int length, boolean keyFrame, long captureTimeNanos) {
+        this.length = length;
+        this.keyFrame = keyFrame;
+        this.captureTimeNanos = captureTimeNanos;
+        this.refCount.set(1);
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return 0;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    public boolean isKeyFrame() {
+        return keyFrame;
+    }
+
+    /**
+     * Instant de capture (horloge monotone System.nanoTime).
+     */
+    public long getCaptureTimeNanos() {
+        return captureTimeNanos;
+    }
+
+    public EncodedFrame retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (refCount.decrementAndGet() == 0 && pool != null) {
+            // Réserve pleine : la frame est abandonnée au GC
+            pool.offer(this);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Horloge de frames à cadence fixe pour un flux. Les frames sont planifiées sur des échéances absolues
+ * (échéance précédente + période) : le temps de capture et d'encodage ne décale pas la cadence.
+ * En cas de retard de plus d'une période, les frames manquées sont abandonnées au lieu d'être rattrapées.
+ */
+public class FrameClock {
+
+    private volatile long periodNanos;
+    private long nextDeadline = -1;
+    private long droppedFrames = 0;
+
+    public FrameClock(int fps) {
+        setFps(fps);
+    }
+
+    public void setFps(int fps) {
+        setFrameRate(fps);
+    }
+
+    /**
+     * Cadence fractionnaire, utilisée quand l'ordonnanceur réduit le débit d'images d'un flux.
+     */
+    public void setFrameRate(double fps) {
+        this.periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / Math.max(0.1, fps));
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * Échéance de la prochaine frame (horloge System.nanoTime). Au premier appel, c'est maintenant.
+     */
+    public long getNextDeadline(long now) {
+        if (nextDeadline < 0) {
+            nextDeadline = now;
+        }
+        return nextDeadline;
+    }
+
+    /**
+     * Consomme l'échéance courante et planifie la suivante.
+     * En retard de plus d'une période, les échéances manquées sont sautées plutôt que rattrapées.
+     * @return L'échéance consommée.
+     */
+    public long advance(long now) {
+        long period = periodNanos;
+        getNextDeadline(now);
+        if (now - nextDeadline > period) {
+            long missed = (now - nextDeadline) / period;
+            droppedFrames += missed;
+            nextDeadline += missed * period;
+        }
+        long deadline = nextDeadline;
+        nextDeadline += period;
+        return deadline;
+    }
+
+    /**
+     * Oublie la cadence en cours, la prochaine frame partira immédiatement (reprise après une pause).
+     */
+    public void reset() {
+        nextDeadline = -1;
+    }
+
+    /**
+     * Nombre d'échéances sautées parce que le pipeline était en retard.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -1,63 +1,253 @@
 package fr.mrqsdf.rtspscreenconnect.utils;
 
+import fr.mrqsdf.rtspscreenconnect.pipeline.ParallelPool;
+
 import java.awt.image.BufferedImage;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
 
-import fr.mrqsdf.rtspscreenconnect.resource.Data;
 import org.jcodec.codecs.h264.H264Encoder;
-import org.jcodec.common.VideoEncoder;
+import org.jcodec.codecs.h264.H264Utils;
+import org.jcodec.codecs.h264.io.model.NALUnit;
+import org.jcodec.codecs.h264.io.model.NALUnitType;
+import org.jcodec.codecs.h264.io.model.PictureParameterSet;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.codecs.h264.io.model.SliceType;
 import org.jcodec.common.model.Picture;
-import org.jcodec.common.model.ColorSpace;
-import org.jcodec.scale.AWTUtil;
+import org.jcodec.common.model.Size;
 
 public class H264FrameEncoder {
+    // Nombre de frames encodées conservées pour réutilisation
+    private static final int POOLED_FRAMES = 16;
+
     private H264Encoder encoder;
-    private boolean primed = false;
+    // QP de base réglable par le contrôle adaptatif
+    private final AdjustableRateControl rateControl = new AdjustableRateControl();
+    // Plans YUV réutilisés d'une frame à l'autre
+    private final Yuv420Converter converter;
+    // Buffers de sortie réutilisés, rendus par les senders une fois envoyés
+    private final ArrayBlockingQueue<EncodedFrame> framePool = new ArrayBlockingQueue<>(POOLED_FRAMES);
+    // Taille des buffers de sortie, agrandie si une frame ne tient pas
+    private int bufferCapacity = 0;
     private int width = -1;
     private int height = -1;
-    private int frameCount = 0;
-    // Taille du GOP : par exemple, 30 frames
-    private int gopSize = 1;//Data.fps / 5 / (Data.fps / 15);
+    // Position dans le GOP courant : 0 = IDR
+    private int frameNumber = 0;
+    // Taille du GOP : une IDR puis gopSize - 1 P-frames
+    private final int gopSize;
+    private volatile boolean keyFrameRequested = true;
+    private boolean lastFrameKey = false;
+    // Encodage en bandes parallèles, null en mode une seule slice
+    private final SliceParallelEncoder sliceEncoder;
+    // Mode une seule slice : sortie brute de jcodec, réécriture de l'en-tête de slice et SPS/PPS du flux
+    private ByteBuffer encoderOutput;
+    private SliceHeaderRewriter rewriter;
+    private byte[] parameterSets;
+    // Durées de la dernière frame, relevées par l'appelant pour ses métriques
+    private long lastConvertNanos;
+    private long lastEncodeNanos;
+
+    public H264FrameEncoder(int gopSize) {
+        this(gopSize, 1, ParallelPool.SEQUENTIAL);
+    }
+
+    /**
+     * @param slices Nombre de slices par frame. Au-delà de 1, les bandes sont encodées en parallèle.
+     * @param parallelPool Pool du pipeline pour la conversion YUV et les slices.
+     */
+    public H264FrameEncoder(int gopSize, int slices, ParallelPool parallelPool) {
+        this.gopSize = Math.max(1, gopSize);
+        this.converter = new Yuv420Converter(parallelPool);
+        encoder = new H264Encoder(rateControl);
+        // Dimensionne frame_num dans le SPS pour couvrir tout le GOP
+        encoder.setKeyInterval(this.gopSize);
+        // SliceParallelEncoder n'est chargé qu'en mode multi-slices : il dépend d'un champ privé de jcodec
+        if (slices > 1 && SliceParallelEncoder.isAvailable()) {
+            sliceEncoder = new SliceParallelEncoder(slices, this.gopSize, parallelPool);
+        } else {
+            if (slices > 1) {
+                System.out.println("Encodage en une seule slice au lieu de " + slices);
+            }
+            sliceEncoder = null;
+        }
+    }
+
+    /**
+     * Force la prochaine frame à être une IDR (nouveau client en PLAY, perte côté client...).
+     */
+    public void requestKeyFrame() {
+        keyFrameRequested = true;
+    }
+
+    public boolean isKeyFrameRequested() {
+        return keyFrameRequested;
+    }
+
+    /**
+     * Indique si la dernière frame encodée est une IDR.
+     */
+    public boolean isLastFrameKey() {
+        return lastFrameKey;
+    }
+
+    public int getGopSize() {
+        return gopSize;
+    }
+
+    /**
+     * Dégrade la qualité de {@code qpOffset} crans de QP à partir de la prochaine frame (0 = qualité d'origine).
+     */
+    public void setQpOffset(int qpOffset) {
+        rateControl.setQpOffset(qpOffset);
+        if (sliceEncoder != null) {
+            sliceEncoder.setQpOffset(qpOffset);
+        }
+    }
 
-    public H264FrameEncoder() {
-        encoder = H264Encoder.createH264Encoder();
-        encoder.setKeyInterval(gopSize);
+    public int getQpOffset() {
+        return rateControl.getQpOffset();
     }
 
-    public byte[] encodeFrame(BufferedImage image) {
+    public int getSlices() {
+        return sliceEncoder != null ? sliceEncoder.getSlices() : 1;
+    }
+
+    /**
+     * SPS et PPS (NAL complètes, sans code de début) que l'encodeur écrira en tête d'une IDR de cette taille,
+     * pour annoncer le flux avant que la première frame ne soit encodée.
+     */
+    public byte[][] getParameterSets(int width, int height) {
+        H264Encoder helper = H264Encoder.createH264Encoder();
+        helper.setKeyInterval(gopSize);
+        SeqParameterSet sps = helper.initSPS(new Size(width, height));
+        // Le filtre de déblocage du décodeur est désactivé dans chaque en-tête de slice (voir SliceHeaderRewriter)
+        PictureParameterSet pps = SliceHeaderRewriter.streamPps(helper);
+        return new byte[][]{toNal(NALUnitType.SPS, sps::write), toNal(NALUnitType.PPS, pps::write)};
+    }
+
+    private static byte[] toNal(NALUnitType type, Consumer<ByteBuffer> writer) {
+        ByteBuffer raw = ByteBuffer.allocate(128);
+        writer.accept(raw);
+        raw.flip();
+        ByteBuffer out = ByteBuffer.allocate(256);
+        new NALUnit(type, 3).write(out);
+        H264Utils.escapeNAL(raw, out);
+        out.flip();
+        byte[] nal = new byte[out.remaining()];
+        out.get(nal);
+        return nal;
+    }
+
+    /**
+     * Durée de la conversion YUV de la dernière frame, en nanosecondes.
+     */
+    public long getLastConvertNanos() {
+        return lastConvertNanos;
+    }
+
+    /**
+     * Durée de l'encodage H.264 de la dernière frame (conversion exclue), en nanosecondes.
+     */
+    public long getLastEncodeNanos() {
+        return lastEncodeNanos;
+    }
+
+    /**
+     * Encode une capture. La frame retournée est détenue par l'appelant (une référence),
+     * qui doit appeler release() quand il n'en a plus besoin.
+     * @param image La capture à encoder.
+     * @param captureTimeNanos L'instant de capture (System.nanoTime).
+     */
+    public EncodedFrame encodeFrame(BufferedImage image, long captureTimeNanos) {
         // Convertir le BufferedImage en Picture en YUV420
-        Picture picture = AWTUtil.fromBufferedImage(image, ColorSpace.YUV420J);
+        long start = System.nanoTime();
+        Picture picture = converter.convert(image);
+        long converted = System.nanoTime();
+        lastConvertNanos = converted - start;
 
-        // Initialiser la résolution si nécessaire
-        if (width == -1 || height == -1) {
-            width = picture.getWidth();
-            height = picture.getHeight();
-        } else if (picture.getWidth() != width || picture.getHeight() != height) {
+        // Une nouvelle résolution invalide l'image de référence : repartir sur une IDR
+        if (picture.getWidth() != width || picture.getHeight() != height) {
             width = picture.getWidth();
             height = picture.getHeight();
+            keyFrameRequested = true;
+            // Une frame encodée dépasse rarement la taille d'un plan de luminance
+            bufferCapacity = Math.max(65536, width * height);
+            if (sliceEncoder == null) {
+                SeqParameterSet sps = encoder.initSPS(new Size(width, height));
+                PictureParameterSet pps = SliceHeaderRewriter.streamPps(encoder);
+                rewriter = new SliceHeaderRewriter(sps, encoder.initPPS(), sps, pps, 0);
+                parameterSets = SliceHeaderRewriter.writeParameterSets(sps, pps);
+            }
         }
 
-        // Forcer l'envoi d'une I-frame toutes les gopSize frames
-        if (frameCount % gopSize == 0) {
-            primed = false;
+        if (keyFrameRequested || frameNumber >= gopSize) {
+            keyFrameRequested = false;
+            frameNumber = 0;
         }
+        boolean idr = frameNumber == 0;
 
-        ByteBuffer out = ByteBuffer.allocate(picture.getWidth() * picture.getHeight() * 5);
-        VideoEncoder.EncodedFrame ef;
-        if (!primed) {
-            // La première frame (ou après réinitialisation) sera une I-frame
-            ef = encoder.encodeFrame(picture, out);
-            primed = true;
-        } else {
-            ef = encoder.encodeFrame(picture, out);
+        if (sliceEncoder != null) {
+            int size = sliceEncoder.encodeBands(picture, idr, frameNumber);
+            frameNumber++;
+            lastFrameKey = idr;
+            // Taille connue avant l'assemblage : pas de réencodage possible ni nécessaire
+            while (bufferCapacity < size) {
+                bufferCapacity *= 2;
+            }
+            EncodedFrame frame = acquireFrame();
+            ByteBuffer encodedData = sliceEncoder.writeFrame(ByteBuffer.wrap(frame.getData()));
+            frame.set(encodedData.limit(), idr, captureTimeNanos);
+            lastEncodeNanos = System.nanoTime() - converted;
+            return frame;
         }
 
-        ByteBuffer encodedData = ef.getData();
-        byte[] data = new byte[encodedData.remaining()];
-        encodedData.get(data);
-        frameCount++;
-        return data;
+        while (true) {
+            if (encoderOutput == null || encoderOutput.capacity() < bufferCapacity) {
+                encoderOutput = ByteBuffer.allocate(bufferCapacity);
+            }
+            try {
+                // La numérotation est gérée ici : encodeIDRFrame de jcodec ne fait pas avancer son compteur,
+                // la frame suivante serait de nouveau une IDR.
+                ByteBuffer encodedData = encoder.doEncodeFrame(picture, encoderOutput, idr,
+                        frameNumber, idr ? SliceType.I : SliceType.P);
+                ByteBuffer slice = rewriter.rewrite(encodedData, idr);
+                frameNumber++;
+                lastFrameKey = idr;
+                // Slice réécrite quelques bits plus longue : la frame ne réencode pas, elle s'agrandit
+                int size = (idr ? parameterSets.length : 0) + 4 + slice.remaining();
+                while (bufferCapacity < size) {
+                    bufferCapacity *= 2;
+                }
+                EncodedFrame frame = acquireFrame();
+                ByteBuffer out = ByteBuffer.wrap(frame.getData());
+                if (idr) {
+                    out.put(parameterSets);
+                }
+                out.putInt(1);
+                out.put(slice);
+                frame.set(out.position(), idr, captureTimeNanos);
+                lastEncodeNanos = System.nanoTime() - converted;
+                return frame;
+            } catch (BufferOverflowException e) {
+                // Frame plus grosse que prévu : agrandir les buffers et réencoder.
+                // L'image de référence a déjà avancé, une P-frame réencodée serait prédite à tort : on repart sur une IDR.
+                bufferCapacity *= 2;
+                idr = true;
+                frameNumber = 0;
+            }
+        }
     }
-}
-
 
+    private EncodedFrame acquireFrame() {
+        EncodedFrame frame;
+        while ((frame = framePool.poll()) != null) {
+            if (frame.getCapacity() >= bufferCapacity) {
+                return frame;
+            }
+            // Trop petite depuis un changement de résolution : abandonnée
+        }
+        return new EncodedFrame(bufferCapacity, framePool);
+    }
+}
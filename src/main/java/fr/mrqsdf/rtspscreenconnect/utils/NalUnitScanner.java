@@ -0,0 +1,92 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+/**
+ * Découpe un flux H.264 Annex-B (codes de départ 00 00 01 / 00 00 00 01) en NAL units,
+ * sans copie : chaque NAL est exposée par son offset et sa longueur dans le tableau d'origine.
+ * Si le buffer ne contient aucun code de départ, il est considéré comme une unique NAL.
+ */
+public class NalUnitScanner {
+
+    private byte[] data;
+    private int end;
+    private int pos;
+    private boolean rawNal;
+    private int nalOffset;
+    private int nalLength;
+
+    public NalUnitScanner reset(byte[] data) {
+        return reset(data, 0, data.length);
+    }
+
+    public NalUnitScanner reset(byte[] data, int offset, int length) {
+        this.data = data;
+        this.end = offset + length;
+        int startCode = findStartCode(data, offset, end);
+        this.rawNal = startCode < 0;
+        this.pos = rawNal ? offset : startCode + 3;
+        this.nalOffset = 0;
+        this.nalLength = 0;
+        return this;
+    }
+
+    /**
+     * Avance à la NAL suivante.
+     * @return false s'il n'y a plus de NAL dans le buffer.
+     */
+    public boolean next() {
+        while (pos < end) {
+            if (rawNal) {
+                nalOffset = pos;
+                nalLength = end - pos;
+                pos = end;
+                return true;
+            }
+            int startCode = findStartCode(data, pos, end);
+            int nalEnd = startCode < 0 ? end : startCode;
+            // Les zéros en fin de NAL appartiennent au code de départ suivant (trailing_zero_8bits)
+            while (nalEnd > pos && data[nalEnd - 1] == 0) {
+                nalEnd--;
+            }
+            nalOffset = pos;
+            nalLength = nalEnd - pos;
+            pos = startCode < 0 ? end : startCode + 3;
+            if (nalLength > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getNalOffset() {
+        return nalOffset;
+    }
+
+    public int getNalLength() {
+        return nalLength;
+    }
+
+    public int getNalType() {
+        return data[nalOffset] & 0x1F;
+    }
+
+    /**
+     * Cherche le prochain préfixe 00 00 01 entre from (inclus) et to (exclus).
+     * @return L'index du premier octet du préfixe, ou -1 s'il n'y en a pas.
+     */
+    public static int findStartCode(byte[] data, int from, int to) {
+        int i = from;
+        while (i + 2 < to) {
+            byte b = data[i + 2];
+            if (b != 0 && b != 1) {
+                // Aucun préfixe ne peut finir en i, i+1 ou i+2
+                i += 3;
+                continue;
+            }
+            if (b == 1 && data[i + 1] == 0 && data[i] == 0) {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+}
@@ -1,13 +1,16 @@
 package fr.mrqsdf.rtspscreenconnect.utils;
 
+import fr.mrqsdf.rtspscreenconnect.source.FrameSource;
+
 import java.awt.*;
 import java.awt.image.BufferedImage;
 
-public class ScreenCutter {
+public class ScreenCutter implements FrameSource {
 
     private Robot robot;
     private Rectangle screenRect;
     private GraphicsDevice screenDevice;
+    private final ImageResizer resizer = new ImageResizer();
 
     public ScreenCutter(GraphicsDevice screenDevice) {
         try {
@@ -19,6 +22,24 @@ public class ScreenCutter {
         }
     }
 
+    @Override
+    public int getWidth() {
+        return screenRect.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return screenRect.height;
+    }
+
+    /**
+     * Capture de l'écran complet, utilisée comme frame du flux.
+     */
+    @Override
+    public BufferedImage nextFrame() {
+        return cutScreen();
+    }
+
     public BufferedImage cutScreen() {
         BufferedImage img = robot.createScreenCapture(screenRect);
         return img;
@@ -28,7 +49,7 @@ public class ScreenCutter {
     public BufferedImage cutScreen(int width, int height) {
         BufferedImage original = robot.createScreenCapture(screenRect);
         // Par exemple, réduire à 640x360 :
-        BufferedImage resized = ImageResizer.resize(original, width, height);
+        BufferedImage resized = resizer.resize(original, width, height);
         return resized;
     }
 
@@ -0,0 +1,166 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import org.jcodec.codecs.h264.H264Encoder;
+import org.jcodec.codecs.h264.H264Utils;
+import org.jcodec.codecs.h264.decode.SliceHeaderReader;
+import org.jcodec.codecs.h264.io.model.NALUnit;
+import org.jcodec.codecs.h264.io.model.NALUnitType;
+import org.jcodec.codecs.h264.io.model.PictureParameterSet;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.codecs.h264.io.model.SliceHeader;
+import org.jcodec.codecs.h264.io.write.SliceHeaderWriter;
+import org.jcodec.common.io.BitReader;
+import org.jcodec.common.io.BitWriter;
+
+/**
+ * Réécrit au bit près l'en-tête de la slice produite par un H264Encoder de jcodec pour le flux diffusé :
+ * position de la slice dans l'image complète, SPS/PPS du flux, et disable_deblocking_filter_idc = 1.
+ * Les données des macroblocs sont recopiées telles quelles.
+ *
+ * jcodec filtre sa reconstruction macrobloc par macrobloc pendant l'encodage (MBDeblocker), pas comme le filtre
+ * normatif que le décodeur applique à l'image entière : laissé actif, ce filtre du décodeur travaille sur d'autres
+ * pixels que ceux de la référence de l'encodeur. Il est donc désactivé dans tout le flux, une slice ou plusieurs ;
+ * le PPS du flux ({@link #streamPps}) porte le champ qui le permet.
+ *
+ * Un réécrivain par encodeur : ses tampons sont réutilisés d'une frame à l'autre.
+ */
+class SliceHeaderRewriter {
+
+    // Paramètres écrits par l'encodeur jcodec, nécessaires pour relire ses en-têtes de slice
+    private final SeqParameterSet sourceSps;
+    private final PictureParameterSet sourcePps;
+    // Paramètres du flux diffusé
+    private final SeqParameterSet sps;
+    private final PictureParameterSet pps;
+    private final int firstMbInSlice;
+    private final NalUnitScanner scanner = new NalUnitScanner();
+    // Slice réécrite avant échappement, puis la dernière slice réécrite (NAL sans code de début), agrandis si besoin
+    private ByteBuffer body = ByteBuffer.allocate(0);
+    private ByteBuffer rewritten = ByteBuffer.allocate(0);
+
+    /**
+     * @param firstMbInSlice Premier macrobloc de la slice dans l'image complète.
+     */
+    SliceHeaderRewriter(SeqParameterSet sourceSps, PictureParameterSet sourcePps,
+                        SeqParameterSet sps, PictureParameterSet pps, int firstMbInSlice) {
+        this.sourceSps = sourceSps;
+        this.sourcePps = sourcePps;
+        this.sps = sps;
+        this.pps = pps;
+        this.firstMbInSlice = firstMbInSlice;
+    }
+
+    /**
+     * PPS du flux : celui de jcodec, avec deblocking_filter_control_present_flag pour pouvoir désactiver
+     * le filtre du décodeur dans chaque en-tête de slice.
+     */
+    static PictureParameterSet streamPps(H264Encoder encoder) {
+        PictureParameterSet pps = encoder.initPPS();
+        pps.deblockingFilterControlPresentFlag = true;
+        return pps;
+    }
+
+    /**
+     * SPS puis PPS, chacun précédé d'un code de début, à écrire en tête d'une IDR.
+     */
+    static byte[] writeParameterSets(SeqParameterSet sps, PictureParameterSet pps) {
+        ByteBuffer params = ByteBuffer.allocate(256);
+        writeParameterSet(params, NALUnitType.SPS, sps::write);
+        writeParameterSet(params, NALUnitType.PPS, pps::write);
+        params.flip();
+        byte[] parameterSets = new byte[params.remaining()];
+        params.get(parameterSets);
+        return parameterSets;
+    }
+
+    private static void writeParameterSet(ByteBuffer out, NALUnitType type, Consumer<ByteBuffer> writer) {
+        ByteBuffer tmp = ByteBuffer.allocate(128);
+        writer.accept(tmp);
+        tmp.flip();
+        out.putInt(1);
+        new NALUnit(type, 3).write(out);
+        H264Utils.escapeNAL(tmp, out);
+    }
+
+    /**
+     * Extrait la slice de la sortie de l'encodeur et réécrit son en-tête.
+     * @return La slice réécrite (NAL sans code de début), valable jusqu'au prochain appel.
+     */
+    ByteBuffer rewrite(ByteBuffer encoded, boolean idr) {
+        byte[] data = encoded.array();
+        scanner.reset(data, encoded.arrayOffset(), encoded.limit());
+        int offset = -1;
+        int length = 0;
+        while (scanner.next()) {
+            int type = scanner.getNalType();
+            if (type == 1 || type == 5) {
+                offset = scanner.getNalOffset();
+                length = scanner.getNalLength();
+                break;
+            }
+        }
+        if (offset < 0) {
+            throw new IllegalStateException("Aucune slice dans la sortie de l'encodeur");
+        }
+
+        // Charge utile RBSP de la slice, sans les octets d'échappement
+        ByteBuffer rbsp = ByteBuffer.wrap(data, offset, length).slice();
+        NALUnit nalUnit = NALUnit.read(rbsp);
+        rbsp = rbsp.slice();
+        H264Utils.unescapeNAL(rbsp);
+        int stopBit = lastSetBit(rbsp);
+
+        BitReader reader = BitReader.createBitReader(rbsp.duplicate());
+        SliceHeader header = SliceHeaderReader.readPart1(reader);
+        SliceHeaderReader.readPart2(header, nalUnit, sourceSps, sourcePps, reader);
+        header.firstMbInSlice = firstMbInSlice;
+        header.disableDeblockingFilterIdc = 1;
+        header.sps = sps;
+        header.pps = pps;
+
+        if (body.capacity() < rbsp.remaining() + 16) {
+            body = ByteBuffer.allocate(rbsp.remaining() + 16);
+        }
+        body.clear();
+        BitWriter writer = new BitWriter(body);
+        SliceHeaderWriter.write(header, idr, nalUnit.nal_ref_idc, writer);
+        // Données des macroblocs recopiées telles quelles, jusqu'au bit d'arrêt inclus
+        int remaining = stopBit + 1 - reader.position();
+        while (remaining >= 32) {
+            writer.writeNBit(reader.readNBit(32), 32);
+            remaining -= 32;
+        }
+        if (remaining > 0) {
+            writer.writeNBit(reader.readNBit(remaining), remaining);
+        }
+        writer.flush();
+        body.flip();
+
+        // Octets d'échappement au pire un pour deux octets, plus l'en-tête NAL
+        int capacity = body.remaining() * 3 / 2 + 16;
+        if (rewritten.capacity() < capacity) {
+            rewritten = ByteBuffer.allocate(capacity);
+        }
+        rewritten.clear();
+        nalUnit.write(rewritten);
+        H264Utils.escapeNAL(body, rewritten);
+        rewritten.flip();
+        return rewritten;
+    }
+
+    /**
+     * Position (en bits depuis le début) du dernier bit à 1 : le rbsp_stop_one_bit.
+     */
+    private static int lastSetBit(ByteBuffer rbsp) {
+        for (int i = rbsp.limit() - 1; i >= rbsp.position(); i--) {
+            int b = rbsp.get(i) & 0xFF;
+            if (b != 0) {
+                return (i - rbsp.position()) * 8 + 7 - Integer.numberOfTrailingZeros(b);
+            }
+        }
+        throw new IllegalStateException("Slice vide");
+    }
+}
@@ -0,0 +1,249 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import fr.mrqsdf.rtspscreenconnect.pipeline.ParallelPool;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+import org.jcodec.codecs.h264.H264Encoder;
+import org.jcodec.codecs.h264.io.model.PictureParameterSet;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.codecs.h264.io.model.SliceType;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+import org.jcodec.common.model.Size;
+
+/**
+ * Encode une frame en plusieurs slices, une par bande horizontale, encodées en parallèle.
+ *
+ * Chaque bande a son propre encodeur jcodec (et sa propre image de référence). Les slices produites sont
+ * réassemblées en une seule unité d'accès avec un SPS/PPS de la taille de l'image complète :
+ * l'en-tête de chaque slice est réécrit au bit près par {@link SliceHeaderRewriter} (first_mb_in_slice, et
+ * disable_deblocking_filter_idc = 1). La valeur 2 ne couperait le filtre du décodeur qu'aux bords entre bandes ;
+ * or l'encodeur de chaque bande filtre déjà sa reconstruction à sa façon, macrobloc par macrobloc, et le filtre
+ * du décodeur est donc coupé partout, comme en mode une seule slice.
+ *
+ * La recherche de mouvement de jcodec n'est pas bornée à la bande : dans les dernières lignes de macroblocs,
+ * un bloc peut déborder jusqu'à une trentaine de lignes plus bas. Le décodeur lit alors les vraies lignes
+ * de la bande suivante ; pour que l'encodeur prédise la même chose, chaque encodeur de bande reçoit comme
+ * référence sa propre reconstruction prolongée des lignes reconstruites par les bandes suivantes.
+ */
+public class SliceParallelEncoder {
+
+    // Image de référence de H264Encoder, remplacée par la référence prolongée de chaque bande.
+    // Champ privé de jcodec 0.2.5 (dépendance épinglée dans build.gradle) : null s'il n'existe plus,
+    // le mode multi-slices est alors indisponible (voir isAvailable).
+    private static final Field REFERENCE_FIELD = findReferenceField();
+    // Lignes de débordement possibles sous une bande : portée de recherche et hauteur d'un macrobloc
+    private static final int OVERLAP_ROWS = H264Encoder.createH264Encoder().getMotionSearchRange() + 16;
+
+    private final int slices;
+    private final int keyInterval;
+    private final ParallelPool parallelPool;
+    private int width = -1;
+    private int height = -1;
+    private Band[] bands;
+    // Reconstructions des bandes lues avant de remplacer leurs références
+    private Picture[] reconstructed;
+    // SPS et PPS de l'image complète, avec codes de début
+    private byte[] parameterSets;
+    private boolean lastIdr;
+    // Décalage de QP appliqué à toutes les bandes
+    private volatile int qpOffset = 0;
+
+    private static class Band {
+        final AdjustableRateControl rateControl = new AdjustableRateControl();
+        final H264Encoder encoder = new H264Encoder(rateControl);
+        final int firstMbRow;
+        final int lumaRows;
+        final Picture picture;
+        final ByteBuffer output;
+        final SliceHeaderRewriter rewriter;
+        // Slice réécrite de la dernière frame, détenue par le rewriter
+        ByteBuffer rewritten;
+        // Référence de la bande : ses lignes reconstruites puis OVERLAP_ROWS lignes des bandes suivantes
+        Picture reference;
+
+        Band(int width, int firstMbRow, int lumaRows, int keyInterval, int qpOffset,
+             SeqParameterSet sps, PictureParameterSet pps) {
+            this.firstMbRow = firstMbRow;
+            rateControl.setQpOffset(qpOffset);
+            this.lumaRows = lumaRows;
+            encoder.setKeyInterval(keyInterval);
+            this.picture = Picture.create(width, lumaRows, ColorSpace.YUV420J);
+            // Paramètres écrits par l'encodeur de la bande, pour relire ses en-têtes de slice
+            this.rewriter = new SliceHeaderRewriter(encoder.initSPS(new Size(width, lumaRows)), encoder.initPPS(),
+                    sps, pps, firstMbRow * ((width + 15) >> 4));
+            // jcodec écrit la slice dans un buffer interne de width * lumaRows octets : la sortie ne peut pas
+            // dépasser cette taille plus le SPS/PPS
+            this.output = ByteBuffer.allocate(width * lumaRows + 1024);
+        }
+    }
+
+    /**
+     * @param slices Nombre de bandes (limité au nombre de lignes de macroblocs).
+     * @param keyInterval Taille du GOP, pour dimensionner frame_num dans le SPS.
+     */
+    public SliceParallelEncoder(int slices, int keyInterval) {
+        this(slices, keyInterval, ParallelPool.SEQUENTIAL);
+    }
+
+    /**
+     * @param parallelPool Pool du pipeline sur lequel les bandes sont encodées.
+     */
+    public SliceParallelEncoder(int slices, int keyInterval, ParallelPool parallelPool) {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Encodage multi-slices indisponible avec cette version de jcodec");
+        }
+        this.slices = Math.max(1, slices);
+        this.keyInterval = keyInterval;
+        this.parallelPool = parallelPool;
+    }
+
+    private static Field findReferenceField() {
+        try {
+            Field field = H264Encoder.class.getDeclaredField("ref");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            System.out.println("Champ ref de H264Encoder introuvable, encodage multi-slices désactivé : " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Indique si l'encodage multi-slices est possible avec le jcodec chargé.
+     */
+    public static boolean isAvailable() {
+        return REFERENCE_FIELD != null;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    /**
+     * Décalage de QP de toutes les bandes, pris en compte à la prochaine frame.
+     */
+    public void setQpOffset(int qpOffset) {
+        this.qpOffset = qpOffset;
+        Band[] current = bands;
+        if (current != null) {
+            for (Band band : current) {
+                band.rateControl.setQpOffset(qpOffset);
+            }
+        }
+    }
+
+    /**
+     * Encode les bandes d'une frame en parallèle. Une IDR est obligatoire après un changement de résolution.
+     * La frame est ensuite assemblée par {@link #writeFrame}, qui ne réencode jamais : les images de référence
+     * des bandes ont déjà avancé.
+     * @return La taille de la frame assemblée, en octets.
+     */
+    public int encodeBands(Picture picture, boolean idr, int frameNumber) {
+        if (picture.getWidth() != width || picture.getHeight() != height) {
+            resize(picture.getWidth(), picture.getHeight());
+        }
+        copyBands(picture);
+        SliceType sliceType = idr ? SliceType.I : SliceType.P;
+        // Le thread appelant participe, comme pour la conversion YUV
+        parallelPool.forEach(bands.length, i -> encodeBand(bands[i], idr, frameNumber, sliceType));
+        shareReferences();
+        lastIdr = idr;
+        int size = idr ? parameterSets.length : 0;
+        for (Band band : bands) {
+            size += 4 + band.rewritten.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * Assemble la dernière frame encodée dans {@code out} : SPS/PPS en tête si IDR, puis une slice par bande.
+     * @return Le buffer encodé, de 0 à limit.
+     */
+    public ByteBuffer writeFrame(ByteBuffer out) {
+        ByteBuffer dup = out.duplicate();
+        if (lastIdr) {
+            dup.put(parameterSets);
+        }
+        for (Band band : bands) {
+            dup.putInt(1);
+            dup.put(band.rewritten.duplicate());
+        }
+        dup.flip();
+        return dup;
+    }
+
+    private void resize(int w, int h) {
+        width = w;
+        height = h;
+        int mbRows = (h + 15) >> 4;
+        int count = Math.min(slices, mbRows);
+        H264Encoder helper = H264Encoder.createH264Encoder();
+        helper.setKeyInterval(keyInterval);
+        SeqParameterSet sps = helper.initSPS(new Size(w, h));
+        PictureParameterSet pps = SliceHeaderRewriter.streamPps(helper);
+        parameterSets = SliceHeaderRewriter.writeParameterSets(sps, pps);
+
+        bands = new Band[count];
+        reconstructed = new Picture[count];
+        for (int i = 0; i < count; i++) {
+            int firstRow = mbRows * i / count;
+            int lastRow = mbRows * (i + 1) / count;
+            int lumaRows = Math.min(h, lastRow << 4) - (firstRow << 4);
+            bands[i] = new Band(w, firstRow, lumaRows, keyInterval, qpOffset, sps, pps);
+            // Lignes de la bande et des suivantes, dans la limite de l'image codée (multiple de 16)
+            int referenceRows = Math.min((lastRow << 4) + OVERLAP_ROWS, mbRows << 4) - (firstRow << 4);
+            bands[i].reference = Picture.create(((w + 15) >> 4) << 4, referenceRows, ColorSpace.YUV420J);
+        }
+    }
+
+    /**
+     * Recopie chaque bande de l'image dans la Picture de son encodeur (lignes contiguës, un arraycopy par plan).
+     */
+    private void copyBands(Picture picture) {
+        int chromaWidth = width >> 1;
+        for (Band band : bands) {
+            int y0 = band.firstMbRow << 4;
+            System.arraycopy(picture.getPlaneData(0), y0 * width, band.picture.getPlaneData(0), 0,
+                    band.lumaRows * width);
+            int chromaSize = (band.lumaRows >> 1) * chromaWidth;
+            System.arraycopy(picture.getPlaneData(1), (y0 >> 1) * chromaWidth, band.picture.getPlaneData(1), 0, chromaSize);
+            System.arraycopy(picture.getPlaneData(2), (y0 >> 1) * chromaWidth, band.picture.getPlaneData(2), 0, chromaSize);
+        }
+    }
+
+    /**
+     * Donne à chaque encodeur de bande la référence de la prochaine frame telle que le décodeur la voit :
+     * sa reconstruction, prolongée des lignes reconstruites par les bandes suivantes.
+     */
+    private void shareReferences() {
+        try {
+            for (int i = 0; i < bands.length; i++) {
+                reconstructed[i] = (Picture) REFERENCE_FIELD.get(bands[i].encoder);
+            }
+            for (int i = 0; i < bands.length; i++) {
+                Picture reference = bands[i].reference;
+                for (int plane = 0; plane < 3; plane++) {
+                    byte[] target = reference.getPlaneData(plane);
+                    int copied = 0;
+                    for (int j = i; j < bands.length && copied < target.length; j++) {
+                        byte[] source = reconstructed[j].getPlaneData(plane);
+                        int length = Math.min(source.length, target.length - copied);
+                        System.arraycopy(source, 0, target, copied, length);
+                        copied += length;
+                    }
+                }
+                REFERENCE_FIELD.set(bands[i].encoder, reference);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void encodeBand(Band band, boolean idr, int frameNumber, SliceType sliceType) {
+        ByteBuffer encoded = band.encoder.doEncodeFrame(band.picture, band.output, idr, frameNumber, sliceType);
+        band.rewritten = band.rewriter.rewrite(encoded, idr);
+    }
+}
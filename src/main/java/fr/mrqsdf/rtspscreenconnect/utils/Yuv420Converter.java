@@ -0,0 +1,156 @@
+package fr.mrqsdf.rtspscreenconnect.utils;
+
+import fr.mrqsdf.rtspscreenconnect.pipeline.ParallelPool;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Conversion RGB -> YUV420J (pleine échelle, celle attendue par H264Encoder) sans passer par AWTUtil.
+ * Lit directement le raster int de la capture, écrit dans des plans Y/U/V réutilisés d'une frame à l'autre,
+ * et répartit le travail par bandes horizontales sur le {@link ParallelPool} du pipeline.
+ * Les coefficients et arrondis sont ceux de RgbToYuv420j de jcodec, le résultat est identique.
+ */
+public class Yuv420Converter {
+
+    // Hauteur d'une bande (paire pour ne pas couper un bloc de chrominance)
+    private static final int STRIPE_HEIGHT = 32;
+
+    private Picture picture;
+    private int width = -1;
+    private int height = -1;
+    private int[] fallbackPixels;
+    private final ParallelPool parallelPool;
+
+    public Yuv420Converter() {
+        this(ParallelPool.SEQUENTIAL);
+    }
+
+    public Yuv420Converter(ParallelPool parallelPool) {
+        this.parallelPool = parallelPool;
+    }
+
+    /**
+     * Convertit l'image dans la Picture interne, réallouée seulement si la résolution change.
+     * La Picture retournée est écrasée au prochain appel.
+     */
+    public Picture convert(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (picture == null || w != width || h != height) {
+            width = w;
+            height = h;
+            picture = Picture.create(w, h, ColorSpace.YUV420J);
+        }
+
+        int[] pixels;
+        int offset;
+        int stride;
+        Raster raster = image.getRaster();
+        if (raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && isRgbLayout((SinglePixelPackedSampleModel) raster.getSampleModel())) {
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            stride = sampleModel.getScanlineStride();
+            offset = raster.getDataBuffer().getOffset()
+                    - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+        } else {
+            // Format inattendu : on passe par une copie ARGB
+            if (fallbackPixels == null || fallbackPixels.length != w * h) {
+                fallbackPixels = new int[w * h];
+            }
+            image.getRGB(0, 0, w, h, fallbackPixels, 0, w);
+            pixels = fallbackPixels;
+            stride = w;
+            offset = 0;
+        }
+
+        byte[] yPlane = picture.getPlaneData(0);
+        byte[] uPlane = picture.getPlaneData(1);
+        byte[] vPlane = picture.getPlaneData(2);
+        int stripes = (h + STRIPE_HEIGHT - 1) / STRIPE_HEIGHT;
+        int[] src = pixels;
+        int srcOffset = offset;
+        int srcStride = stride;
+        parallelPool.forEach(stripes, stripe -> {
+            int y0 = stripe * STRIPE_HEIGHT;
+            int y1 = Math.min(y0 + STRIPE_HEIGHT, h);
+            convertStripe(src, srcOffset, srcStride, w, y0, y1, yPlane, uPlane, vPlane);
+        });
+        return picture;
+    }
+
+    private static boolean isRgbLayout(SinglePixelPackedSampleModel sampleModel) {
+        int[] masks = sampleModel.getBitMasks();
+        return masks.length >= 3 && masks[0] == 0xFF0000 && masks[1] == 0xFF00 && masks[2] == 0xFF;
+    }
+
+    /**
+     * Convertit les lignes [y0, y1[ (y0 pair). Les valeurs sont stockées signées (valeur - 128) comme dans jcodec.
+     */
+    private static void convertStripe(int[] src, int offset, int stride, int w, int y0, int y1,
+                              byte[] yPlane, byte[] uPlane, byte[] vPlane) {
+        int chromaWidth = w >> 1;
+        int evenWidth = chromaWidth << 1;
+        int y = y0;
+        for (; y + 1 < y1; y += 2) {
+            int row0 = offset + y * stride;
+            int row1 = row0 + stride;
+            int luma0 = y * w;
+            int luma1 = luma0 + w;
+            int chroma = (y >> 1) * chromaWidth;
+            for (int x = 0; x < evenWidth; x += 2) {
+                int p00 = src[row0 + x];
+                int p01 = src[row0 + x + 1];
+                int p10 = src[row1 + x];
+                int p11 = src[row1 + x + 1];
+                yPlane[luma0 + x] = luma(p00);
+                yPlane[luma0 + x + 1] = luma(p01);
+                yPlane[luma1 + x] = luma(p10);
+                yPlane[luma1 + x + 1] = luma(p11);
+                int u = chromaU(p00) + chromaU(p01) + chromaU(p10) + chromaU(p11);
+                int v = chromaV(p00) + chromaV(p01) + chromaV(p10) + chromaV(p11);
+                uPlane[chroma] = (byte) ((u + 2) >> 2);
+                vPlane[chroma] = (byte) ((v + 2) >> 2);
+                chroma++;
+            }
+            if (evenWidth < w) {
+                yPlane[luma0 + evenWidth] = luma(src[row0 + evenWidth]);
+                yPlane[luma1 + evenWidth] = luma(src[row1 + evenWidth]);
+            }
+        }
+        // Dernière ligne d'une hauteur impaire : luminance seule
+        if (y < y1) {
+            int row = offset + y * stride;
+            for (int x = 0; x < w; x++) {
+                yPlane[y * w + x] = luma(src[row + x]);
+            }
+        }
+    }
+
+    private static byte luma(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        return (byte) (((77 * r + 150 * g + 15 * b + 128) >> 8) - 128);
+    }
+
+    private static int chromaU(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        return Math.min((-43 * r - 85 * g + 128 * b + 128) >> 8, 127);
+    }
+
+    private static int chromaV(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        return Math.min((128 * r - 107 * g - 21 * b + 128) >> 8, 127);
+    }
+}